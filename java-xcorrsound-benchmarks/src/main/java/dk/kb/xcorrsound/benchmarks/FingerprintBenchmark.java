@@ -0,0 +1,50 @@
+package dk.kb.xcorrsound.benchmarks;
+
+import dk.kb.xcorrsound.FingerprintEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+//Fingerprint generation. The score is seconds of audio fingerprinted per second
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FingerprintBenchmark {
+    
+    private static final int SAMPLE_RATE = 5512;
+    
+    private static final int SECONDS = 10;
+    
+    @Param({"16", "32", "48"})
+    public int bands;
+    
+    private FingerprintEngine engine;
+    
+    private short[] samples;
+    
+    @Setup
+    public void setup() {
+        engine  = new FingerprintEngine(2048, 64, SAMPLE_RATE, bands);
+        samples = SyntheticIndex.samples(SECONDS * SAMPLE_RATE, 42);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SECONDS)
+    public long[] generate() {
+        return engine.generate(samples, null);
+    }
+}
@@ -0,0 +1,86 @@
+package dk.kb.xcorrsound.benchmarks;
+
+import dk.kb.xcorrsound.FingerprintCodec;
+import dk.kb.xcorrsound.search.HammingKernelProbe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+
+//The Hamming kernels, through the HammingKernelProbe of the search package. The score is windows of macro_sz
+//fingerprints compared per second. The windows are taken from a synthetic index on the heap, as fullCheck gives the
+//kernels, or off the heap, as a mapped index. The index stores the fingerprints in the width of the bands, so each
+//number of bands runs the kernel of its own FingerprintCodec
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HammingKernelBenchmark {
+    
+    private static final int WINDOWS = 1024;
+    
+    @Param({"16", "32", "48"})
+    public int bands;
+    
+    @Param({"unrolled", "scalar"})
+    public String kernel;
+    
+    @Param({"true", "false"})
+    public boolean heap;
+    
+    private HammingKernelProbe probe;
+    
+    private Buffer db;
+    
+    @Setup
+    public void setup() {
+        FingerprintCodec codec = FingerprintCodec.forBands(bands);
+        probe = new HammingKernelProbe(SyntheticIndex.fingerprints(macro_sz + fpSkip, bands, 1), codec,
+                                       !"scalar".equals(kernel));
+        
+        long[] fingerprints = SyntheticIndex.fingerprints(WINDOWS * 8 + macro_sz, bands, 2);
+        db = heap
+             ? codec.allocate(fingerprints.length)
+             : codec.view(ByteBuffer.allocateDirect(fingerprints.length * codec.getBytes())
+                                    .order(ByteOrder.LITTLE_ENDIAN));
+        for (int i = 0; i < fingerprints.length; i++) {
+            codec.put(db, i, fingerprints[i]);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(WINDOWS)
+    public void distance(Blackhole blackhole) {
+        //The windows are 8 apart, as in the scan
+        for (int start = 0; start < WINDOWS * 8; start += 8) {
+            blackhole.consume(probe.distance(db, start));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(WINDOWS)
+    public void terminatesEarly(Blackhole blackhole) {
+        for (int start = 0; start < WINDOWS * 8; start += 8) {
+            blackhole.consume(probe.terminatesEarly(db, start));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package dk.kb.xcorrsound.benchmarks;
+
+import dk.kb.xcorrsound.OffsetMap;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+//Loading the .map of an index, both the first time, when the binary map is made from the text map, and later, when
+//the binary map is opened. The map does not depend on the number of bands, so it is sized by the fingerprints in the
+//index instead, in files of SyntheticIndex.FILE_LENGTH
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OffsetMapBenchmark {
+    
+    //1024 and 65536 files
+    @Param({"16777216", "1073741824"})
+    public int indexSize;
+    
+    private Path tempDir;
+    
+    private String dbFile;
+    
+    @Setup
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("xcorrsound-benchmark");
+        dbFile  = tempDir.resolve("synthetic.db").toString();
+        SyntheticIndex.writeMap(Path.of(dbFile + ".map"), indexSize);
+        OffsetMap.open(dbFile);
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir.toFile());
+    }
+    
+    @State(Scope.Thread)
+    public static class FromText {
+        @Setup(Level.Invocation)
+        public void deleteBinaryMap(OffsetMapBenchmark benchmark) throws IOException {
+            Files.deleteIfExists(Path.of(OffsetMap.getBinaryMapFile(benchmark.dbFile)));
+        }
+    }
+    
+    @Benchmark
+    public OffsetMap openFromText(FromText fromText) throws IOException {
+        return OffsetMap.open(dbFile);
+    }
+    
+    @Benchmark
+    public OffsetMap openBinary() throws IOException {
+        return OffsetMap.open(dbFile);
+    }
+}
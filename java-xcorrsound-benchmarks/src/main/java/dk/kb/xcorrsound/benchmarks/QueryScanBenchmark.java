@@ -0,0 +1,118 @@
+package dk.kb.xcorrsound.benchmarks;
+
+import dk.kb.xcorrsound.index.FingerprintDBIndexer;
+import dk.kb.xcorrsound.search.FingerprintDBSearcher;
+import dk.kb.xcorrsound.search.IsmirSearchResult;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+
+//query_scan of a single query in a synthetic index. The fingerprints counter is the fingerprints of the index searched
+//per second. The query is taken from the index, so the hits are verified as in a real search.
+//Larger indexes can be given with eg. -p indexSize=268435456
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryScanBenchmark {
+    
+    @Param({"16", "32", "48"})
+    public int bands;
+    
+    @Param({"4194304"})
+    public int indexSize;
+    
+    //MAPPED and STREAM are the scan modes, LOOKUP is MAPPED with a lookup table
+    @Param({"MAPPED", "LOOKUP", "STREAM"})
+    public String mode;
+    
+    //Threads scanning ranges of the index, 1 for a scan by the calling thread
+    @Param({"1"})
+    public int parallelism;
+    
+    private Path tempDir;
+    
+    private FingerprintDBSearcher searcher;
+    
+    private long[] query;
+    
+    //DEFAULT_CRITERIA is for 32 bands. With fewer bands, unrelated fingerprints differ in fewer bits, and every window
+    //of the index would be a hit
+    private double criteria;
+    
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long fingerprints;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            fingerprints = 0;
+        }
+    }
+    
+    @Setup
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("xcorrsound-benchmark");
+        Path dbFile = tempDir.resolve("synthetic.db");
+        SyntheticIndex.write(dbFile, indexSize, bands, 42);
+        
+        if ("LOOKUP".equals(mode)) {
+            new FingerprintDBIndexer(2048, 64, 5512, bands, dbFile.toString()).buildLookupTable();
+        }
+        searcher = new FingerprintDBSearcher(2048, 64, 5512, bands, dbFile.toString());
+        searcher.setScanMode("STREAM".equals(mode)
+                             ? FingerprintDBSearcher.ScanMode.STREAM
+                             : FingerprintDBSearcher.ScanMode.MAPPED);
+        searcher.setUseLookupTable("LOOKUP".equals(mode));
+        if (parallelism > 1) {
+            searcher.setForkJoinPool(new ForkJoinPool(parallelism));
+        }
+        
+        criteria = FingerprintDBSearcher.DEFAULT_CRITERIA * Math.min(bands, Integer.SIZE) / Integer.SIZE;
+        int queryStart = indexSize / 2;
+        query = Arrays.copyOfRange(SyntheticIndex.fingerprints(indexSize, bands, 42),
+                                   queryStart,
+                                   queryStart + macro_sz + fpSkip);
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        if (searcher.getForkJoinPool() != null) {
+            searcher.getForkJoinPool().shutdown();
+        }
+        FileUtils.deleteDirectory(tempDir.toFile());
+    }
+    
+    @Benchmark
+    public List<IsmirSearchResult> queryScan(Counters counters) throws IOException {
+        List<IsmirSearchResult> results = searcher.query_scan(query, criteria);
+        counters.fingerprints += indexSize;
+        return results;
+    }
+}
@@ -0,0 +1,85 @@
+package dk.kb.xcorrsound.benchmarks;
+
+import dk.kb.xcorrsound.search.FingerprintDBSearcher;
+import dk.kb.xcorrsound.search.IsmirSearchResult;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+
+//The garbage a query_scan makes, to verify that the scan allocates nothing per position, candidate or window. Run it
+//with the GC profiler, -prof gc, and compare gc.alloc.rate.norm, the bytes allocated per search, between the index
+//sizes: it should not grow with the index. With repeated, the index is one recording over and over, so every few
+//thousand positions are checked in full and are a hit, and the bytes per search only grow with the hits returned
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ScanAllocationBenchmark {
+    
+    //Fingerprints in the recording of a repeated index
+    private static final int RECORDING_LENGTH = 3000;
+    
+    @Param({"1048576", "4194304"})
+    public int indexSize;
+    
+    @Param({"MAPPED", "STREAM"})
+    public String mode;
+    
+    @Param({"false", "true"})
+    public boolean repeated;
+    
+    private Path tempDir;
+    
+    private FingerprintDBSearcher searcher;
+    
+    private long[] query;
+    
+    @Setup
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("xcorrsound-benchmark");
+        Path dbFile = tempDir.resolve("synthetic.db");
+        long[] fingerprints = SyntheticIndex.fingerprints(indexSize, 32, 42);
+        if (repeated) {
+            for (int i = RECORDING_LENGTH; i < fingerprints.length; i++) {
+                fingerprints[i] = fingerprints[i % RECORDING_LENGTH];
+            }
+        }
+        SyntheticIndex.write(dbFile, fingerprints, 32);
+        
+        searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, dbFile.toString());
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.valueOf(mode));
+        query = Arrays.copyOfRange(fingerprints, 1000, 1000 + macro_sz + fpSkip);
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir.toFile());
+    }
+    
+    @Benchmark
+    public List<IsmirSearchResult> queryScan() throws IOException {
+        return searcher.query_scan(query, FingerprintDBSearcher.DEFAULT_CRITERIA);
+    }
+}
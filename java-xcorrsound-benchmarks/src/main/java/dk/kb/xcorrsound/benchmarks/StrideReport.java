@@ -0,0 +1,140 @@
+package dk.kb.xcorrsound.benchmarks;
+
+import dk.kb.xcorrsound.CountingMetrics;
+import dk.kb.xcorrsound.FingerPrintDB;
+import dk.kb.xcorrsound.FingerprintCodec;
+import dk.kb.xcorrsound.IndexHeader;
+import dk.kb.xcorrsound.search.FingerprintDBSearcher;
+import dk.kb.xcorrsound.search.IsmirSearchResult;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+import static dk.kb.xcorrsound.FingerPrintDB.nearRange;
+
+//Recall and latency of the scan at different strides and phase steps, see FingerprintDBSearcher.setScanStride, on a
+//real index. The queries are taken from the index at random places, with some bits of each fingerprint flipped as
+//noise, so a query is found if the search has a hit where it was taken from. Run it as
+//  java -cp benchmarks.jar dk.kb.xcorrsound.benchmarks.StrideReport <index> [queries] [noise bits] [seed]
+//The table has a line for each stride and phase step, with the share of the queries found, the mean and the slowest
+//search in ms, and the positions scanned per search
+public class StrideReport {
+    
+    //The stride and phase step of each line. 8 and 8 is the original scan
+    private static final int[][] SETTINGS = {
+            {8, 8}, {8, 4}, {16, 8}, {32, 8}, {56, 8}, {16, 16}, {32, 16}, {32, 32}, {56, 56}
+    };
+    
+    //A hit this close to where the query was taken from finds the query
+    private static final int TOLERANCE = 8;
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: StrideReport <index> [queries] [noise bits] [seed]");
+            System.exit(1);
+        }
+        String dbFile = args[0];
+        int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int noiseBits = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        
+        IndexHeader parameters = FingerPrintDB.readParameters(dbFile);
+        int queryLength = macro_sz + fpSkip;
+        Random random = new Random(seed);
+        List<long[]> queries = new ArrayList<>();
+        List<Integer> expectedPositions = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(Path.of(dbFile), StandardOpenOption.READ)) {
+            IndexHeader header = IndexHeader.read(dbFile);
+            FingerprintCodec codec = header == null ? FingerprintCodec.INT : header.getCodec();
+            long dataOffset = header == null ? 0 : header.getDataOffset();
+            long length = header == null ? channel.size() / Integer.BYTES : header.getRecordCount();
+            if (length < queryLength) {
+                throw new IllegalArgumentException("The index " + dbFile + " is too small for a query");
+            }
+            for (int i = 0; i < numQueries; i++) {
+                int start = (int) (random.nextDouble() * (length - queryLength));
+                long[] query = read(channel, codec, dataOffset, start, queryLength);
+                for (int j = 0; j < query.length; j++) {
+                    for (int bit = 0; bit < noiseBits; bit++) {
+                        query[j] ^= 1L << random.nextInt(parameters.getBands());
+                    }
+                }
+                queries.add(query);
+                //Hits are reported at the position of fingerprint fpSkip, offset by macro_sz + nearRange
+                expectedPositions.add(start + fpSkip + macro_sz + nearRange);
+            }
+        }
+        
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(dbFile);
+        searcher.setUseLookupTable(false);
+        CountingMetrics metrics = new CountingMetrics();
+        searcher.setMetrics(metrics);
+        //DEFAULT_CRITERIA is for 32 bands, see QueryScanBenchmark
+        double criteria = FingerprintDBSearcher.DEFAULT_CRITERIA
+                          * Math.min(parameters.getBands(), Integer.SIZE) / Integer.SIZE;
+        //Warm up the JIT and the page cache, so the first line is not slower for it
+        searcher.query_scan(queries.get(0), criteria);
+        
+        System.out.printf(Locale.ROOT, "%d queries with %d bits of noise per fingerprint in %s%n",
+                          numQueries, noiseBits, dbFile);
+        System.out.printf(Locale.ROOT, "%6s %9s %6s %7s %9s %9s %14s%n",
+                          "stride", "phaseStep", "phases", "recall", "mean ms", "max ms", "positions");
+        for (int[] setting : SETTINGS) {
+            searcher.setScanStride(setting[0]);
+            searcher.setPhaseStep(setting[1]);
+            metrics.reset();
+            int found = 0;
+            long totalNanos = 0;
+            long maxNanos = 0;
+            for (int i = 0; i < queries.size(); i++) {
+                long startTime = System.nanoTime();
+                List<IsmirSearchResult> results = searcher.query_scan(queries.get(i), criteria);
+                long nanos = System.nanoTime() - startTime;
+                totalNanos += nanos;
+                maxNanos = Math.max(maxNanos, nanos);
+                int expectedPosition = expectedPositions.get(i);
+                if (results.stream().anyMatch(hit -> Math.abs(hit.getPosInIndex() - expectedPosition) < TOLERANCE)) {
+                    found++;
+                }
+            }
+            System.out.printf(Locale.ROOT, "%6d %9d %6d %7.3f %9.1f %9.1f %14d%n",
+                              setting[0],
+                              setting[1],
+                              (setting[0] + setting[1] - 1) / setting[1],
+                              (double) found / queries.size(),
+                              totalNanos / 1e6 / queries.size(),
+                              maxNanos / 1e6,
+                              metrics.getPositionsScanned() / queries.size());
+        }
+    }
+    
+    //The count fingerprints from start in the index
+    private static long[] read(FileChannel channel, FingerprintCodec codec, long dataOffset, int start, int count)
+            throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(count * codec.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        long position = dataOffset + (long) start * codec.getBytes();
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) < 0) {
+                throw new IOException("The index ended before fingerprint " + (start + count));
+            }
+        }
+        bytes.flip();
+        Buffer values = codec.view(bytes);
+        long[] fingerprints = new long[count];
+        for (int i = 0; i < count; i++) {
+            fingerprints[i] = codec.get(values, i);
+        }
+        return fingerprints;
+    }
+}
@@ -0,0 +1,87 @@
+package dk.kb.xcorrsound.benchmarks;
+
+import dk.kb.xcorrsound.FingerprintCodec;
+import dk.kb.xcorrsound.IndexHeader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+//Synthetic audio, fingerprints and indexes for the benchmarks. Everything is made from a seed, so runs can be compared
+public class SyntheticIndex {
+    
+    //Fingerprints per file in the map of a synthetic index, about 3 minutes of audio
+    public static final int FILE_LENGTH = 16 * 1024;
+    
+    //Like real audio, neighbouring fingerprints only differ in a few bits
+    public static long[] fingerprints(int count, int bands, long seed) {
+        Random random = new Random(seed);
+        long mask = bands >= Long.SIZE ? -1L : (1L << bands) - 1;
+        long[] fingerprints = new long[count];
+        long fingerprint = random.nextLong() & mask;
+        for (int i = 0; i < count; i++) {
+            fingerprint ^= (1L << random.nextInt(bands)) | (1L << random.nextInt(bands));
+            fingerprints[i] = fingerprint;
+            if (random.nextInt(FILE_LENGTH) == 0) {
+                //A new recording
+                fingerprint = random.nextLong() & mask;
+            }
+        }
+        return fingerprints;
+    }
+    
+    //Noise with a slowly varying loudness, so the fingerprints are not all alike
+    public static short[] samples(int count, long seed) {
+        Random random = new Random(seed);
+        short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            double loudness = 0.5 + 0.5 * Math.sin(i / 2000.0);
+            samples[i] = (short) (random.nextGaussian() * 4000 * loudness);
+        }
+        return samples;
+    }
+    
+    //Write an index of size fingerprints, with a map of files of FILE_LENGTH fingerprints. The index has a header, so
+    //the fingerprints are stored in the width of the bands
+    public static void write(Path dbFile, int size, int bands, long seed) throws IOException {
+        write(dbFile, fingerprints(size, bands, seed), bands);
+    }
+    
+    //Write an index of the fingerprints, with a map of files of FILE_LENGTH fingerprints
+    public static void write(Path dbFile, long[] fingerprints, int bands) throws IOException {
+        int size = fingerprints.length;
+        IndexHeader header = IndexHeader.create(2048, 64, 5512, bands);
+        FingerprintCodec codec = header.getCodec();
+        try (FileChannel channel = FileChannel.open(dbFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            header.write(channel);
+            channel.position(header.getDataOffset());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                                                                                 64 * 1024));
+            for (long fingerprint : fingerprints) {
+                codec.write(out, fingerprint);
+            }
+            out.flush();
+            header.append(fingerprints, size);
+            header.write(channel);
+        }
+        writeMap(Path.of(dbFile + ".map"), size);
+    }
+    
+    //Write a map of size fingerprints in files of FILE_LENGTH fingerprints
+    public static void writeMap(Path mapFile, int size) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(mapFile, StandardCharsets.UTF_8)) {
+            for (int end = FILE_LENGTH, file = 0; end - FILE_LENGTH < size; end += FILE_LENGTH, file++) {
+                writer.write(Math.min(end, size) + " /radio/recordings/" + file + ".mp3\n");
+            }
+        }
+    }
+}
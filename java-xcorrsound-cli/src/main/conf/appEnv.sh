@@ -3,6 +3,9 @@
 
 INDEX_MAIN_CLASS=dk.kb.xcorrsound.cli/dk.kb.xcorrsound.cli.CommandBuildIndex
 QUERY_MAIN_CLASS=dk.kb.xcorrsound.cli/dk.kb.xcorrsound.cli.CommandQueryIndex
+SERVE_MAIN_CLASS=dk.kb.xcorrsound.cli/dk.kb.xcorrsound.cli.CommandServe
+MERGE_MAIN_CLASS=dk.kb.xcorrsound.cli/dk.kb.xcorrsound.cli.CommandMergeIndex
+MONITOR_MAIN_CLASS=dk.kb.xcorrsound.cli/dk.kb.xcorrsound.cli.CommandMonitor
 APP_CONFIG=templateConfig.yaml
 
 
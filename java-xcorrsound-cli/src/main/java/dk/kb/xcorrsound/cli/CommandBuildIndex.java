@@ -1,18 +1,25 @@
 package dk.kb.xcorrsound.cli;
 
+import dk.kb.xcorrsound.CountingMetrics;
+import dk.kb.xcorrsound.IndexHeader;
 import dk.kb.xcorrsound.index.FingerprintDBIndexer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 //https://picocli.info/#_introduction
 @CommandLine.Command()
 public class CommandBuildIndex implements Callable<Integer> {
-    
+    private static final Logger log = LoggerFactory.getLogger(CommandBuildIndex.class);
     
     @CommandLine.Option(names = {"-d", "--dbname"}, description = "Database name", required = true)
     public String dbfile;
@@ -28,6 +35,34 @@ public class CommandBuildIndex implements Callable<Integer> {
     @CommandLine.Option(names = {"-n", "--name"}, description = "Name if input is on stdin")
     public String name;
     
+    @CommandLine.Option(names = {"-P", "--num-procs"}, required = false, defaultValue = "1",
+                        description = "Number of threads fingerprinting the files of --file in parallel. The files are "
+                                      + "still added to the index in the order of the list")
+    public Integer processes;
+    
+    @CommandLine.Option(names = {"--decoders"}, required = false,
+                        description = "Number of files of --file decoded (by ffmpeg) at a time. Default is --num-procs")
+    public Integer decoders;
+    
+    @CommandLine.Option(names = {"--frame-threads"}, required = false,
+                        description = "Number of threads fingerprinting the frames of each file in parallel, which "
+                                      + "helps with few, long files. The fingerprints are the same")
+    public Integer frameThreads;
+    
+    @CommandLine.Option(names = {"-l", "--lookup-table"},
+                        description = "(Re)build the lookup table for fast searching, after inserting any input")
+    public boolean lookupTable;
+    
+    @CommandLine.Option(names = {"-s", "--summary"},
+                        description = "(Re)build the block summary, that lets searches skip the full comparison of "
+                                      + "positions that cannot match, after inserting any input")
+    public boolean summary;
+    
+    @CommandLine.Option(names = {"--verify"},
+                        description = "Verify the fingerprints of the index against the checksum in its header, after "
+                                      + "inserting any input")
+    public boolean verify;
+    
     
     public static void main(String[] args) {
         CommandLine app = new CommandLine(new CommandBuildIndex());
@@ -39,11 +74,23 @@ public class CommandBuildIndex implements Callable<Integer> {
     @Override
     public Integer call() throws Exception {
         FingerprintDBIndexer ismir = new FingerprintDBIndexer(dbfile);
+        CountingMetrics metrics = new CountingMetrics();
+        metrics.register("index");
+        ismir.setMetrics(metrics);
+        ForkJoinPool framePool = null;
+        if (frameThreads != null && frameThreads > 1) {
+            framePool = new ForkJoinPool(frameThreads);
+            ismir.getFingerprintStrategy().setForkJoinPool(framePool);
+        }
         if (listFile != null){
             //read list of input files
             List<String> mp3Files = Files.readAllLines(Path.of(listFile), StandardCharsets.UTF_8);
-            for (String mp3File : mp3Files) {
-                ismir.insert(mp3File, mp3File);
+            if (processes > 1 || decoders != null) {
+                ismir.insertAll(mp3Files, Optional.ofNullable(decoders).orElse(processes), processes);
+            } else {
+                for (String mp3File : mp3Files) {
+                    ismir.insert(mp3File, mp3File);
+                }
             }
         } else if (input != null){
             if (input.trim().equals("-")){
@@ -57,9 +104,30 @@ public class CommandBuildIndex implements Callable<Integer> {
                 //read single input file
                 ismir.insert(input, input);
             }
-        } else {
+        } else if (!lookupTable && !summary && !verify) {
             throw new IllegalArgumentException("Please specify some input");
         }
+        if (framePool != null) {
+            framePool.shutdown();
+        }
+        if (lookupTable) {
+            ismir.buildLookupTable();
+        }
+        if (summary) {
+            ismir.buildBlockSummary();
+        }
+        if (verify) {
+            IndexHeader header = IndexHeader.read(dbfile);
+            if (header == null) {
+                log.warn("The index {} has no header, so it cannot be verified", dbfile);
+            } else if (!header.verify(dbfile)) {
+                throw new IOException("The fingerprints of the index " + dbfile + " do not match the checksum in "
+                                      + "its header");
+            } else {
+                log.info("Verified the {} fingerprints of {}", header.getRecordCount(), dbfile);
+            }
+        }
+        log.info("Indexing metrics: {}", metrics);
         return 0;
     }
 }
@@ -0,0 +1,101 @@
+package dk.kb.xcorrsound.cli;
+
+import dk.kb.xcorrsound.IndexManifest;
+import dk.kb.xcorrsound.index.IndexMerger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+
+//Merge many indexes into a few large segments and a manifest, see IndexMerger. The manifest can then be given as the
+//--dbname of CommandQueryIndex and CommandServe, to search all the segments as one index
+//https://picocli.info/#_introduction
+@CommandLine.Command()
+public class CommandMergeIndex implements Callable<Integer> {
+    private static final Logger log = LoggerFactory.getLogger(CommandMergeIndex.class);
+    
+    @CommandLine.Option(names = {"-d", "--dbname"}, description = "Index to merge. Manifests are merged by their indexes")
+    public List<String> dbfiles = new ArrayList<>();
+    
+    @CommandLine.Option(names = {"-f", "--file"}, description = "File with names of indexes to merge, one per line")
+    public String listFile;
+    
+    @CommandLine.Option(names = {"-o", "--output"}, required = true,
+                        description = "Name of the merged index. The segments are <output>.000, <output>.001, ... "
+                                      + "and the manifest is <output>.manifest")
+    public String output;
+    
+    @CommandLine.Option(names = {"-s", "--segment-size"}, required = false,
+                        description = "Maximum number of fingerprints in a segment. Default is the maximum of "
+                                      + IndexMerger.MAX_SEGMENT_SIZE)
+    public Long segmentSize;
+    
+    @CommandLine.Option(names = {"--drop"}, required = false,
+                        description = "File with names of recordings, one per line, that are left out of the merged "
+                                      + "index")
+    public String dropFile;
+    
+    @CommandLine.Option(names = {"-l", "--lookup-table"},
+                        description = "Build the lookup table of each segment, for fast searching")
+    public boolean lookupTable;
+    
+    @CommandLine.Option(names = {"--summary"},
+                        description = "Build the block summary of each segment, that lets searches skip the full "
+                                      + "comparison of positions that cannot match")
+    public boolean summary;
+    
+    public static void main(String[] args) {
+        CommandLine app = new CommandLine(new CommandMergeIndex());
+        int exitCode = app.execute(args);
+        
+        System.exit(exitCode);
+    }
+    
+    @Override
+    public Integer call() throws Exception {
+        List<String> shards = new ArrayList<>();
+        for (String dbfile : dbfiles) {
+            shards.addAll(IndexManifest.getIndexFiles(dbfile));
+        }
+        if (listFile != null) {
+            for (String dbfile : readLines(listFile)) {
+                shards.addAll(IndexManifest.getIndexFiles(dbfile));
+            }
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Please specify the indexes to merge");
+        }
+        
+        IndexMerger merger = new IndexMerger(output);
+        if (segmentSize != null) {
+            merger.setSegmentSize(segmentSize);
+        }
+        if (dropFile != null) {
+            Set<String> dropped = new HashSet<>(readLines(dropFile));
+            log.info("Dropping {} recordings listed in {}", dropped.size(), dropFile);
+            merger.setDropped(dropped);
+        }
+        merger.setBuildLookupTables(lookupTable);
+        merger.setBuildBlockSummaries(summary);
+        merger.merge(shards);
+        System.out.println(merger.getManifestFile());
+        return 0;
+    }
+    
+    private static List<String> readLines(String file) throws IOException {
+        return Files.readAllLines(Path.of(file), StandardCharsets.UTF_8)
+                    .stream()
+                    .filter(line -> !line.isBlank())
+                    .collect(Collectors.toList());
+    }
+}
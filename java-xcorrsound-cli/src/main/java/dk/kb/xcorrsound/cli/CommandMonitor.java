@@ -0,0 +1,58 @@
+package dk.kb.xcorrsound.cli;
+
+import dk.kb.xcorrsound.CountingMetrics;
+import dk.kb.xcorrsound.search.FingerprintDBSearcher;
+import dk.kb.xcorrsound.search.StreamMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.util.Optional;
+import java.util.concurrent.Callable;
+
+//Monitor a live stream for the recordings of a catalogue, such as jingles and ads, see StreamMonitor. The catalogue is
+//an index of the recordings, made with CommandBuildIndex. Each match is printed as soon as it is found, eg.
+//  ffmpeg -i http://radio/stream -ac 1 -ar 5512 -f wav - | ismir_monitor.sh -d jingles.db
+//The metrics of the monitor can be read over JMX as dk.kb.xcorrsound:type=Metrics,name="monitor"
+//https://picocli.info/#_introduction
+@CommandLine.Command()
+public class CommandMonitor implements Callable<Integer> {
+    private static final Logger log = LoggerFactory.getLogger(CommandMonitor.class);
+    
+    @CommandLine.Option(names = {"-d", "--dbname"}, required = true,
+                        description = "Index of the recordings to look for in the stream. A single index, not a "
+                                      + "manifest")
+    public String dbfile;
+    
+    @CommandLine.Option(names = {"-i", "--input"}, required = false, defaultValue = "-",
+                        description = "Stream to monitor: a wav file or pipe, a file or url that ffmpeg can read, or "
+                                      + "'-' for a wav on stdin, which is the default")
+    public String input;
+    
+    @CommandLine.Option(names = {"-c", "--criteria"}, required = false)
+    public Double criteria;
+    
+    public static void main(String... args) {
+        CommandLine app = new CommandLine(new CommandMonitor());
+        int exitCode = app.execute(args);
+        
+        System.exit(exitCode);
+    }
+    
+    @Override
+    public Integer call() throws Exception {
+        CountingMetrics metrics = new CountingMetrics();
+        metrics.register("monitor");
+        
+        StreamMonitor monitor = new StreamMonitor(dbfile);
+        monitor.setMetrics(metrics);
+        monitor.setCriteria(Optional.ofNullable(criteria).orElse(FingerprintDBSearcher.DEFAULT_CRITERIA));
+        monitor.setListener(System.out::println);
+        if (monitor.size() == 0) {
+            throw new IllegalArgumentException("The index " + dbfile + " has no recordings long enough to look for");
+        }
+        monitor.monitor(input);
+        log.info("Monitored {} fingerprints of {}. Metrics: {}", monitor.getStreamLength(), input, metrics);
+        return 0;
+    }
+}
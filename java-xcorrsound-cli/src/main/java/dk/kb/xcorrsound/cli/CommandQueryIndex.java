@@ -1,5 +1,8 @@
 package dk.kb.xcorrsound.cli;
 
+import dk.kb.xcorrsound.CountingMetrics;
+import dk.kb.xcorrsound.FingerprintStrategy;
+import dk.kb.xcorrsound.IndexManifest;
 import dk.kb.xcorrsound.search.FingerprintDBSearcher;
 import dk.kb.xcorrsound.search.IsmirSearchResult;
 import org.slf4j.Logger;
@@ -8,33 +11,70 @@ import picocli.CommandLine;
 
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 //https://picocli.info/#_introduction
 @CommandLine.Command()
 public class CommandQueryIndex implements Callable<Integer> {
     private static final Logger log = LoggerFactory.getLogger(CommandQueryIndex.class);
     
-    @CommandLine.Option(names = {"-q", "--query"}, required = true)
+    @CommandLine.Option(names = {"-q", "--query"}, required = false)
     public String queryFile;
     
-    @CommandLine.Option(names = {"-d", "--dbname"}, required = true)
+    @CommandLine.Option(names = {"-Q", "--query-list"},
+                        description = "File with names of query files, one per line. All the queries are searched in "
+                                      + "one pass over each index, this ignores the --query option")
+    public String queryListFile;
+    
+    @CommandLine.Option(names = {"-d", "--dbname"}, required = true,
+                        description = "Index to search, or the manifest of a merged index, see CommandMergeIndex")
     public List<String> dbfiles;
     
     @CommandLine.Option(names = {"-c", "--criteria"}, required = false)
     public Double criteria;
     
-    @CommandLine.Option(names = {"-P", "--num-procs"}, required = false, defaultValue = "12")
+    @CommandLine.Option(names = {"-k", "--top"}, required = false,
+                        description = "Only give the best K matches of each query over all the indexes, best first")
+    public Integer top;
+    
+    @CommandLine.Option(names = {"--first"}, required = false,
+                        description = "Only give the first match of each query, and stop searching an index for the "
+                                      + "query when it is found")
+    public boolean first;
+    
+    @CommandLine.Option(names = {"--stride"}, required = false, defaultValue = "8",
+                        description = "Positions the scan steps the index by. Above the --phase-step, the query is "
+                                      + "compared in several phases at each position, see StrideReport")
+    public Integer stride;
+    
+    @CommandLine.Option(names = {"--phase-step"}, required = false, defaultValue = "8",
+                        description = "Distance between the phases of the query. Larger is faster, but misses more")
+    public Integer phaseStep;
+    
+    @CommandLine.Option(names = {"-P", "--num-procs"}, required = false, defaultValue = "12",
+                        description = "Number of threads, used both for searching several indexes at once and for "
+                                      + "searching ranges of each index in parallel")
     public Integer processes;
     
+    private ForkJoinPool scanPool;
+    
+    private final CountingMetrics metrics = new CountingMetrics();
+    
     public static void main(String... args) {
         CommandLine app = new CommandLine(new CommandQueryIndex());
         int exitCode = app.execute(args);
@@ -46,39 +86,120 @@ public class CommandQueryIndex implements Callable<Integer> {
     public Integer call() throws Exception {
         //Default value if criteria not set
         criteria = Optional.ofNullable(criteria).orElse(FingerprintDBSearcher.DEFAULT_CRITERIA);
-        long[] fingerprints = new FingerprintDBSearcher(null).getFingerprintStrategy().getFingerprintsForFileForSearch(queryFile, null);
-    
-        ExecutorService threadPool = Executors.newFixedThreadPool(Math.min(dbfiles.size(),processes));
-        List<Future<String>> results = new ArrayList<>();
+        if (top != null && first) {
+            throw new IllegalArgumentException("Please specify either --top or --first");
+        }
+        if (top != null && top <= 0) {
+            throw new IllegalArgumentException("--top must be positive");
+        }
+        
+        metrics.register("query");
         
+        List<String> queryFiles;
+        if (queryListFile != null) {
+            queryFiles = Files.readAllLines(Path.of(queryListFile), StandardCharsets.UTF_8)
+                              .stream()
+                              .filter(line -> !line.isBlank())
+                              .collect(Collectors.toList());
+        } else if (queryFile != null) {
+            queryFiles = List.of(queryFile);
+        } else {
+            throw new IllegalArgumentException("Please specify a query");
+        }
+        
+        //The queries are fingerprinted with the parameters of each index, as given by its header. Indexes made with the
+        //same parameters share the fingerprints
+        List<FingerprintDBSearcher> searchers = new ArrayList<>();
+        Map<FingerprintStrategy, List<long[]>> queriesByStrategy = new HashMap<>();
+        //The segments of a merged index are searched like separate indexes, and their hits are printed one after the other
         for (String dbfile : dbfiles) {
-            Callable<String> searcher = () -> singleSearchEx(dbfile, fingerprints);
-            results.add(threadPool.submit(searcher));
+            for (String indexFile : IndexManifest.getIndexFiles(dbfile)) {
+                FingerprintDBSearcher searcher = new FingerprintDBSearcher(indexFile);
+                searcher.setMetrics(metrics);
+                searcher.setScanStride(stride);
+                searcher.setPhaseStep(phaseStep);
+                searchers.add(searcher);
+                FingerprintStrategy fingerprintStrategy = searcher.getFingerprintStrategy();
+                if (!queriesByStrategy.containsKey(fingerprintStrategy)) {
+                    queriesByStrategy.put(fingerprintStrategy, fingerprintQueries(fingerprintStrategy, queryFiles));
+                }
+            }
+        }
+    
+        ExecutorService threadPool = Executors.newFixedThreadPool(Math.min(searchers.size(),processes));
+        //The scan of each index is split over this pool, so the total number of busy threads is processes
+        scanPool = new ForkJoinPool(processes);
+        List<Future<List<List<IsmirSearchResult>>>> results = new ArrayList<>();
+        
+        for (FingerprintDBSearcher searcher : searchers) {
+            List<long[]> queries = queriesByStrategy.get(searcher.getFingerprintStrategy());
+            Callable<List<List<IsmirSearchResult>>> search = () -> singleSearchEx(searcher, queries);
+            results.add(threadPool.submit(search));
         }
         awaitTermination(threadPool);
+        scanPool.shutdown();
+        log.info("Search metrics: {}", metrics);
     
-        for (Future<String> result : results) {
-            System.out.println(result.get());
+        for (int i = 0; i < queryFiles.size(); i++) {
+            if (queryListFile != null) {
+                System.out.println("Results for query '" + queryFiles.get(i) + "'");
+            }
+            List<IsmirSearchResult> queryResults = new ArrayList<>();
+            for (Future<List<List<IsmirSearchResult>>> result : results) {
+                if (top == null && !first) {
+                    System.out.println(toString(result.get().get(i)));
+                } else {
+                    queryResults.addAll(result.get().get(i));
+                }
+            }
+            if (top != null) {
+                //The best of each index, ranked together. Equal distances are in the order of the indexes
+                queryResults.sort(Comparator.comparingInt(IsmirSearchResult::getDist));
+                System.out.println(toString(queryResults.subList(0, Math.min(top, queryResults.size()))));
+            } else if (first) {
+                System.out.println(toString(queryResults.subList(0, Math.min(1, queryResults.size()))));
+            }
         }
         return 0;
     }
     
-    private String singleSearchEx(String dbfile, long[] fingerprints) {
+    private static String toString(List<IsmirSearchResult> results) {
+        StringBuilder resultString = new StringBuilder();
+        results.forEach(singleResult -> resultString.append(singleResult.toString()));
+        return resultString.toString();
+    }
+    
+    private static List<long[]> fingerprintQueries(FingerprintStrategy fingerprintStrategy, List<String> queryFiles)
+            throws IOException, UnsupportedAudioFileException, InterruptedException {
+        List<long[]> queries = new ArrayList<>();
+        for (String file : queryFiles) {
+            long[] fingerprints = fingerprintStrategy.getFingerprintsForFileForSearch(file, null);
+            if (fingerprints == null) {
+                throw new IllegalArgumentException("Could not get fingerprints for the query '" + file + "'");
+            }
+            queries.add(fingerprints);
+        }
+        return queries;
+    }
+    
+    private List<List<IsmirSearchResult>> singleSearchEx(FingerprintDBSearcher searcher, List<long[]> queries) {
         try {
-            return singleSearch(dbfile, fingerprints);
-        } catch (IOException | InterruptedException | UnsupportedAudioFileException e) {
+            return singleSearch(searcher, queries);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
     
-    private String singleSearch(String dbfile, long[] fingerprints) throws IOException, UnsupportedAudioFileException, InterruptedException {
-        FingerprintDBSearcher searcher = new FingerprintDBSearcher(dbfile);
-        
-        try (StringWriter resultWriter = new StringWriter()) {
-            List<IsmirSearchResult> result = searcher.query_scan(fingerprints, criteria);
-            result.forEach(singleResult -> resultWriter.write(singleResult.toString()));
-            return resultWriter.toString();
+    //Search all the queries in the index, and give the matches for each query
+    private List<List<IsmirSearchResult>> singleSearch(FingerprintDBSearcher searcher, List<long[]> queries)
+            throws IOException {
+        searcher.setForkJoinPool(scanPool);
+        if (top != null) {
+            return searcher.query_top(queries, criteria, top);
+        } else if (first) {
+            return searcher.query_first(queries, criteria);
         }
+        return searcher.query_scan(queries, criteria);
     }
     
     
@@ -0,0 +1,297 @@
+package dk.kb.xcorrsound.cli;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.xcorrsound.CountingMetrics;
+import dk.kb.xcorrsound.FingerprintStrategy;
+import dk.kb.xcorrsound.IndexManifest;
+import dk.kb.xcorrsound.search.FingerprintDBSearcher;
+import dk.kb.xcorrsound.search.IsmirSearchResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+//Long running search server. The indexes are opened once and stay mapped between queries, and files appended to an
+//index by the indexer are found without a restart.
+//
+//  GET  /search?query=<audio file>[&offset=<seconds>][&criteria=<distance>][&top=<K>|&first=true]
+//  POST /search[?criteria=<distance>][&top=<K>|&first=true] with the fingerprints of the query as the body, as
+//       whitespace separated numbers
+//
+//The response is the matches in each index, in the same format as CommandQueryIndex. With top, it is the best K
+//matches over all the indexes, best first, and with first, the first match, as with --top and --first of
+//CommandQueryIndex.
+//The audio file of a GET must be a local file, and in the --query-root if it is given. Without a --query-root, GETs are
+//only served on the loopback address, so remote clients cannot read the files of the server. POSTed fingerprints are
+//searched as they are, so they are only served when all the indexes are made with the same parameters.
+//The metrics of the searches can be read over JMX as dk.kb.xcorrsound:type=Metrics,name="serve"
+@CommandLine.Command()
+public class CommandServe implements Callable<Integer> {
+    private static final Logger log = LoggerFactory.getLogger(CommandServe.class);
+    
+    @CommandLine.Option(names = {"-d", "--dbname"}, required = true,
+                        description = "Index to search, or the manifest of a merged index, see CommandMergeIndex")
+    public List<String> dbfiles;
+    
+    @CommandLine.Option(names = {"-c", "--criteria"}, required = false,
+                        description = "Default criteria, for queries that do not give one")
+    public Double criteria;
+    
+    @CommandLine.Option(names = {"-p", "--port"}, required = false, defaultValue = "8234")
+    public Integer port;
+    
+    @CommandLine.Option(names = {"-b", "--bind"}, required = false,
+                        description = "Address to listen on. Default is the loopback address, so only local clients "
+                                      + "can query")
+    public String bindAddress;
+    
+    @CommandLine.Option(names = {"--query-root"}, required = false,
+                        description = "Directory of the audio files that GET queries can give. Required to serve "
+                                      + "GETs on an address other than the loopback address")
+    public Path queryRoot;
+    
+    @CommandLine.Option(names = {"--stride"}, required = false, defaultValue = "8",
+                        description = "Positions the scan steps the index by. Above the --phase-step, the query is "
+                                      + "compared in several phases at each position, see StrideReport")
+    public Integer stride;
+    
+    @CommandLine.Option(names = {"--phase-step"}, required = false, defaultValue = "8",
+                        description = "Distance between the phases of the query. Larger is faster, but misses more")
+    public Integer phaseStep;
+    
+    @CommandLine.Option(names = {"-P", "--num-procs"}, required = false, defaultValue = "12",
+                        description = "Number of threads searching ranges of the indexes in parallel")
+    public Integer processes;
+    
+    @CommandLine.Option(names = {"-r", "--requests"}, required = false, defaultValue = "4",
+                        description = "Number of requests served at the same time")
+    public Integer requests;
+    
+    private final List<FingerprintDBSearcher> searchers = new ArrayList<>();
+    
+    //Whether GETs of audio files are served, see resolveQueryFile
+    private boolean serveFiles;
+    
+    //Whether all the indexes are made with the same parameters, so POSTed fingerprints fit them all
+    private boolean servePosts;
+    
+    public static void main(String... args) {
+        CommandLine app = new CommandLine(new CommandServe());
+        int exitCode = app.execute(args);
+        
+        System.exit(exitCode);
+    }
+    
+    @Override
+    public Integer call() throws Exception {
+        //Default value if criteria not set
+        criteria = Optional.ofNullable(criteria).orElse(FingerprintDBSearcher.DEFAULT_CRITERIA);
+        
+        //All the requests share the threads scanning the indexes
+        ForkJoinPool scanPool = new ForkJoinPool(processes);
+        CountingMetrics metrics = new CountingMetrics();
+        metrics.register("serve");
+        for (String dbfile : dbfiles) {
+            for (String indexFile : IndexManifest.getIndexFiles(dbfile)) {
+                FingerprintDBSearcher searcher = new FingerprintDBSearcher(indexFile);
+                searcher.setForkJoinPool(scanPool);
+                searcher.setMetrics(metrics);
+                searcher.setScanStride(stride);
+                searcher.setPhaseStep(phaseStep);
+                searchers.add(searcher);
+            }
+        }
+        
+        servePosts = searchers.stream().map(FingerprintDBSearcher::getFingerprintStrategy).distinct().count() == 1;
+        if (!servePosts) {
+            log.warn("The indexes are made with different parameters, so POSTed fingerprints are refused");
+        }
+        
+        InetAddress address = bindAddress == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bindAddress);
+        if (queryRoot != null) {
+            queryRoot = queryRoot.toRealPath();
+        }
+        serveFiles = queryRoot != null || address.isLoopbackAddress();
+        if (!serveFiles) {
+            log.warn("Serving on {} without a --query-root, so GET queries of audio files are refused", address);
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        ExecutorService requestPool = Executors.newFixedThreadPool(requests);
+        server.setExecutor(requestPool);
+        server.createContext("/search", this::handleSearch);
+        
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            log.info("Stopping server");
+            server.stop(1);
+            requestPool.shutdown();
+            scanPool.shutdown();
+            stopped.countDown();
+        }));
+        
+        server.start();
+        log.info("Serving searches in {} on http://{}:{}/search", dbfiles, address.getHostAddress(), port);
+        stopped.await();
+        return 0;
+    }
+    
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String response;
+        try {
+            response = search(exchange);
+        } catch (IllegalArgumentException e) {
+            status   = 400;
+            response = e.getMessage() + "\n";
+        } catch (Exception e) {
+            log.error("Failed to serve {}", exchange.getRequestURI(), e);
+            status   = 500;
+            response = e + "\n";
+        }
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        //Closing the response body ends the exchange
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    private String search(HttpExchange exchange) throws Exception {
+        Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+        double queryCriteria = Optional.ofNullable(parameters.get("criteria"))
+                                       .map(Double::parseDouble)
+                                       .orElse(criteria);
+        Integer top = Optional.ofNullable(parameters.get("top")).map(Integer::parseInt).orElse(null);
+        boolean first = Boolean.parseBoolean(parameters.get("first"));
+        if (top != null && (first || top <= 0)) {
+            throw new IllegalArgumentException("top must be positive, and cannot be given with first");
+        }
+        
+        //Each index is searched with fingerprints made with its own parameters. A POSTed query is searched as it is
+        Map<FingerprintStrategy, long[]> fingerprintsByStrategy = new HashMap<>();
+        long[] postedFingerprints = null;
+        if ("POST".equals(exchange.getRequestMethod())) {
+            if (!servePosts) {
+                throw new IllegalArgumentException("The indexes are made with different parameters, so fingerprints "
+                                                   + "cannot be searched in all of them. Please GET an audio file");
+            }
+            try (InputStream body = exchange.getRequestBody()) {
+                postedFingerprints = parseFingerprints(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } else if ("GET".equals(exchange.getRequestMethod())) {
+            String queryFile = resolveQueryFile(parameters.get("query"));
+            Long offset = Optional.ofNullable(parameters.get("offset")).map(Long::parseLong).orElse(null);
+            for (FingerprintDBSearcher searcher : searchers) {
+                FingerprintStrategy fingerprintStrategy = searcher.getFingerprintStrategy();
+                if (!fingerprintsByStrategy.containsKey(fingerprintStrategy)) {
+                    long[] fingerprints = fingerprintStrategy.getFingerprintsForFileForSearch(queryFile, offset);
+                    if (fingerprints == null) {
+                        throw new IllegalArgumentException("Could not get fingerprints for the query '" + queryFile
+                                                           + "'");
+                    }
+                    fingerprintsByStrategy.put(fingerprintStrategy, fingerprints);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported method " + exchange.getRequestMethod());
+        }
+        
+        List<IsmirSearchResult> results = new ArrayList<>();
+        for (FingerprintDBSearcher searcher : searchers) {
+            long[] fingerprints = postedFingerprints != null
+                                  ? postedFingerprints
+                                  : fingerprintsByStrategy.get(searcher.getFingerprintStrategy());
+            if (top != null) {
+                results.addAll(searcher.query_top(fingerprints, queryCriteria, top));
+            } else if (first) {
+                results.addAll(searcher.query_first(fingerprints, queryCriteria));
+                if (!results.isEmpty()) {
+                    break;
+                }
+            } else {
+                results.addAll(searcher.query_scan(fingerprints, queryCriteria));
+            }
+        }
+        if (top != null) {
+            //Equal distances are in the order of the indexes
+            results.sort(Comparator.comparingInt(IsmirSearchResult::getDist));
+            results = results.subList(0, Math.min(top, results.size()));
+        }
+        
+        StringBuilder response = new StringBuilder();
+        for (IsmirSearchResult result : results) {
+            response.append(result.toString());
+        }
+        return response.toString();
+    }
+    
+    //The real path of the audio file of a GET. Only local files are served, and only in the queryRoot if it is given,
+    //so the query cannot make ffmpeg read a URL or stdin
+    private String resolveQueryFile(String query) throws IOException {
+        if (query == null) {
+            throw new IllegalArgumentException("Please specify a query");
+        }
+        if (!serveFiles) {
+            throw new IllegalArgumentException("Queries of audio files are not served on this address, as the server "
+                                               + "has no --query-root. Please POST the fingerprints of the query");
+        }
+        Path queryFile = queryRoot == null ? Path.of(query) : queryRoot.resolve(query);
+        if (!Files.isRegularFile(queryFile)) {
+            throw new IllegalArgumentException("The query '" + query + "' is not a file");
+        }
+        queryFile = queryFile.toRealPath();
+        if (queryRoot != null && !queryFile.startsWith(queryRoot)) {
+            throw new IllegalArgumentException("The query '" + query + "' is not in the query root");
+        }
+        return queryFile.toString();
+    }
+    
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            String[] keyValue = parameter.split("=", 2);
+            parameters.put(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8),
+                           keyValue.length > 1 ? URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8) : "");
+        }
+        return parameters;
+    }
+    
+    private static long[] parseFingerprints(String body) {
+        String trimmed = body.trim();
+        if (trimmed.isEmpty()) {
+            throw new IllegalArgumentException("Please give the fingerprints of the query as the body");
+        }
+        try {
+            return Arrays.stream(trimmed.split("\\s+")).mapToLong(Long::parseUnsignedLong).toArray();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The fingerprints must be whitespace separated numbers: "
+                                               + e.getMessage());
+        }
+    }
+}
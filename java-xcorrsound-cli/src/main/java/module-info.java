@@ -5,5 +5,6 @@ module dk.kb.xcorrsound.cli {
     
     requires dk.kb.xcorrsound;
     requires org.slf4j;
+    requires jdk.httpserver;
     
 }
\ No newline at end of file
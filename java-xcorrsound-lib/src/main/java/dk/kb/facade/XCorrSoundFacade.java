@@ -2,20 +2,40 @@ package dk.kb.facade;
 
 import java.io.DataInputStream;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 
+import javax.sound.sampled.AudioInputStream;
+
 import org.apache.commons.io.IOUtils;
 
 import dk.kb.xcorrsound.FingerprintStrategyIsmir;
 
 public class XCorrSoundFacade {
 
+    //Thread safe, and keeps an engine per thread, so it is shared by all the calls
+    private static final FingerprintStrategyIsmir fpGenerator = new FingerprintStrategyIsmir(2048, 64, 5512, 32);
+    
     public static long[] generateFingerPrintFromSoundFile(String fileName) throws Exception{
-        FingerprintStrategyIsmir fpGenerator = new FingerprintStrategyIsmir(2048, 64, 5512, 32);
          long[] fp =  fpGenerator.getFingerprintsForFileForIndex(fileName);
          return fp;
     }
     
+    //Fingerprints of samples already in memory, such as from a capture, at 5512 Hz, so no file has to be written
+    public static long[] generateFingerPrintFromSamples(short[] samples) {
+        return fpGenerator.getFingerprintsForSamples(samples);
+    }
+    
+    public static long[] generateFingerPrintFromSamples(ShortBuffer samples) {
+        return fpGenerator.getFingerprintsForSamples(samples);
+    }
+    
+    //Fingerprints of PCM audio at 5512 Hz. The stream is read to the end, but not closed
+    public static long[] generateFingerPrintFromAudioStream(AudioInputStream audio) throws IOException {
+        return fpGenerator.getFingerprintsForAudio(audio);
+    }
+    
     /*
      * Probably move impl to a util class
      * Not sure this will be used except by unittest since fingerprints are concatenated
@@ -0,0 +1,202 @@
+package dk.kb.xcorrsound;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//Metrics kept in striped counters, so the threads of a parallel search do not contend for them.
+//register makes them readable over JMX, eg. in jconsole, as dk.kb.xcorrsound:type=Metrics,name=<name>
+public class CountingMetrics implements Metrics, CountingMetricsMBean {
+    
+    private final LongAdder searches = new LongAdder();
+    
+    private final LongAdder queries = new LongAdder();
+    
+    private final LongAdder searchNanos = new LongAdder();
+    
+    private final LongAdder positionsScanned = new LongAdder();
+    
+    private final LongAdder earlyTerminations = new LongAdder();
+    
+    private final LongAdder positionsPruned = new LongAdder();
+    
+    private final LongAdder nearPosChecks = new LongAdder();
+    
+    private final LongAdder windowRereads = new LongAdder();
+    
+    private final LongAdder bytesRead = new LongAdder();
+    
+    private final LongAdder hits = new LongAdder();
+    
+    private final LongAdder decodeNanos = new LongAdder();
+    
+    private final LongAdder fingerprintNanos = new LongAdder();
+    
+    private final LongAdder writeNanos = new LongAdder();
+    
+    //Register these metrics with the platform MBean server
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("dk.kb.xcorrsound:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+    
+    @Override
+    public void searched(int queries, long nanos) {
+        this.searches.increment();
+        this.queries.add(queries);
+        this.searchNanos.add(nanos);
+    }
+    
+    @Override
+    public void positionsScanned(long positions) {
+        positionsScanned.add(positions);
+    }
+    
+    @Override
+    public void earlyTerminations(long positions) {
+        earlyTerminations.add(positions);
+    }
+    
+    @Override
+    public void positionsPruned(long positions) {
+        positionsPruned.add(positions);
+    }
+    
+    @Override
+    public void nearPosChecks(long checks) {
+        nearPosChecks.add(checks);
+    }
+    
+    @Override
+    public void windowRereads(long windows) {
+        windowRereads.add(windows);
+    }
+    
+    @Override
+    public void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+    
+    @Override
+    public void hits(long hits) {
+        this.hits.add(hits);
+    }
+    
+    @Override
+    public void decoded(long nanos) {
+        decodeNanos.add(nanos);
+    }
+    
+    @Override
+    public void fingerprinted(long nanos) {
+        fingerprintNanos.add(nanos);
+    }
+    
+    @Override
+    public void written(long nanos) {
+        writeNanos.add(nanos);
+    }
+    
+    @Override
+    public long getSearches() {
+        return searches.sum();
+    }
+    
+    @Override
+    public long getQueries() {
+        return queries.sum();
+    }
+    
+    @Override
+    public long getSearchMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(searchNanos.sum());
+    }
+    
+    @Override
+    public long getPositionsScanned() {
+        return positionsScanned.sum();
+    }
+    
+    @Override
+    public long getEarlyTerminations() {
+        return earlyTerminations.sum();
+    }
+    
+    @Override
+    public double getEarlyTerminationRate() {
+        long positions = getPositionsScanned();
+        return positions == 0 ? 0.0 : (double) getEarlyTerminations() / positions;
+    }
+    
+    @Override
+    public long getPositionsPruned() {
+        return positionsPruned.sum();
+    }
+    
+    @Override
+    public long getNearPosChecks() {
+        return nearPosChecks.sum();
+    }
+    
+    @Override
+    public long getWindowRereads() {
+        return windowRereads.sum();
+    }
+    
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+    
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    @Override
+    public long getDecodeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(decodeNanos.sum());
+    }
+    
+    @Override
+    public long getFingerprintMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(fingerprintNanos.sum());
+    }
+    
+    @Override
+    public long getWriteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(writeNanos.sum());
+    }
+    
+    @Override
+    public void reset() {
+        for (LongAdder adder : new LongAdder[]{searches, queries, searchNanos, positionsScanned, earlyTerminations,
+                                               positionsPruned, nearPosChecks, windowRereads, bytesRead, hits,
+                                               decodeNanos, fingerprintNanos, writeNanos}) {
+            adder.reset();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "CountingMetrics{" +
+               "searches=" + getSearches() +
+               ", queries=" + getQueries() +
+               ", searchMillis=" + getSearchMillis() +
+               ", positionsScanned=" + getPositionsScanned() +
+               ", earlyTerminations=" + getEarlyTerminations() +
+               ", earlyTerminationRate=" + getEarlyTerminationRate() +
+               ", positionsPruned=" + getPositionsPruned() +
+               ", nearPosChecks=" + getNearPosChecks() +
+               ", windowRereads=" + getWindowRereads() +
+               ", bytesRead=" + getBytesRead() +
+               ", hits=" + getHits() +
+               ", decodeMillis=" + getDecodeMillis() +
+               ", fingerprintMillis=" + getFingerprintMillis() +
+               ", writeMillis=" + getWriteMillis() +
+               '}';
+    }
+}
@@ -0,0 +1,36 @@
+package dk.kb.xcorrsound;
+
+//The JMX view of CountingMetrics. Times are in milliseconds
+public interface CountingMetricsMBean {
+    
+    long getSearches();
+    
+    long getQueries();
+    
+    long getSearchMillis();
+    
+    long getPositionsScanned();
+    
+    long getEarlyTerminations();
+    
+    //The part of the scanned positions that were given up by the early termination
+    double getEarlyTerminationRate();
+    
+    long getPositionsPruned();
+    
+    long getNearPosChecks();
+    
+    long getWindowRereads();
+    
+    long getBytesRead();
+    
+    long getHits();
+    
+    long getDecodeMillis();
+    
+    long getFingerprintMillis();
+    
+    long getWriteMillis();
+    
+    void reset();
+}
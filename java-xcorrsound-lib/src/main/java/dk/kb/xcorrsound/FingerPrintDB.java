@@ -2,16 +2,14 @@ package dk.kb.xcorrsound;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
@@ -19,11 +17,12 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Map;
-import java.util.TreeMap;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
 
 public class FingerPrintDB  {
     
@@ -34,25 +33,71 @@ public class FingerPrintDB  {
     // is significantly different from noise.
     
     private final FingerprintStrategy fingerprintStrategy;
+    //The parameters of the fingerprints, as the header of an empty index
+    private final IndexHeader parameters;
     protected String dbFilename;
-    protected long dbFileLength;
-    protected Map<Pair<Integer,Integer>, String> offsetsToFile = new TreeMap<>();
+    private OffsetMap offsetMap;
     
+    private Metrics metrics = Metrics.NONE;
     
     
+    
+    //Use the parameters in the header of the index, or the defaults for an index without a header
     public FingerPrintDB(String dbFilename) throws IOException {
-        this(2048, 64, 5512, 32, dbFilename);
+        this(readParameters(dbFilename), dbFilename);
+    }
+    
+    private FingerPrintDB(IndexHeader header, String dbFilename) throws IOException {
+        this(header.getFrameLength(), header.getAdvance(), header.getSampleRate(), header.getBands(), dbFilename);
     }
+    
     public FingerPrintDB(int frameLength, int advance, int sampleRate, int bands, String dbFilename)
             throws IOException {
+        checkNotManifest(dbFilename);
         this.fingerprintStrategy = new FingerprintStrategyIsmir(frameLength, advance, sampleRate, bands);
+        this.parameters          = IndexHeader.create(frameLength, advance, sampleRate, bands);
+        IndexHeader header = IndexHeader.read(dbFilename);
+        if (header != null && !header.matches(frameLength, advance, sampleRate, bands)) {
+            throw new IllegalArgumentException("The index " + dbFilename + " was made with " + header
+                                               + ", not with frameLength=" + frameLength + ", advance=" + advance
+                                               + ", sampleRate=" + sampleRate + ", bands=" + bands);
+        }
         readMapFile(dbFilename);
     }
     
+    //The header of the index, or the header of an index made with the default parameters if it has none
+    public static IndexHeader readParameters(String dbFilename) throws IOException {
+        checkNotManifest(dbFilename);
+        return Optional.ofNullable(IndexHeader.read(dbFilename)).orElse(IndexHeader.create(2048, 64, 5512, 32));
+    }
+    
+    //A manifest is text, which would be read as an index without a header, so it is rejected. Its segments must be
+    //opened one by one
+    private static void checkNotManifest(String dbFilename) {
+        if (dbFilename != null && IndexManifest.isManifest(dbFilename)) {
+            throw new IllegalArgumentException("The index " + dbFilename + " is a manifest of several indexes. Open "
+                                               + "each of its segments instead, see IndexManifest.getIndexFiles");
+        }
+    }
+    
     public FingerprintStrategy getFingerprintStrategy() {
         return fingerprintStrategy;
     }
     
+    public int getBands() {
+        return parameters.getBands();
+    }
+    
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    //Where to report the counts and timings of searching and indexing
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        fingerprintStrategy.setMetrics(metrics);
+    }
+    
     String getMapFile(String filePath) {
         final Path path = Path.of(filePath);
         String filename = path.getFileName().toString();
@@ -67,7 +112,6 @@ public class FingerPrintDB  {
             return;
         }
         this.dbFilename = Path.of(filename).toAbsolutePath().toString();
-        this.dbFileLength = new File(dbFilename).length();
         
         String mapFile = getMapFile(filename);
         
@@ -77,49 +121,35 @@ public class FingerPrintDB  {
         }
         //file.getParentFile().mkdirs();
         //file.createNewFile();
+    }
     
-        int previousEnd = 0;
-        try (BufferedReader fin = IOUtils.buffer(new FileReader(mapFile, StandardCharsets.UTF_8))) {
-            String line = fin.readLine();
-            while (line != null) {
-                String[] splits = line.split("\\s+", 2);
-                int currentEnd = Integer.parseInt(splits[0]);
-                offsetsToFile.put(Pair.of(previousEnd, currentEnd), splits[1]);
-                previousEnd = currentEnd;
-                line = fin.readLine();
-            }
+    //The map from positions in the index to the indexed files. It is opened on first use, as only searching needs it
+    protected synchronized OffsetMap getOffsetMap() throws IOException {
+        if (offsetMap == null) {
+            offsetMap = OffsetMap.open(dbFilename);
+        }
+        return offsetMap;
+    }
+    
+    //Drop the map if the indexer has appended to the text map since it was opened, so the next use reads the new files
+    protected synchronized void refreshOffsetMap() {
+        if (offsetMap != null && offsetMap.getTextLength() != new File(dbFilename + ".map").length()) {
+            offsetMap = null;
         }
-        
-        
     }
     
     protected void writeDBToDisk(String dbFilename,
                                  long[] db,
                                  String indexedName) throws IOException {
         log.info("Writing index to disk");
-        
-        File file = new File(dbFilename).getAbsoluteFile();
-        if (!file.exists()) {
-            FileUtils.touch(file);
-        }
-        
-        long initialSize = Files.size(Path.of(dbFilename));
-        long end;
-        try (DataOutputStream of = new DataOutputStream(IOUtils.buffer(FileUtils.openOutputStream(new File(dbFilename),
-                                                                                                  true)))) {
-    
-            //IntBuffer buffer = ByteBuffer.allocate(db.length / 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(db);
-            
-            
-            for (int i = 0, dbLength = db.length; i < dbLength; i++) {
-                long j = db[i];
-                log.trace("db[{}]={}", i, j);
-                //Written as LittleEndian
-                of.writeInt(Integer.reverseBytes((int) j));
-            }
-            end = (of.size() + initialSize) / 4;
+        try (IndexAppender appender = appendToDB(dbFilename, indexedName)) {
+            appender.accept(db, db.length);
+            appender.commit();
         }
-        
+        log.info("Index written to disk");
+    }
+    
+    private static void writeMapEntry(String dbFilename, long end, String indexedName) throws IOException {
         String mapFilename = dbFilename + ".map";
         
         try (Writer mof = IOUtils.buffer(new FileWriter(mapFilename, StandardCharsets.UTF_8, true))) {
@@ -128,7 +158,114 @@ public class FingerPrintDB  {
             mof.write(indexedName);
             mof.write("\n");
         }
-        log.info("Index written to disk");
+    }
+    
+    //Start appending the fingerprints of one file to the index, see IndexAppender
+    protected IndexAppender appendToDB(String dbFilename, String indexedName) throws IOException {
+        //The appender adds to the header it is given, so it gets its own
+        IndexHeader newHeader = IndexHeader.create(parameters.getFrameLength(),
+                                                   parameters.getAdvance(),
+                                                   parameters.getSampleRate(),
+                                                   parameters.getBands());
+        return new IndexAppender(dbFilename, indexedName, newHeader, metrics);
+    }
+    
+    //Appends the fingerprints of one file to the index as they are generated. The file is added to the header and the
+    //map by commit. If the appender is closed without commit, the index is truncated to what it was, so a failed file
+    //leaves no fingerprints behind for the next file to claim.
+    //A new index gets a header, and stores the fingerprints in the width of the bands, see FingerprintCodec. An index
+    //without a header is appended to as before, in 32 bits, and does not get a header
+    protected static class IndexAppender implements FingerprintSink, Closeable {
+        
+        private final String dbFilename;
+        
+        private final String indexedName;
+        
+        private final FileChannel channel;
+        
+        private final long initialSize;
+        
+        private final DataOutputStream of;
+        
+        private final Metrics metrics;
+        
+        //Null for an index without a header
+        private final IndexHeader header;
+        
+        private final FingerprintCodec codec;
+        
+        private long count = 0;
+        
+        private boolean committed = false;
+        
+        IndexAppender(String dbFilename, String indexedName, IndexHeader newHeader, Metrics metrics)
+                throws IOException {
+            this.dbFilename  = dbFilename;
+            this.indexedName = indexedName;
+            this.metrics     = metrics;
+            this.channel     = FileChannel.open(Path.of(dbFilename),
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE);
+            if (channel.size() == 0) {
+                newHeader.write(channel);
+                this.header = newHeader;
+            } else {
+                this.header = IndexHeader.read(dbFilename);
+            }
+            this.codec = header == null ? FingerprintCodec.INT : header.getCodec();
+            //Fingerprints after the record count are left by a file that failed, and are overwritten
+            this.initialSize = header == null
+                               ? channel.size()
+                               : header.getDataOffset() + header.getRecordCount() * codec.getBytes();
+            channel.truncate(initialSize);
+            channel.position(initialSize);
+            this.of = new DataOutputStream(IOUtils.buffer(Channels.newOutputStream(channel)));
+        }
+        
+        @Override
+        public void accept(long[] fingerprints, int count) throws IOException {
+            long startTime = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                codec.write(of, fingerprints[i]);
+            }
+            if (header != null) {
+                header.append(fingerprints, count);
+            }
+            this.count += count;
+            metrics.written(System.nanoTime() - startTime);
+        }
+        
+        //Number of fingerprints appended
+        public long getCount() {
+            return count;
+        }
+        
+        public void commit() throws IOException {
+            long startTime = System.nanoTime();
+            of.flush();
+            long end;
+            if (header != null) {
+                header.write(channel);
+                end = header.getRecordCount();
+            } else {
+                end = channel.size() / 4;
+            }
+            writeMapEntry(dbFilename, end, indexedName);
+            committed = true;
+            metrics.written(System.nanoTime() - startTime);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!committed) {
+                    of.flush();
+                    channel.truncate(initialSize);
+                }
+            } finally {
+                channel.close();
+            }
+        }
     }
     
     
@@ -0,0 +1,185 @@
+package dk.kb.xcorrsound;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+
+//How the fingerprints are stored in an index, by the number of bands of the fingerprints. Each fingerprint is stored
+//as the smallest little endian primitive that holds all its bands, so the size of the index, and the bandwidth of
+//scanning it, follows the real width of the fingerprints.
+//In memory, the fingerprints are in the Buffer of the same primitive, so the search can use loops for that type.
+//Index files without a header are always INT.
+public enum FingerprintCodec {
+    SHORT(Short.SIZE) {
+        @Override
+        public void write(DataOutput out, long fingerprint) throws IOException {
+            out.writeShort(Short.reverseBytes((short) fingerprint));
+        }
+        
+        @Override
+        public ShortBuffer view(ByteBuffer bytes) {
+            return bytes.asShortBuffer();
+        }
+        
+        @Override
+        public ShortBuffer allocate(int count) {
+            return ShortBuffer.allocate(count);
+        }
+        
+        @Override
+        public long get(Buffer buffer, int index) {
+            return ((ShortBuffer) buffer).get(index) & 0xFFFFL;
+        }
+        
+        @Override
+        public void put(Buffer buffer, int index, long fingerprint) {
+            ((ShortBuffer) buffer).put(index, (short) fingerprint);
+        }
+        
+        @Override
+        public void copy(Buffer src, int srcIndex, Buffer dest, int destIndex, int count) {
+            ((ShortBuffer) dest).duplicate()
+                                .limit(destIndex + count)
+                                .position(destIndex)
+                                .put(((ShortBuffer) src).duplicate().limit(srcIndex + count).position(srcIndex));
+        }
+    },
+    INT(Integer.SIZE) {
+        @Override
+        public void write(DataOutput out, long fingerprint) throws IOException {
+            out.writeInt(Integer.reverseBytes((int) fingerprint));
+        }
+        
+        @Override
+        public IntBuffer view(ByteBuffer bytes) {
+            return bytes.asIntBuffer();
+        }
+        
+        @Override
+        public IntBuffer allocate(int count) {
+            return IntBuffer.allocate(count);
+        }
+        
+        @Override
+        public long get(Buffer buffer, int index) {
+            return Integer.toUnsignedLong(((IntBuffer) buffer).get(index));
+        }
+        
+        @Override
+        public void put(Buffer buffer, int index, long fingerprint) {
+            ((IntBuffer) buffer).put(index, (int) fingerprint);
+        }
+        
+        @Override
+        public void copy(Buffer src, int srcIndex, Buffer dest, int destIndex, int count) {
+            ((IntBuffer) dest).duplicate()
+                              .limit(destIndex + count)
+                              .position(destIndex)
+                              .put(((IntBuffer) src).duplicate().limit(srcIndex + count).position(srcIndex));
+        }
+    },
+    LONG(Long.SIZE) {
+        @Override
+        public void write(DataOutput out, long fingerprint) throws IOException {
+            out.writeLong(Long.reverseBytes(fingerprint));
+        }
+        
+        @Override
+        public LongBuffer view(ByteBuffer bytes) {
+            return bytes.asLongBuffer();
+        }
+        
+        @Override
+        public LongBuffer allocate(int count) {
+            return LongBuffer.allocate(count);
+        }
+        
+        @Override
+        public long get(Buffer buffer, int index) {
+            return ((LongBuffer) buffer).get(index);
+        }
+        
+        @Override
+        public void put(Buffer buffer, int index, long fingerprint) {
+            ((LongBuffer) buffer).put(index, fingerprint);
+        }
+        
+        @Override
+        public void copy(Buffer src, int srcIndex, Buffer dest, int destIndex, int count) {
+            ((LongBuffer) dest).duplicate()
+                               .limit(destIndex + count)
+                               .position(destIndex)
+                               .put(((LongBuffer) src).duplicate().limit(srcIndex + count).position(srcIndex));
+        }
+    };
+    
+    private final int bits;
+    
+    FingerprintCodec(int bits) {
+        this.bits = bits;
+    }
+    
+    //The codec that holds fingerprints of this many bands
+    public static FingerprintCodec forBands(int bands) {
+        if (bands <= Short.SIZE) {
+            return SHORT;
+        }
+        if (bands <= Integer.SIZE) {
+            return INT;
+        }
+        return LONG;
+    }
+    
+    //The codec that stores this many bits per fingerprint
+    public static FingerprintCodec forBits(int bits) {
+        for (FingerprintCodec codec : values()) {
+            if (codec.bits == bits) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("No codec stores " + bits + " bits per fingerprint");
+    }
+    
+    //Bits stored per fingerprint
+    public int getBits() {
+        return bits;
+    }
+    
+    //Bytes stored per fingerprint
+    public int getBytes() {
+        return bits / Byte.SIZE;
+    }
+    
+    //The lower getBits() bits of the fingerprint
+    public long mask(long fingerprint) {
+        return bits == Long.SIZE ? fingerprint : fingerprint & ((1L << bits) - 1);
+    }
+    
+    //Write the fingerprint as stored in the index, in little endian
+    public abstract void write(DataOutput out, long fingerprint) throws IOException;
+    
+    //The bytes, as fingerprints. The byte order must be set on the bytes
+    public abstract Buffer view(ByteBuffer bytes);
+    
+    //A buffer on the heap for count fingerprints
+    public abstract Buffer allocate(int count);
+    
+    //The fingerprint at index, as the unsigned value stored
+    public abstract long get(Buffer buffer, int index);
+    
+    public abstract void put(Buffer buffer, int index, long fingerprint);
+    
+    //Copy count fingerprints from src[srcIndex...] to dest[destIndex...]. The positions of the buffers are not changed
+    public abstract void copy(Buffer src, int srcIndex, Buffer dest, int destIndex, int count);
+    
+    //Set the fingerprints [from, to) of the buffer to 0
+    public void clear(Buffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            put(buffer, i, 0);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package dk.kb.xcorrsound;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+//Generates ISMIR fingerprints from samples.
+//The Hanning window, log scale, FFT plan and scratch buffers are made once, so the frames are fingerprinted without
+//allocations. An engine is not thread safe, so each thread should have its own.
+//Only the bits of a fingerprint depend on the previous frame, so with a forkJoinPool the band energies of the frames
+//are computed in parallel, and the bits are then derived from them in order. The energies are computed by the same
+//code in both cases, so the fingerprints are the same.
+public class FingerprintEngine {
+    
+    //Frames whose energies are computed at a time in parallel, so a long input does not need all its energies at once
+    private static final int PARALLEL_BATCH_FRAMES = 16 * 1024;
+    
+    //Do not split the frames of a batch into ranges smaller than this
+    private static final int MIN_PARALLEL_FRAMES = 64;
+    
+    private final int frameLength;
+    
+    private final int advance;
+    
+    private final double[] hanningWindow;
+    
+    private final int[] logScale;
+    
+    private final DoubleFFT_1D plan;
+    
+    //The windowed frame, transformed in place
+    private final double[] transform;
+    
+    private double[] energy;
+    
+    private double[] prevEnergy;
+    
+    //Pool for computing the band energies of the frames in parallel. If null, the frames are fingerprinted one by one
+    //by the calling thread
+    private ForkJoinPool forkJoinPool = null;
+    
+    //The engines that compute the band energies in the threads of the pool, as they need their own buffers
+    private final ThreadLocal<FingerprintEngine> workers;
+    
+    //The band energies of a parallel batch, one frame after the other, each with the zero after the last band
+    private double[] batchEnergies = null;
+    
+    public FingerprintEngine(int frameLength, int advance, int sampleRate, int bands) {
+        this.frameLength   = frameLength;
+        this.advance       = advance;
+        this.hanningWindow = getHanningWindow(frameLength);
+        this.logScale      = getLogScale(2000, frameLength, sampleRate, bands);
+        assert logScale.length == bands + 1;
+        this.plan       = new DoubleFFT_1D(frameLength);
+        this.transform  = new double[frameLength];
+        this.energy     = new double[logScale.length];
+        this.prevEnergy = new double[logScale.length];
+        this.workers    = ThreadLocal.withInitial(() -> new FingerprintEngine(frameLength,
+                                                                              advance,
+                                                                              sampleRate,
+                                                                              bands));
+    }
+    
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+    
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+    
+    public int getFrameLength() {
+        return frameLength;
+    }
+    
+    public int getAdvance() {
+        return advance;
+    }
+    
+    //The number of fingerprints for numSamples samples. A frame must end before the last sample
+    public int getNumFingerprints(int numSamples) {
+        if (numSamples <= frameLength) {
+            return 0;
+        }
+        return (numSamples - frameLength - 1) / advance + 1;
+    }
+    
+    //Generate the fingerprints of input, or only the first maxFingerprints of them if not null
+    public long[] generate(short[] input, Integer maxFingerprints) {
+        int numFingerprints = getNumFingerprints(input.length);
+        if (maxFingerprints != null) {
+            numFingerprints = Math.min(numFingerprints, maxFingerprints);
+        }
+        long[] output = new long[numFingerprints];
+        reset();
+        fingerprint(input, numFingerprints, output);
+        return output;
+    }
+    
+    //Forget the energy of the previous frame, as before the first frame of a stream
+    public void reset() {
+        Arrays.fill(prevEnergy, 0.0);
+    }
+    
+    //The fingerprint of the frame from frameStart in input, given the frames before it
+    public long fingerprint(short[] input, int frameStart) {
+        computeEnergyInBands(input, frameStart, energy, 0);
+        long fingerprint = getFingerprint(prevEnergy, 0, energy, 0, logScale.length);
+        
+        double[] swap = prevEnergy;
+        prevEnergy = energy;
+        energy     = swap;
+        return fingerprint;
+    }
+    
+    //The fingerprints of the count frames from input[0], input[advance], ... to output[0, count), given the frames
+    //before them, in parallel if there is a forkJoinPool
+    public void fingerprint(short[] input, int count, long[] output) {
+        if (forkJoinPool == null || count < 2 * MIN_PARALLEL_FRAMES) {
+            for (int i = 0; i < count; i++) {
+                output[i] = fingerprint(input, i * advance);
+            }
+            return;
+        }
+        int stride = logScale.length;
+        if (batchEnergies == null) {
+            batchEnergies = new double[PARALLEL_BATCH_FRAMES * stride];
+        }
+        for (int batchStart = 0; batchStart < count; batchStart += PARALLEL_BATCH_FRAMES) {
+            int batchEnd = Math.min(batchStart + PARALLEL_BATCH_FRAMES, count);
+            forkJoinPool.invoke(new EnergyTask(input, batchStart, batchStart, batchEnd));
+            
+            //The cheap part, that needs the frames in order
+            double[] prev = prevEnergy;
+            int prevOffset = 0;
+            for (int i = batchStart; i < batchEnd; i++) {
+                int offset = (i - batchStart) * stride;
+                output[i]  = getFingerprint(prev, prevOffset, batchEnergies, offset, stride);
+                prev       = batchEnergies;
+                prevOffset = offset;
+            }
+            System.arraycopy(batchEnergies, (batchEnd - 1 - batchStart) * stride, prevEnergy, 0, stride);
+        }
+    }
+    
+    //Compute the band energies of the frames [from, to) of a batch from batchStart, splitting the frames between the
+    //threads of the pool
+    private class EnergyTask extends RecursiveAction {
+        
+        //RecursiveAction is Serializable, but a task is never serialized
+        private static final long serialVersionUID = 1L;
+        
+        private final short[] input;
+        
+        private final int batchStart;
+        
+        private final int from;
+        
+        private final int to;
+        
+        EnergyTask(short[] input, int batchStart, int from, int to) {
+            this.input      = input;
+            this.batchStart = batchStart;
+            this.from       = from;
+            this.to         = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from < 2 * MIN_PARALLEL_FRAMES) {
+                FingerprintEngine worker = workers.get();
+                for (int i = from; i < to; i++) {
+                    worker.computeEnergyInBands(input, i * advance, batchEnergies, (i - batchStart) * logScale.length);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new EnergyTask(input, batchStart, from, middle), new EnergyTask(input, batchStart, middle, to));
+        }
+    }
+    
+    //Compute the energies of the bands of the frame from frameStart in input to energies[offset, offset+bands). The
+    //entry after the last band is left as it is, which must be zero
+    private void computeEnergyInBands(short[] input, int frameStart, double[] energies, int offset) {
+        for (int i = 0; i < frameLength; ++i) {
+            transform[i] = input[frameStart + i] * hanningWindow[i];
+        }
+        plan.realForward(transform);
+        
+        for (int i = 0; i < logScale.length - 1; ++i) {
+            
+            double absVal = 0.0;
+            for (int j = logScale[i]; j < logScale[i + 1]; ++j) {
+                absVal += absValue(j);
+            }
+            
+            energies[offset + i] = absVal / (logScale[i + 1] - logScale[i]);
+        }
+    }
+    
+    //The absolute value of bin j of the transform. realForward only stores the first half of the bins, as the rest
+    //are the complex conjugates of these
+    private double absValue(int j) {
+        if (j > frameLength / 2) {
+            j = frameLength - j;
+        }
+        if (j == 0) {
+            return Math.abs(transform[0]);
+        }
+        if (2 * j == frameLength) {
+            return Math.abs(transform[1]);
+        }
+        if (2 * j + 1 == frameLength) {
+            return abs(transform[frameLength - 1], transform[1]);
+        }
+        return abs(transform[2 * j], transform[2 * j + 1]);
+    }
+    
+    //As Complex.abs, to give the same fingerprints
+    private static double abs(double real, double imaginary) {
+        if (Math.abs(real) < Math.abs(imaginary)) {
+            if (imaginary == 0.0) {
+                return Math.abs(real);
+            }
+            double q = real / imaginary;
+            return Math.abs(imaginary) * Math.sqrt(1 + q * q);
+        } else {
+            if (real == 0.0) {
+                return Math.abs(imaginary);
+            }
+            double q = imaginary / real;
+            return Math.abs(real) * Math.sqrt(1 + q * q);
+        }
+    }
+    
+    //The fingerprint from the energies of a frame and the frame before it, each of length entries from their offset
+    private static long getFingerprint(double[] prevEnergy, int prevOffset, double[] energy, int offset, int length) {
+        
+        long fingerprint = 0;
+        
+        for (int bitPos = 0; bitPos < length - 1; ++bitPos) {
+            double val = (energy[offset + bitPos] - energy[offset + bitPos + 1])
+                         - (prevEnergy[prevOffset + bitPos] - prevEnergy[prevOffset + bitPos + 1]);
+            
+            long bit = (val > 0) ? 1 : 0;
+            
+            fingerprint = fingerprint + (bit << bitPos);
+            
+        }
+        
+        return fingerprint;
+    }
+    
+    private static double[] getHanningWindow(int windowLength) {
+        double[] window = new double[windowLength];
+        
+        for (int i = 0; i < windowLength; ++i) {
+            window[i] = (25.0 / 46.0) - (21.0 / 46.0) * Math.cos((2 * Math.PI * i) / (windowLength - 1));
+        }
+        return window;
+    }
+    
+    private static int[] getLogScale(double maxFrequency, int frameLength, int sampleRate, int bands) {
+        bands = bands + 1;
+        int[] indices = new int[bands];
+        
+        double logMin = Math.log(318.0) / Math.log(2);
+        double logMax = Math.log(maxFrequency) / Math.log(2);
+        
+        double delta = (logMax - logMin) / bands; //linear increase on log scale
+        
+        double sum = 0.0;
+        for (int i = 0; i < bands; ++i) {
+            
+            double hz = Math.pow(2, logMin + sum);
+            
+            // hz = idx*(sampleRate/frameLength)
+            // => idx = ceil(hz * (frameLength / sampleRate))
+            int idx = (int) hz * frameLength / sampleRate;
+            indices[i] = idx;
+            
+            sum += delta;
+        }
+        return indices;
+    }
+}
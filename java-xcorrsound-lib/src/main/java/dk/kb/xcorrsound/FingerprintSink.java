@@ -0,0 +1,10 @@
+package dk.kb.xcorrsound;
+
+import java.io.IOException;
+
+//Receives fingerprints in chunks as they are generated
+public interface FingerprintSink {
+    
+    //Receive fingerprints[0, count). The array is reused for the next chunk, so it must not be kept
+    void accept(long[] fingerprints, int count) throws IOException;
+}
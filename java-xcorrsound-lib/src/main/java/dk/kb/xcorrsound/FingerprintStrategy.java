@@ -1,18 +1,138 @@
 package dk.kb.xcorrsound;
 
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public interface FingerprintStrategy {
     
     long[] getFingerprintsForFileForIndex(String filename)
             throws IOException, UnsupportedAudioFileException, InterruptedException;
     
+    //Generate the fingerprints for the file and pass them to the sink in chunks as they are generated, so the file
+    //does not have to fit in memory
+    default void streamFingerprintsForFileForIndex(String filename, FingerprintSink sink)
+            throws IOException, UnsupportedAudioFileException, InterruptedException {
+        long[] fingerprints = getFingerprintsForFileForIndex(filename);
+        if (fingerprints == null) {
+            throw new IOException("Failed to generate fingerprints for '" + filename + "'");
+        }
+        sink.accept(fingerprints, fingerprints.length);
+    }
+    
+    //Like streamFingerprintsForFileForIndex, but the fingerprints are passed on for every chunkSamples samples, so a
+    //live stream, such as on stdin, is fingerprinted as it arrives
+    default void streamFingerprintsForFile(String filename, int chunkSamples, FingerprintSink sink)
+            throws IOException, UnsupportedAudioFileException, InterruptedException {
+        streamFingerprintsForFileForIndex(filename, sink);
+    }
+    
+    //Generate the fingerprints of the audio and pass them to the sink for every chunkSamples samples. The audio is
+    //read to the end, but not closed. It must be PCM at the sample rate of the strategy, as it is not converted.
+    //By default, the fingerprints of all the audio are passed on at once
+    default void streamFingerprintsForAudio(AudioInputStream audio, int chunkSamples, FingerprintSink sink)
+            throws IOException {
+        long[] fingerprints = getFingerprintsForAudio(audio);
+        sink.accept(fingerprints, fingerprints.length);
+    }
+    
+    //Decode the audio of the file to samples, for getFingerprintsForSamples. Returns null if it could not be decoded,
+    //or if the strategy does not decode files, as by default. The indexer then streams the file to the index instead
+    default short[] getSamplesForFile(String filename)
+            throws IOException, UnsupportedAudioFileException, InterruptedException {
+        return null;
+    }
+    
+    //Like getSamplesForFile, but at most maxSamples + 1 samples are decoded, so a file longer than maxSamples can be
+    //told from the others without holding all of it in memory
+    default short[] getSamplesForFile(String filename, int maxSamples)
+            throws IOException, UnsupportedAudioFileException, InterruptedException {
+        short[] samples = getSamplesForFile(filename);
+        if (samples == null || samples.length <= maxSamples) {
+            return samples;
+        }
+        return Arrays.copyOf(samples, maxSamples + 1);
+    }
+    
+    //The fingerprints of all of the samples, as for a file to index. By default, the samples are written to a
+    //temporary WAV file at the sample rate of the strategy, for getFingerprintsForFileForIndex
+    default long[] getFingerprintsForSamples(short[] samples) {
+        try {
+            Path wavFile = Files.createTempFile("samples", ".wav");
+            try {
+                ByteBuffer bytes = ByteBuffer.allocate(samples.length * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                bytes.asShortBuffer().put(samples);
+                AudioFormat format = new AudioFormat(getSampleRate(), Short.SIZE, 1, true, false);
+                try (AudioInputStream audio = new AudioInputStream(new ByteArrayInputStream(bytes.array()),
+                                                                   format,
+                                                                   samples.length)) {
+                    AudioSystem.write(audio, AudioFileFormat.Type.WAVE, wavFile.toFile());
+                }
+                long[] fingerprints = getFingerprintsForFileForIndex(wavFile.toString());
+                if (fingerprints == null) {
+                    throw new IOException("Failed to generate fingerprints for " + samples.length + " samples");
+                }
+                return fingerprints;
+            } finally {
+                Files.deleteIfExists(wavFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (UnsupportedAudioFileException e) {
+            throw new UncheckedIOException(new IOException("Failed to generate fingerprints for samples", e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while generating fingerprints"));
+        }
+    }
+    
+    //The fingerprints of the remaining samples of the buffer, as for a file to index. The position of the buffer is
+    //not changed
+    default long[] getFingerprintsForSamples(ShortBuffer samples) {
+        if (samples.hasArray()
+            && samples.arrayOffset() == 0
+            && samples.position() == 0
+            && samples.remaining() == samples.array().length) {
+            return getFingerprintsForSamples(samples.array());
+        }
+        short[] copy = new short[samples.remaining()];
+        samples.duplicate().get(copy);
+        return getFingerprintsForSamples(copy);
+    }
+    
+    //The fingerprints of the audio, as for a file to index. The audio is read to the end, but not closed. It must be
+    //PCM at the sample rate of the strategy, as it is not converted. By default, the first channel is decoded for
+    //getFingerprintsForSamples
+    default long[] getFingerprintsForAudio(AudioInputStream audio) throws IOException {
+        return getFingerprintsForSamples(new PcmDecoder(audio, audio.getFormat(), 0).readToEnd(PcmDecoder.MAX_SAMPLES));
+    }
+    
     long[] getFingerprintsForFileForSearch(String filename,
                                   Long offsetSeconds)
             throws IOException, UnsupportedAudioFileException, InterruptedException;
     
+    //Where to report the time spent decoding and fingerprinting files for the index
+    default void setMetrics(Metrics metrics) {
+    }
+    
+    //Pool for fingerprinting the frames of a single file in parallel. If null, each file is fingerprinted by one thread
+    default void setForkJoinPool(ForkJoinPool forkJoinPool) {
+    }
+    
     default int getFrameLength() {
         return 0;
     }
@@ -2,9 +2,6 @@ package dk.kb.xcorrsound;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.BoundedInputStream;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.math3.complex.Complex;
-import org.jtransforms.fft.DoubleFFT_1D;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,15 +13,14 @@ import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 
 import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
 import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
@@ -41,176 +37,38 @@ public class FingerprintStrategyIsmir implements FingerprintStrategy {
     
     private final int bands;
     
+    private final ThreadLocal<FingerprintEngine> engines;
+    
+    private volatile Metrics metrics = Metrics.NONE;
+    
+    private volatile ForkJoinPool forkJoinPool = null;
+    
     public FingerprintStrategyIsmir(int frameLength, int advance, int sampleRate, int bands) {
         this.frameLength = frameLength;
         this.advance     = advance;
         this.sampleRate  = sampleRate;
         this.bands       = bands;
+        this.engines     = ThreadLocal.withInitial(() -> new FingerprintEngine(frameLength,
+                                                                               advance,
+                                                                               sampleRate,
+                                                                               bands));
     }
     
-    
-    protected static long[] generateFingerprintStream(final short[] input,
-                                                      final int frameLength,
-                                                      final int sampleRate,
-                                                      final int advance,
-                                                      final int bands,
-                                                      Integer maxFingerprints) {
-        log.debug("Generating fingerprint for input of length {}", input.length);
-        
-        
-        //TODO These values are static so calculate them somewhere earlier instead of here
-        double[] hanningWindow = getHanningWindow(frameLength);
-        int[] logScale = getLogScale(2000, frameLength, sampleRate, bands);
-        
-        assert logScale.length == bands + 1;
-        double[] prevEnergy = new double[logScale.length];
-        
-        List<Long> output = new ArrayList<>();
-        
-        int frameEnd = frameLength;
-        for (int frameStart = 0;
-             frameEnd < input.length;
-             frameStart += advance, frameEnd += advance) {
-            if (maxFingerprints != null && output.size() == maxFingerprints) {
-                //No need to generate any more
-                break;
-            }
-            
-            short[] frame = Arrays.copyOfRange(input, frameStart, frameStart + frameLength);
-            
-            //double norm = normalize(tmp); //?
-            double[] hanningWindowedFrame = new double[frameLength];
-            for (int i = 0; i < frameLength; ++i) {
-                hanningWindowedFrame[i] = frame[i] * hanningWindow[i];
-            }
-            
-            double[] fourierTransformOfFrame = computeFFT_absValue(hanningWindowedFrame);
-            
-            double[] energy = computeEnergyInBands(logScale, fourierTransformOfFrame);
-            
-            Long fingerprint = getFingerprint(prevEnergy, energy);
-            //log.info("Frame at {} have fingerprint {}", frameStart, fingerprint);
-            prevEnergy = energy;
-            
-            output.add(fingerprint);
-        }
-        final Long[] array = output.toArray(new Long[0]);
-        log.debug("Generated fingerprint (of length {}) for input of length {}", array.length, input.length);
-        return ArrayUtils.toPrimitive(array);
-    }
-    
-    private static double[] computeEnergyInBands(int[] logScale, double[] transform) {
-        double[] energy = new double[logScale.length];
-        
-        for (int i = 0; i < logScale.length - 1; ++i) {
-            
-            double absVal = 0.0;
-            for (int j = logScale[i]; j < logScale[i + 1]; ++j) {
-                absVal += transform[j];
-            }
-            
-            energy[i] = absVal / (logScale[i + 1] - logScale[i]);
-        }
-        return energy;
-    }
-    
-    private static double[] getHanningWindow(int windowLength) {
-        double[] window = new double[windowLength];
-        
-        for (int i = 0; i < windowLength; ++i) {
-            window[i] = (25.0 / 46.0) - (21.0 / 46.0) * Math.cos((2 * Math.PI * i) / (windowLength - 1));
-        }
-        return window;
+    //The engine for the current thread. It keeps its buffers between files, so it is reused for all of them
+    public FingerprintEngine getEngine() {
+        FingerprintEngine engine = engines.get();
+        engine.setForkJoinPool(forkJoinPool);
+        return engine;
     }
     
-    private static int[] getLogScale(double maxFrequency, int frameLength, int sampleRate, int bands) {
-        bands = bands + 1;
-        int[] indices = new int[bands];
-        
-        double logMin = Math.log(318.0) / Math.log(2);
-        double logMax = Math.log(maxFrequency) / Math.log(2);
-        
-        double delta = (logMax - logMin) / bands; //linear increase on log scale
-        
-        double sum = 0.0;
-        for (int i = 0; i < bands; ++i) {
-            
-            double hz = Math.pow(2, logMin + sum);
-            
-            // hz = idx*(sampleRate/frameLength)
-            // => idx = ceil(hz * (frameLength / sampleRate))
-            int idx = (int) hz * frameLength / sampleRate;
-            indices[i] = idx;
-            
-            sum += delta;
-        }
-        return indices;
-    }
-    
-    private static double normalize(double[] samples) {
-        
-        double rootMeanSquare = 0.0;
-        for (double sample : samples) {
-            rootMeanSquare += sample * sample;
-        }
-        
-        rootMeanSquare /= samples.length;
-        
-        return Math.sqrt(rootMeanSquare);
-        
-    }
-    
-    private static Complex[] computeFFT(final double[] input) {
-        DoubleFFT_1D plan;
-        double[] t = new double[input.length * 2];
-        
-        for (int i = 0; i < input.length; i++) {
-            t[i * 2] = input[i];
-        }
-        
-        plan = new DoubleFFT_1D(input.length);
-        plan.complexForward(t); // Places result in t
-        
-        Complex[] output = new Complex[input.length];
-        for (int i = 0; i < input.length; ++i) {
-            output[i] = new Complex(t[i * 2], t[i * 2 + 1]);
-        }
-        return output;
-    }
-    
-    private static double[] computeFFT_absValue(final double[] input) {
-        DoubleFFT_1D plan;
-        double[] t = new double[input.length * 2];
-        
-        for (int i = 0; i < input.length; i++) {
-            t[i * 2] = input[i];
-        }
-        
-        plan = new DoubleFFT_1D(input.length);
-        plan.complexForward(t); // Places result in t
-        
-        double[] output = new double[input.length];
-        for (int i = 0; i < input.length; ++i) {
-            output[i] = Complex.valueOf(t[i * 2], t[i * 2 + 1]).abs();
-        }
-        return output;
+    @Override
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
     }
     
-    private static long getFingerprint(double[] prevEnergy, double[] energy) {
-        
-        long fingerprint = 0;
-        
-        for (int bitPos = 0; bitPos < energy.length - 1; ++bitPos) {
-            double val = (energy[bitPos] - energy[bitPos + 1])
-                         - (prevEnergy[bitPos] - prevEnergy[bitPos + 1]);
-            
-            long bit = (val > 0) ? 1 : 0;
-            
-            fingerprint = fingerprint + (bit << bitPos);
-            
-        }
-        
-        return fingerprint;
+    @Override
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
     }
     
     @Override
@@ -239,49 +97,78 @@ public class FingerprintStrategyIsmir implements FingerprintStrategy {
         
     }
     
+    @Override
+    public void streamFingerprintsForFileForIndex(String filename, FingerprintSink sink)
+            throws IOException, UnsupportedAudioFileException {
+        streamFingerprintsForFile(filename, FingerprintStreamer.DEFAULT_CHUNK_SAMPLES, sink);
+    }
+    
+    @Override
+    public void streamFingerprintsForFile(String filename, int chunkSamples, FingerprintSink sink)
+            throws IOException, UnsupportedAudioFileException {
+        Boolean streamed = readAudio(filename, null, null, (sourceFileName, offset, audioInputStream) -> {
+            streamSamples(sourceFileName, audioInputStream, chunkSamples, sink);
+            return true;
+        });
+        if (streamed == null) {
+            throw new IOException("Failed to read audio from '" + filename + "'");
+        }
+    }
+    
+    @Override
+    public void streamFingerprintsForAudio(AudioInputStream audio, int chunkSamples, FingerprintSink sink)
+            throws IOException {
+        streamSamples("AudioInputStream", audio, chunkSamples, sink);
+    }
+    
+    @Override
+    public short[] getSamplesForFile(String filename) throws IOException, UnsupportedAudioFileException {
+        return readAudio(filename,
+                         null,
+                         null,
+                         (sourceFileName, offset, audioInputStream) -> readSamples(sourceFileName,
+                                                                                   offset,
+                                                                                   null,
+                                                                                   audioInputStream));
+    }
+    
+    @Override
+    public short[] getSamplesForFile(String filename, int maxSamples)
+            throws IOException, UnsupportedAudioFileException {
+        int maxFrames = (int) Math.min((long) maxSamples + 1, PcmDecoder.MAX_SAMPLES);
+        return readAudio(filename,
+                         null,
+                         null,
+                         (sourceFileName, offset, audioInputStream) -> readSamples(sourceFileName,
+                                                                                   offset,
+                                                                                   null,
+                                                                                   audioInputStream,
+                                                                                   maxFrames));
+    }
+    
+    @Override
+    public long[] getFingerprintsForSamples(short[] samples) {
+        return getEngine().generate(samples, null);
+    }
+    
+    @Override
+    public long[] getFingerprintsForAudio(AudioInputStream audio) throws IOException {
+        return getFingerprintsForSamples(readSamples("AudioInputStream", null, null, audio));
+    }
+    
     public long[] getFingerprintsForFile(String filename,
                                          Long offsetSeconds,
                                          Double lengthSeconds)
             throws IOException, UnsupportedAudioFileException {
         
         
-        // if filename is not wav file, start by converting to 5512hz stereo wav file
-        // if filename is on stdin, assume it conforms to assumption above.
-        // otherwise assume the file is 5512hz wav file.
-        short[] samples = null;
-        if ("-".equals(filename)) {
-            log.info("Filename is -, reading standard input");
-            // use stdin wav file reader.
-            try (AudioInputStream as = AudioSystem.getAudioInputStream(System.in)) {
-                samples = readSamples("StdIn",
-                                      offsetSeconds,
-                                      lengthSeconds,
-                                      as);
-            }
-            
-        } else {
-            File inputFile = Path.of(filename).toFile();
-            if (isAcceptableFormat(inputFile)) {
-                try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(inputFile)) {
-                    samples = readSamples(inputFile.getName(),
-                                          offsetSeconds,
-                                          lengthSeconds,
-                                          audioInputStream);
-                }
-            } else {
-                Path tmpWavFile = WavConverter.inlineConvertToWav(filename, sampleRate, offsetSeconds, lengthSeconds);
-                if (tmpWavFile != null) {
-                    try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(tmpWavFile.toFile())) {
-                        samples = readSamples(tmpWavFile.toAbsolutePath().toString(),
-                                              offsetSeconds,
-                                              lengthSeconds,
-                                              audioInputStream);
-                    } finally {
-                        Files.deleteIfExists(tmpWavFile);
-                    }
-                }
-            }
-        }
+        short[] samples = readAudio(filename,
+                                    offsetSeconds,
+                                    lengthSeconds,
+                                    (sourceFileName, offset, audioInputStream) -> readSamples(sourceFileName,
+                                                                                              offset,
+                                                                                              lengthSeconds,
+                                                                                              audioInputStream));
         
         if (samples == null) {
             return null;
@@ -291,7 +178,7 @@ public class FingerprintStrategyIsmir implements FingerprintStrategy {
         if (lengthSeconds != null) {
             maxFingerprints = (int) ((lengthSeconds * sampleRate - frameLength) / advance);
             NumberFormat formatter = new DecimalFormat("#0.00", DecimalFormatSymbols.getInstance(Locale.getDefault()));
-    
+            
             if (samples.length < minimumAcceptedNumberOfSamples) {
                 final double actualLength = lengthSeconds * samples.length / minimumAcceptedNumberOfSamples;
                 throw new IllegalArgumentException("Input file is only "
@@ -301,18 +188,52 @@ public class FingerprintStrategyIsmir implements FingerprintStrategy {
                                                    + " seconds");
             }
         }
-        long[] fingerprintStream = generateFingerprintStream(samples,
-                                                             frameLength,
-                                                             sampleRate,
-                                                             advance,
-                                                             bands,
-                                                             maxFingerprints);
+        log.debug("Generating fingerprint for input of length {}", samples.length);
+        long[] fingerprintStream = getEngine().generate(samples, maxFingerprints);
+        log.debug("Generated fingerprint (of length {}) for input of length {}",
+                  fingerprintStream.length,
+                  samples.length);
         if (maxFingerprints != null && fingerprintStream.length < maxFingerprints) {
             return null;//TODO better fail here
         }
         return fingerprintStream;
     }
     
+    //Open the audio of the file for the reader, and return what it read, or null if the file could not be converted.
+    //The reader must skip to the offset it is given
+    private <T> T readAudio(String filename,
+                            Long offsetSeconds,
+                            Double lengthSeconds,
+                            AudioReader<T> reader)
+            throws IOException, UnsupportedAudioFileException {
+        
+        // if filename is not a 5512hz wav file, start by converting it with ffmpeg to 5512hz PCM
+        // if filename is on stdin, assume it is a 5512hz wav file.
+        // otherwise assume the file is 5512hz wav file.
+        if ("-".equals(filename)) {
+            log.info("Filename is -, reading standard input");
+            // use stdin wav file reader.
+            try (AudioInputStream as = AudioSystem.getAudioInputStream(System.in)) {
+                return reader.read("StdIn", offsetSeconds, as);
+            }
+            
+        } else {
+            File inputFile = Path.of(filename).toFile();
+            if (isAcceptableFormat(inputFile)) {
+                try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(inputFile)) {
+                    return reader.read(inputFile.getName(), offsetSeconds, audioInputStream);
+                }
+            } else {
+                //ffmpeg has already skipped to the offset
+                return WavConverter.pipeConvert(filename,
+                                                sampleRate,
+                                                offsetSeconds,
+                                                lengthSeconds,
+                                                audioInputStream -> reader.read(filename, null, audioInputStream));
+            }
+        }
+    }
+    
     private boolean isAcceptableFormat(File inputFile) throws IOException {
         try {
             AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(inputFile);
@@ -323,31 +244,53 @@ public class FingerprintStrategyIsmir implements FingerprintStrategy {
         }
     }
     
+    //All the samples of the audio, from the offset and for the duration if they are given
     private short[] readSamples(String sourceFileName,
                                 Long offsetSeconds,
                                 Double durationSeconds,
                                 AudioInputStream audioInputStream)
             throws IOException {
+        short[] samples = readSamples(sourceFileName,
+                                      offsetSeconds,
+                                      durationSeconds,
+                                      audioInputStream,
+                                      PcmDecoder.MAX_SAMPLES);
+        if (samples.length == PcmDecoder.MAX_SAMPLES) {
+            throw new IOException("The audio of '" + sourceFileName + "' is too long to hold in memory");
+        }
+        return samples;
+    }
+    
+    //The samples of the audio, from the offset and for the duration if they are given, but at most maxFrames of them
+    private short[] readSamples(String sourceFileName,
+                                Long offsetSeconds,
+                                Double durationSeconds,
+                                AudioInputStream audioInputStream,
+                                int maxFrames)
+            throws IOException {
         AudioFormat format = audioInputStream.getFormat();
         int frameSize = format.getFrameSize();
-        int numChannels = format.getChannels();
-        boolean bigEndian = format.isBigEndian();
-        float sampleRate = format.getSampleRate();
-        if (sampleRate != this.sampleRate) {
-            throw new IllegalArgumentException("The given file '"
-                                               + sourceFileName
-                                               + "' have sampleRate '"
-                                               + sampleRate
-                                               + "' but the index requires "
-                                               + "sampleRate of '"
-                                               + this.sampleRate
-                                               + "'");
-        }
+        float sampleRate = checkSampleRate(sourceFileName, format);
         long lengthInFrames = audioInputStream.getFrameLength();
-        float totalDurationSeconds = lengthInFrames / sampleRate;
         
         float bytesPerSecond = frameSize * sampleRate;
         
+        if (lengthInFrames == AudioSystem.NOT_SPECIFIED) {
+            //A stream of unknown length, such as from ffmpeg, is decoded as it is read, as its length is only known at
+            //the end
+            if (offsetSeconds != null) {
+                IOUtils.skipFully(audioInputStream, (long) (bytesPerSecond * offsetSeconds));
+            }
+            InputStream stream = audioInputStream;
+            if (durationSeconds != null) {
+                stream = new BoundedInputStream(audioInputStream, (long) (bytesPerSecond * durationSeconds));
+            }
+            short[] samples = new PcmDecoder(stream, format, 0).readToEnd(maxFrames);
+            log.debug("Read {} samples from stream {}", samples.length, sourceFileName);
+            return samples;
+        }
+        float totalDurationSeconds = lengthInFrames / sampleRate;
+        
         long durationAsBytes;
         long durationAsFrames;
         if (durationSeconds != null && durationSeconds < totalDurationSeconds) {
@@ -357,6 +300,10 @@ public class FingerprintStrategyIsmir implements FingerprintStrategy {
             durationAsBytes  = lengthInFrames * frameSize;
             durationAsFrames = lengthInFrames;
         }
+        if (durationAsFrames > maxFrames) {
+            durationAsBytes  = (long) maxFrames * frameSize;
+            durationAsFrames = maxFrames;
+        }
         
         if (offsetSeconds != null) {
             long skipOffsets = (long) (bytesPerSecond * offsetSeconds);
@@ -365,47 +312,116 @@ public class FingerprintStrategyIsmir implements FingerprintStrategy {
         
         short[] samples;
         try (final BoundedInputStream boundedInputStream = new BoundedInputStream(audioInputStream, durationAsBytes)) {
-            samples = readChannel(boundedInputStream,
-                                  0,
-                                  frameSize,
-                                  numChannels,
-                                  bigEndian,
-                                  durationAsFrames);
+            samples = readChannel(boundedInputStream, format, 0, durationAsFrames);
             log.debug("Read {} bytes from wav file {}", samples.length, sourceFileName);
         }
         return samples;
     }
     
+    private float checkSampleRate(String sourceFileName, AudioFormat format) {
+        float sampleRate = format.getSampleRate();
+        if (sampleRate != this.sampleRate) {
+            throw new IllegalArgumentException("The given file '"
+                                               + sourceFileName
+                                               + "' have sampleRate '"
+                                               + sampleRate
+                                               + "' but the index requires "
+                                               + "sampleRate of '"
+                                               + this.sampleRate
+                                               + "'");
+        }
+        return sampleRate;
+    }
+    
+    //Read the first channel of the audio in chunks of chunkSamples and pass them through a FingerprintStreamer to the
+    //sink.
+    //Streams of unknown length, such as stdin, are read to the end. As in readChannel, a stream that ends before its
+    //declared length is padded with silence, so the fingerprints are the same as from the samples in memory
+    private void streamSamples(String sourceFileName,
+                               AudioInputStream audioInputStream,
+                               int chunkSamples,
+                               FingerprintSink sink) throws IOException {
+        AudioFormat format = audioInputStream.getFormat();
+        checkSampleRate(sourceFileName, format);
+        long lengthInFrames = audioInputStream.getFrameLength();
+        
+        PcmDecoder decoder = new PcmDecoder(audioInputStream, format, 0);
+        FingerprintStreamer streamer = new FingerprintStreamer(getEngine(), chunkSamples, sink, metrics);
+        short[] samples = new short[chunkSamples];
+        long framesRead = 0;
+        while (lengthInFrames == AudioSystem.NOT_SPECIFIED || framesRead < lengthInFrames) {
+            int framesToRead = samples.length;
+            if (lengthInFrames != AudioSystem.NOT_SPECIFIED) {
+                framesToRead = (int) Math.min(framesToRead, lengthInFrames - framesRead);
+            }
+            long startTime = System.nanoTime();
+            int frames = decoder.read(samples, 0, framesToRead);
+            metrics.decoded(System.nanoTime() - startTime);
+            streamer.write(samples, 0, frames);
+            framesRead += frames;
+            if (frames < framesToRead) {
+                //End of stream
+                break;
+            }
+        }
+        if (lengthInFrames != AudioSystem.NOT_SPECIFIED && framesRead < lengthInFrames) {
+            log.debug("The audio ended after {} of {} samples", framesRead, lengthInFrames);
+            Arrays.fill(samples, (short) 0);
+            for (long silence = framesRead; silence < lengthInFrames; silence += samples.length) {
+                streamer.write(samples, 0, (int) Math.min(samples.length, lengthInFrames - silence));
+            }
+        }
+        streamer.finish();
+        log.debug("Read {} samples from wav file {}", framesRead, sourceFileName);
+    }
+    
+    //Read lengthInFrames samples of the channel, or mixed down if PcmDecoder.DOWNMIX. If the stream ends before that,
+    //the rest is silence
     private static short[] readChannel(InputStream as,
+                                       AudioFormat format,
                                        int channelToRead,
-                                       int frameSize,
-                                       int numChannels,
-                                       boolean bigEndian,
                                        long lengthInFrames) throws IOException {
-        int singleSampleSize = frameSize / numChannels;
         short[] samples = new short[(int) lengthInFrames];
-        byte[] sample = new byte[singleSampleSize * numChannels];
-        for (int i = 0; i < samples.length; i++) {
-            int bytes_read = as.read(sample);
-            for (int j = 0; j < numChannels; j++) {
-                if (j == channelToRead) {
-                    if (bigEndian) {
-                        samples[i] = convertTwoBytesToShort(sample[j + 1], sample[j]);
-                    } else {
-                        samples[i] = convertTwoBytesToShort(sample[j], sample[j + 1]);
-                    }
-                }
-            }
+        int framesRead = new PcmDecoder(as, format, channelToRead).read(samples, 0, samples.length);
+        if (framesRead < samples.length) {
+            log.debug("The audio ended after {} of {} samples", framesRead, samples.length);
         }
         return samples;
     }
     
-    private static short convertTwoBytesToShort(byte a, byte b) {
-        //little endian. a is the least significant byte.
-        short res = (short) (b & 0xFF);
-        res = (short) (res << 8);
-        res = (short) (res | (a & 0xFF));
-        return res;
+    private interface AudioReader<T> {
+        T read(String sourceFileName, Long offsetSeconds, AudioInputStream audioInputStream) throws IOException;
+    }
+    
+    //Strategies with the same parameters give the same fingerprints
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        FingerprintStrategyIsmir that = (FingerprintStrategyIsmir) o;
+        return frameLength == that.frameLength
+               && advance == that.advance
+               && sampleRate == that.sampleRate
+               && bands == that.bands;
+    }
+    
+    @Override
+    public int hashCode() {
+        return Objects.hash(frameLength, advance, sampleRate, bands);
+    }
+    
+    @Override
+    public String toString() {
+        return "FingerprintStrategyIsmir{" +
+               "frameLength=" + frameLength +
+               ", advance=" + advance +
+               ", sampleRate=" + sampleRate +
+               ", bands=" + bands +
+               '}';
     }
     
 }
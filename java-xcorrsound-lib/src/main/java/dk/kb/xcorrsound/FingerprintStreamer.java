@@ -0,0 +1,75 @@
+package dk.kb.xcorrsound;
+
+import java.io.IOException;
+
+//Fingerprints a stream of samples of any length in constant memory.
+//Samples are collected in a chunk, and when it is full the complete frames in it are fingerprinted and passed to the
+//sink. The samples of the frames that are not complete yet are carried over to the next chunk, and the engine carries
+//the energy of the last frame, so the fingerprints are the same as for the entire stream at once.
+public class FingerprintStreamer {
+    
+    public static final int DEFAULT_CHUNK_SAMPLES = 64 * 1024;
+    
+    private final FingerprintEngine engine;
+    
+    private final FingerprintSink sink;
+    
+    private final Metrics metrics;
+    
+    private final short[] samples;
+    
+    private int numSamples = 0;
+    
+    private final long[] fingerprints;
+    
+    public FingerprintStreamer(FingerprintEngine engine, int chunkSamples, FingerprintSink sink) {
+        this(engine, chunkSamples, sink, Metrics.NONE);
+    }
+    
+    public FingerprintStreamer(FingerprintEngine engine, int chunkSamples, FingerprintSink sink, Metrics metrics) {
+        this.engine  = engine;
+        this.sink    = sink;
+        this.metrics = metrics;
+        //Room for at least one complete frame
+        this.samples      = new short[Math.max(chunkSamples, engine.getFrameLength() + 1)];
+        this.fingerprints = new long[engine.getNumFingerprints(samples.length)];
+        engine.reset();
+    }
+    
+    //Add input[offset, offset+length) to the stream
+    public void write(short[] input, int offset, int length) throws IOException {
+        while (length > 0) {
+            int toCopy = Math.min(length, samples.length - numSamples);
+            System.arraycopy(input, offset, samples, numSamples, toCopy);
+            numSamples += toCopy;
+            offset += toCopy;
+            length -= toCopy;
+            if (numSamples == samples.length) {
+                fingerprintChunk();
+            }
+        }
+    }
+    
+    //The stream has ended, so fingerprint the rest of it
+    public void finish() throws IOException {
+        fingerprintChunk();
+    }
+    
+    private void fingerprintChunk() throws IOException {
+        //A frame must end before the last sample, also the last sample of the stream, so the frames that are
+        //complete now are the ones the entire stream would give
+        int count = engine.getNumFingerprints(numSamples);
+        int advance = engine.getAdvance();
+        long startTime = System.nanoTime();
+        engine.fingerprint(samples, count, fingerprints);
+        metrics.fingerprinted(System.nanoTime() - startTime);
+        if (count > 0) {
+            sink.accept(fingerprints, count);
+        }
+        
+        //Carry the samples from the first frame that is not fingerprinted yet
+        int carryStart = count * advance;
+        System.arraycopy(samples, carryStart, samples, 0, numSamples - carryStart);
+        numSamples -= carryStart;
+    }
+}
@@ -0,0 +1,255 @@
+package dk.kb.xcorrsound;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+//The header of an index file, so the index describes how it was made. In little endian:
+//  int magic, int version, int dataOffset, int blockSize,
+//  int frameLength, int advance, int sampleRate, int bands, int fingerprintBits, int reserved,
+//  long recordCount, long checksum, int CRC32 of the header before it
+//The header is padded to blockSize bytes, so the fingerprints start block aligned for mmap and direct I/O.
+//fingerprintBits is the width each fingerprint is stored in, see FingerprintCodec.
+//recordCount is the number of fingerprints in the index, and checksum is a FNV-1a hash of them. Both are updated when a
+//file has been appended, so fingerprints after recordCount are from a file that is still being appended, and are not
+//part of the index yet.
+//Index files from before the header are just the fingerprints. They have no header, and are read as they always were.
+public class IndexHeader {
+    
+    private static final int MAGIC = 0x50464358; //XCFP
+    
+    private static final int VERSION = 1;
+    
+    public static final int BLOCK_SIZE = 4096;
+    
+    private static final int FIELDS_BYTES = 10 * Integer.BYTES + 2 * Long.BYTES;
+    
+    private static final int HEADER_BYTES = FIELDS_BYTES + Integer.BYTES;
+    
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
+    private final int dataOffset;
+    
+    private final int blockSize;
+    
+    private final int frameLength;
+    
+    private final int advance;
+    
+    private final int sampleRate;
+    
+    private final int bands;
+    
+    private final int fingerprintBits;
+    
+    private long recordCount;
+    
+    private long checksum;
+    
+    private IndexHeader(int dataOffset,
+                        int blockSize,
+                        int frameLength,
+                        int advance,
+                        int sampleRate,
+                        int bands,
+                        int fingerprintBits,
+                        long recordCount,
+                        long checksum) {
+        this.dataOffset      = dataOffset;
+        this.blockSize       = blockSize;
+        this.frameLength     = frameLength;
+        this.advance         = advance;
+        this.sampleRate      = sampleRate;
+        this.bands           = bands;
+        this.fingerprintBits = fingerprintBits;
+        this.recordCount     = recordCount;
+        this.checksum        = checksum;
+    }
+    
+    //The header of a new, empty index
+    public static IndexHeader create(int frameLength, int advance, int sampleRate, int bands) {
+        return new IndexHeader(BLOCK_SIZE, BLOCK_SIZE, frameLength, advance, sampleRate, bands,
+                               FingerprintCodec.forBands(bands).getBits(), 0, FNV_OFFSET_BASIS);
+    }
+    
+    //The header of the index, or null if it is an index without a header, or there is no index yet
+    public static IndexHeader read(String dbFilename) throws IOException {
+        if (dbFilename == null) {
+            return null;
+        }
+        Path path = Path.of(dbFilename);
+        if (!Files.exists(path) || Files.size(path) < HEADER_BYTES) {
+            return null;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, bytes.position()) < 0) {
+                    throw new IOException("Unexpected end of the header of " + dbFilename);
+                }
+            }
+        }
+        if (bytes.getInt(0) != MAGIC) {
+            return null;
+        }
+        if (bytes.getInt(4) != VERSION) {
+            throw new IOException("The index " + dbFilename + " has a header of version " + bytes.getInt(4)
+                                  + ", but only version " + VERSION + " is supported");
+        }
+        if ((int) crc(bytes) != bytes.getInt(FIELDS_BYTES)) {
+            throw new IOException("The header of the index " + dbFilename + " is corrupt");
+        }
+        try {
+            FingerprintCodec.forBits(bytes.getInt(32));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("The index " + dbFilename + " has an unsupported fingerprint width", e);
+        }
+        return new IndexHeader(bytes.getInt(8),
+                               bytes.getInt(12),
+                               bytes.getInt(16),
+                               bytes.getInt(20),
+                               bytes.getInt(24),
+                               bytes.getInt(28),
+                               bytes.getInt(32),
+                               bytes.getLong(40),
+                               bytes.getLong(48));
+    }
+    
+    //Write the header at the start of the index, padded to dataOffset
+    public void write(FileChannel channel) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(channel.size() < dataOffset ? dataOffset : HEADER_BYTES)
+                                     .order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(MAGIC)
+             .putInt(VERSION)
+             .putInt(dataOffset)
+             .putInt(blockSize)
+             .putInt(frameLength)
+             .putInt(advance)
+             .putInt(sampleRate)
+             .putInt(bands)
+             .putInt(fingerprintBits)
+             .putInt(0)
+             .putLong(recordCount)
+             .putLong(checksum);
+        bytes.putInt((int) crc(bytes));
+        bytes.rewind();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes, bytes.position());
+        }
+    }
+    
+    private static long crc(ByteBuffer bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes.duplicate().position(0).limit(FIELDS_BYTES));
+        return crc.getValue();
+    }
+    
+    //Add the fingerprints of an appended file. They are stored as their lower fingerprintBits bits
+    public void append(long[] fingerprints, int count) {
+        FingerprintCodec codec = getCodec();
+        for (int i = 0; i < count; i++) {
+            checksum = (checksum ^ codec.mask(fingerprints[i])) * FNV_PRIME;
+        }
+        recordCount += count;
+    }
+    
+    //Whether the fingerprints of the index, as read from it, are the ones the checksum was made from
+    public boolean verify(String dbFilename) throws IOException {
+        IndexHeader computed = create(frameLength, advance, sampleRate, bands);
+        FingerprintCodec codec = getCodec();
+        long[] chunk = new long[64 * 1024];
+        ByteBuffer bytes = ByteBuffer.allocate(chunk.length * codec.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(Path.of(dbFilename), StandardOpenOption.READ)) {
+            long position = dataOffset;
+            long remaining = recordCount;
+            while (remaining > 0) {
+                int count = (int) Math.min(chunk.length, remaining);
+                bytes.clear().limit(count * codec.getBytes());
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes, position + bytes.position()) < 0) {
+                        return false;
+                    }
+                }
+                bytes.flip();
+                Buffer stored = codec.view(bytes);
+                for (int i = 0; i < count; i++) {
+                    chunk[i] = codec.get(stored, i);
+                }
+                computed.append(chunk, count);
+                position += (long) count * codec.getBytes();
+                remaining -= count;
+            }
+        }
+        return computed.checksum == checksum;
+    }
+    
+    //Whether fingerprints made with these parameters can be searched in the index
+    public boolean matches(int frameLength, int advance, int sampleRate, int bands) {
+        return this.frameLength == frameLength
+               && this.advance == advance
+               && this.sampleRate == sampleRate
+               && this.bands == bands;
+    }
+    
+    //Byte offset of the first fingerprint in the file
+    public int getDataOffset() {
+        return dataOffset;
+    }
+    
+    public int getBlockSize() {
+        return blockSize;
+    }
+    
+    public int getFrameLength() {
+        return frameLength;
+    }
+    
+    public int getAdvance() {
+        return advance;
+    }
+    
+    public int getSampleRate() {
+        return sampleRate;
+    }
+    
+    public int getBands() {
+        return bands;
+    }
+    
+    //Bits stored per fingerprint
+    public int getFingerprintBits() {
+        return fingerprintBits;
+    }
+    
+    public FingerprintCodec getCodec() {
+        return FingerprintCodec.forBits(fingerprintBits);
+    }
+    
+    public long getRecordCount() {
+        return recordCount;
+    }
+    
+    public long getChecksum() {
+        return checksum;
+    }
+    
+    @Override
+    public String toString() {
+        return "IndexHeader{" +
+               "frameLength=" + frameLength +
+               ", advance=" + advance +
+               ", sampleRate=" + sampleRate +
+               ", bands=" + bands +
+               ", fingerprintBits=" + fingerprintBits +
+               ", recordCount=" + recordCount +
+               '}';
+    }
+}
@@ -0,0 +1,56 @@
+package dk.kb.xcorrsound;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+//A manifest lists the segment indexes that together make one logical index, as written by IndexMerger. It is the text
+//file <name>.manifest with the file name of a segment on each line, relative to the manifest. Blank lines and lines
+//starting with # are ignored.
+//The query and serve commands take a manifest wherever they take an index, and search all its segments. A
+//FingerPrintDB, such as a searcher, opens a single segment and rejects a manifest.
+public class IndexManifest {
+    
+    public static final String SUFFIX = ".manifest";
+    
+    public static boolean isManifest(String filename) {
+        return filename.endsWith(SUFFIX);
+    }
+    
+    //The segment indexes of the manifest, or just the index itself if it is not a manifest
+    public static List<String> getIndexFiles(String filename) throws IOException {
+        if (!isManifest(filename)) {
+            return List.of(filename);
+        }
+        Path manifest = Path.of(filename).toAbsolutePath();
+        List<String> segments = Files.readAllLines(manifest, StandardCharsets.UTF_8)
+                                     .stream()
+                                     .map(String::trim)
+                                     .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                                     .map(line -> manifest.resolveSibling(line).toString())
+                                     .collect(Collectors.toList());
+        if (segments.isEmpty()) {
+            throw new IOException("The manifest " + filename + " lists no indexes");
+        }
+        return segments;
+    }
+    
+    //Write the manifest of the segments. It is written to a temporary file first, so a searcher never sees a manifest
+    //of only some of the segments
+    public static void write(String filename, List<String> segments) throws IOException {
+        Path manifest = Path.of(filename).toAbsolutePath();
+        List<String> lines = new ArrayList<>();
+        lines.add("# " + segments.size() + " segments");
+        for (String segment : segments) {
+            lines.add(manifest.getParent().relativize(Path.of(segment).toAbsolutePath()).toString());
+        }
+        Path tmpFile = Path.of(manifest + ".tmp");
+        Files.write(tmpFile, lines, StandardCharsets.UTF_8);
+        Files.move(tmpFile, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,58 @@
+package dk.kb.xcorrsound;
+
+//Receives counts and timings from searching and indexing. The methods are called from the threads that search ranges
+//of an index or fingerprint files in parallel, so implementations must be thread safe. The counts of the scan are
+//summed per range before they are reported, so the calls are not on the hot path.
+//See CountingMetrics for counters that can be read over JMX
+public interface Metrics {
+    
+    //Metrics that are not recorded
+    Metrics NONE = new Metrics() {
+    };
+    
+    //A search of queries in an index has completed
+    default void searched(int queries, long nanos) {
+    }
+    
+    //Positions of the index compared with a query
+    default void positionsScanned(long positions) {
+    }
+    
+    //Positions given up by the early termination, as the start of the comparison looked like noise
+    default void earlyTerminations(long positions) {
+    }
+    
+    //Positions that passed the early termination, but were not checked by checkNearPos, as the block summary shows
+    //they cannot be a hit
+    default void positionsPruned(long positions) {
+    }
+    
+    //Positions compared in full with the positions near them, by checkNearPos
+    default void nearPosChecks(long checks) {
+    }
+    
+    //Windows of checkNearPos that were not in the part of the index at hand, and were read again. The streamed scan
+    //has none, as its WindowProvider serves the windows at the edges of its blobs
+    default void windowRereads(long windows) {
+    }
+    
+    //Bytes of the index read by a search
+    default void bytesRead(long bytes) {
+    }
+    
+    //Hits found by a search
+    default void hits(long hits) {
+    }
+    
+    //Time spent decoding audio for the index, including waiting for ffmpeg
+    default void decoded(long nanos) {
+    }
+    
+    //Time spent fingerprinting audio for the index, mostly in the FFT
+    default void fingerprinted(long nanos) {
+    }
+    
+    //Time spent writing fingerprints to the index
+    default void written(long nanos) {
+    }
+}
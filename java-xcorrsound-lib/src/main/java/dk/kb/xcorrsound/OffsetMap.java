@@ -0,0 +1,260 @@
+package dk.kb.xcorrsound;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+//The map from positions in an index to the files indexed there.
+//The indexer appends a line "<end> <name>" to the text <index>.map for each file. The searcher reads the same entries
+//from the binary <index>.map.bin, as a sorted array of ends and a string table of names. This is memory mapped and
+//searched by binary search, so neither opening the map nor looking up a hit takes time proportional to the number of
+//files. The binary map is made from the text map when it is missing, and extended when the text map has grown.
+//The binary map is little endian:
+//  int MAGIC, int VERSION,
+//  long the length of the text map it was made from, long the start of the last line in it,
+//  int the number of entries N,
+//  int[N] the end of each file in the index,
+//  int[N + 1] the start of each name in the string table, and the end of the last name,
+//  byte[] the string table, the names in UTF-8
+public class OffsetMap {
+    
+    private static final Logger log = LoggerFactory.getLogger(OffsetMap.class);
+    
+    private static final int MAGIC = 0x50414D58; //XMAP
+    
+    private static final int VERSION = 1;
+    
+    private static final int HEADER_BYTES = 2 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+    
+    private final ByteBuffer buffer;
+    
+    private final long textLength;
+    
+    private final long lastLineStart;
+    
+    private final int size;
+    
+    private final int namesStart;
+    
+    private OffsetMap(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a binary map of version " + VERSION);
+        }
+        this.textLength    = buffer.getLong(8);
+        this.lastLineStart = buffer.getLong(16);
+        this.size          = buffer.getInt(24);
+        this.namesStart = HEADER_BYTES + (2 * size + 1) * Integer.BYTES;
+        if (buffer.capacity() < namesStart || buffer.capacity() < namesStart + getNameOffset(size)) {
+            throw new IOException("Binary map is truncated");
+        }
+    }
+    
+    public static String getBinaryMapFile(String dbFilename) {
+        return dbFilename + ".map.bin";
+    }
+    
+    //Open the map of the index, making or extending the binary map from the text map if needed
+    public static OffsetMap open(String dbFilename) throws IOException {
+        Path textMap = Path.of(dbFilename + ".map");
+        Path binaryMap = Path.of(getBinaryMapFile(dbFilename));
+        long textLength = Files.exists(textMap) ? Files.size(textMap) : 0;
+        
+        OffsetMap existing = null;
+        if (Files.exists(binaryMap)) {
+            try {
+                existing = new OffsetMap(mapFile(binaryMap));
+            } catch (IOException e) {
+                log.warn("Failed to read binary map {}, making it again from {}", binaryMap, textMap, e);
+            }
+        }
+        if (existing != null && (existing.textLength > textLength || !existing.matchesText(textMap))) {
+            log.info("Binary map {} is not made from the current {}", binaryMap, textMap);
+            existing = null;
+        }
+        if (existing != null && existing.textLength == textLength) {
+            return existing;
+        }
+        
+        Builder builder = new Builder();
+        if (existing != null) {
+            //The indexer has appended to the text map, so only the new lines must be read
+            for (int i = 0; i < existing.size; i++) {
+                builder.add(existing.getEnd(i), existing.getNameBytes(i));
+            }
+            builder.textLength    = existing.textLength;
+            builder.lastLineStart = existing.lastLineStart;
+        } else {
+            log.info("Making binary map {} from {}", binaryMap, textMap);
+        }
+        if (textLength > builder.textLength) {
+            builder.readText(textMap);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(builder.toBytes());
+        
+        //Write to a temporary file first, so other searchers never see a half written map
+        Path tmpFile = Path.of(binaryMap + ".tmp");
+        try {
+            Files.write(tmpFile, bytes.array());
+            Files.move(tmpFile, binaryMap, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            //Eg. an index on a read only disk. The map still works, it is just not saved for next time
+            log.warn("Failed to write binary map {}, keeping it in memory", binaryMap, e);
+            Files.deleteIfExists(tmpFile);
+        }
+        return new OffsetMap(bytes);
+    }
+    
+    //Whether the text map still has the line that was read last at the same place, so it is the text map this was made
+    //from and not eg. the map of a new index with the same name
+    private boolean matchesText(Path textMap) throws IOException {
+        if (size == 0) {
+            return true;
+        }
+        byte[] line = new byte[(int) (textLength - lastLineStart)];
+        try (InputStream in = Files.newInputStream(textMap)) {
+            IOUtils.skipFully(in, lastLineStart);
+            IOUtils.readFully(in, line);
+        }
+        String[] splits = splitLine(new String(line, StandardCharsets.UTF_8));
+        return splits.length == 2
+               && splits[0].equals(Integer.toString(getEnd(size - 1)))
+               && splits[1].equals(getName(size - 1));
+    }
+    
+    //Split a line of the text map into the end and the name, as the text map has always been read
+    private static String[] splitLine(String line) {
+        line = line.replaceFirst("\\r?\\n?$", "");
+        return line.split("\\s+", 2);
+    }
+    
+    private static ByteBuffer mapFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+    
+    //Length of the text map this was made from
+    long getTextLength() {
+        return textLength;
+    }
+    
+    //Number of files in the map
+    public int size() {
+        return size;
+    }
+    
+    //The entry of the file holding the position in the index, or -1 if the position is after the last file
+    public int indexOf(int position) {
+        int low = 0;
+        int high = size;
+        //The first entry that ends after position
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getEnd(mid) <= position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < size ? low : -1;
+    }
+    
+    //Position of the first fingerprint of the file in the index
+    public int getStart(int entry) {
+        return entry == 0 ? 0 : getEnd(entry - 1);
+    }
+    
+    //Position after the last fingerprint of the file in the index
+    public int getEnd(int entry) {
+        return buffer.getInt(HEADER_BYTES + entry * Integer.BYTES);
+    }
+    
+    public String getName(int entry) {
+        return new String(getNameBytes(entry), StandardCharsets.UTF_8);
+    }
+    
+    private byte[] getNameBytes(int entry) {
+        int nameStart = getNameOffset(entry);
+        byte[] name = new byte[getNameOffset(entry + 1) - nameStart];
+        buffer.duplicate().position(namesStart + nameStart).get(name);
+        return name;
+    }
+    
+    private int getNameOffset(int entry) {
+        return buffer.getInt(HEADER_BYTES + (size + entry) * Integer.BYTES);
+    }
+    
+    private static class Builder {
+        
+        private int[] ends = new int[1024];
+        
+        private int[] nameOffsets = new int[1025];
+        
+        private int size = 0;
+        
+        private final ByteArrayOutputStream names = new ByteArrayOutputStream();
+        
+        private long textLength = 0;
+        
+        private long lastLineStart = 0;
+        
+        void add(int end, byte[] name) {
+            if (size == ends.length) {
+                ends        = Arrays.copyOf(ends, size * 2);
+                nameOffsets = Arrays.copyOf(nameOffsets, size * 2 + 1);
+            }
+            ends[size] = end;
+            names.writeBytes(name);
+            nameOffsets[++size] = names.size();
+        }
+        
+        //Read the lines of the text map after textLength. A last line without a newline is still being written by
+        //the indexer, so it is left for next time
+        void readText(Path textMap) throws IOException {
+            byte[] text;
+            try (InputStream in = Files.newInputStream(textMap)) {
+                IOUtils.skipFully(in, textLength);
+                text = IOUtils.toByteArray(in);
+            }
+            int lineStart = 0;
+            for (int i = 0; i < text.length; i++) {
+                if (text[i] == '\n') {
+                    String line = new String(text, lineStart, i - lineStart, StandardCharsets.UTF_8);
+                    if (!line.isBlank()) {
+                        String[] splits = splitLine(line);
+                        add(Integer.parseInt(splits[0]), splits[1].getBytes(StandardCharsets.UTF_8));
+                        lastLineStart = textLength + lineStart;
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            textLength += lineStart;
+        }
+        
+        byte[] toBytes() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + (2 * size + 1) * Integer.BYTES)
+                                          .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(textLength).putLong(lastLineStart).putInt(size);
+            header.asIntBuffer().put(ends, 0, size).put(nameOffsets, 0, size + 1);
+            
+            ByteArrayOutputStream result = new ByteArrayOutputStream(header.capacity() + names.size());
+            result.write(header.array());
+            names.writeTo(result);
+            return result.toByteArray();
+        }
+    }
+}
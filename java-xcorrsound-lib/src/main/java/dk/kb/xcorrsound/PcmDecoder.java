@@ -0,0 +1,192 @@
+package dk.kb.xcorrsound;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+//Decodes interleaved PCM audio to 16 bit samples of one channel, or of all the channels mixed down.
+//The bytes are read from the stream in large chunks, and the samples of a chunk are decoded in one pass. 16 bit samples
+//are read through a ShortBuffer view in the byte order of the stream, 8 bit samples are shifted up to 16 bits and 24
+//bit samples lose their lowest byte. A frame split between two reads of the stream is kept until the rest of it is read.
+public class PcmDecoder {
+    
+    //Mix all the channels down, instead of reading one of them
+    public static final int DOWNMIX = -1;
+    
+    //The most samples an array can hold
+    static final int MAX_SAMPLES = Integer.MAX_VALUE - 8;
+    
+    //Bytes read from the stream at a time
+    private static final int CHUNK_BYTES = 64 * 1024;
+    
+    //Samples first allocated by readToEnd, 3 minutes at 5512 Hz. The array is doubled as needed
+    private static final int INITIAL_SAMPLES = 1024 * 1024;
+    
+    private final InputStream in;
+    
+    private final int channel;
+    
+    private final int channels;
+    
+    private final int sampleBytes;
+    
+    private final int frameSize;
+    
+    private final boolean bigEndian;
+    
+    private final boolean unsigned;
+    
+    //The bytes read from the stream, with the bytes not decoded yet between position and limit
+    private final ByteBuffer bytes;
+    
+    //The bytes as 16 bit samples, in the byte order of the stream
+    private final ShortBuffer shorts;
+    
+    private boolean endOfStream = false;
+    
+    public PcmDecoder(InputStream in, AudioFormat format, int channel) throws IOException {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(encoding) && !AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)) {
+            throw new IOException("Audio encoded as " + encoding + " is not supported, only PCM");
+        }
+        int sampleSizeInBits = format.getSampleSizeInBits();
+        if (sampleSizeInBits != 8 && sampleSizeInBits != 16 && sampleSizeInBits != 24) {
+            throw new IOException("Audio with samples of " + sampleSizeInBits + " bits is not supported, only 8, 16 "
+                                  + "and 24 bits");
+        }
+        this.in          = in;
+        this.channels    = format.getChannels();
+        this.sampleBytes = sampleSizeInBits / 8;
+        this.frameSize   = format.getFrameSize();
+        this.bigEndian   = format.isBigEndian();
+        this.unsigned    = AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding);
+        if (frameSize != channels * sampleBytes) {
+            throw new IOException("Audio frames of " + frameSize + " bytes do not hold " + channels + " samples of "
+                                  + sampleSizeInBits + " bits");
+        }
+        if (channel != DOWNMIX && (channel < 0 || channel >= channels)) {
+            throw new IllegalArgumentException("Cannot read channel " + channel + " of audio with " + channels
+                                               + " channels");
+        }
+        this.channel = channel;
+        
+        this.bytes  = ByteBuffer.allocate(Math.max(CHUNK_BYTES / frameSize, 1) * frameSize);
+        ByteOrder order = bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        this.shorts = bytes.duplicate().order(order).asShortBuffer();
+        bytes.limit(0);
+    }
+    
+    //Decode the next frames to output[offset, offset+length). Returns the number of frames decoded, which is less than
+    //length only at the end of the stream. A partial frame at the end of the stream is dropped
+    public int read(short[] output, int offset, int length) throws IOException {
+        int frames = 0;
+        while (frames < length) {
+            if (bytes.remaining() < frameSize) {
+                if (!fill()) {
+                    break;
+                }
+                continue;
+            }
+            int count = Math.min(length - frames, bytes.remaining() / frameSize);
+            decode(bytes.position(), count, output, offset + frames);
+            bytes.position(bytes.position() + count * frameSize);
+            frames += count;
+        }
+        return frames;
+    }
+    
+    //Decode the frames to the end of the stream, but at most maxFrames of them. The samples are decoded straight into
+    //an array that grows as they are read, so the audio is not held as bytes as well
+    public short[] readToEnd(int maxFrames) throws IOException {
+        short[] samples = new short[Math.min(INITIAL_SAMPLES, maxFrames)];
+        int framesRead = 0;
+        while (true) {
+            if (framesRead == samples.length) {
+                if (samples.length == maxFrames) {
+                    break;
+                }
+                samples = Arrays.copyOf(samples, (int) Math.min(2L * samples.length, maxFrames));
+            }
+            int framesToRead = samples.length - framesRead;
+            int frames = read(samples, framesRead, framesToRead);
+            framesRead += frames;
+            if (frames < framesToRead) {
+                //End of stream
+                break;
+            }
+        }
+        return framesRead == samples.length ? samples : Arrays.copyOf(samples, framesRead);
+    }
+    
+    //Read more bytes from the stream, after the ones not decoded yet. Returns false at the end of the stream
+    private boolean fill() throws IOException {
+        if (endOfStream) {
+            return false;
+        }
+        bytes.compact();
+        int read = in.read(bytes.array(), bytes.position(), bytes.remaining());
+        if (read < 0) {
+            endOfStream = true;
+        } else {
+            bytes.position(bytes.position() + read);
+        }
+        bytes.flip();
+        return !endOfStream;
+    }
+    
+    //Decode the count frames from position in bytes to output[offset, offset+count)
+    private void decode(int position, int count, short[] output, int offset) {
+        if (sampleBytes == 2 && !unsigned && channel != DOWNMIX) {
+            //The common case, of signed 16 bit samples. Frames start at even positions, as the decoded bytes are
+            //moved to the start of the buffer before reading more
+            int index = (position + channel * sampleBytes) / 2;
+            for (int i = 0; i < count; i++) {
+                output[offset + i] = shorts.get(index);
+                index += channels;
+            }
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            int frame = position + i * frameSize;
+            if (channel == DOWNMIX) {
+                int sum = 0;
+                for (int c = 0; c < channels; c++) {
+                    sum += sample(frame + c * sampleBytes);
+                }
+                output[offset + i] = (short) (sum / channels);
+            } else {
+                output[offset + i] = sample(frame + channel * sampleBytes);
+            }
+        }
+    }
+    
+    //The sample at position in bytes, as 16 bits
+    private short sample(int position) {
+        byte[] array = bytes.array();
+        int value;
+        switch (sampleBytes) {
+            case 1:
+                value = array[position] << 8;
+                break;
+            case 2:
+                value = shorts.get(position / 2);
+                break;
+            default:
+                //The two most significant of the three bytes
+                if (bigEndian) {
+                    value = (array[position] << 8) | (array[position + 1] & 0xFF);
+                } else {
+                    value = (array[position + 2] << 8) | (array[position + 1] & 0xFF);
+                }
+        }
+        if (unsigned) {
+            //Unsigned samples are offset by half the range, so flipping the highest bit makes them signed
+            value ^= 0x8000;
+        }
+        return (short) value;
+    }
+}
@@ -10,13 +10,15 @@ public class Utils {
         return result;
     }
     
+    //byte1 is the least significant byte. Mask the bytes, as they are signed
     public static int bytesToIntsLittleEndian(byte byte1, byte byte2, byte byte3, byte byte4){
-        int integer = ((byte1 << 24) + (byte2 << 16) + (byte3 << 8) + (byte4 << 0));
+        int integer = (((byte4 & 0xFF) << 24) | ((byte3 & 0xFF) << 16) | ((byte2 & 0xFF) << 8) | ((byte1 & 0xFF) << 0));
         return integer;
     }
     
+    //byte1 is the most significant byte
     public static int bytesToIntsBigEndian(byte byte1, byte byte2, byte byte3, byte byte4){
-        int integer = ((byte4 << 24) + (byte3 << 16) + (byte2 << 8) + (byte1 << 0));
+        int integer = (((byte1 & 0xFF) << 24) | ((byte2 & 0xFF) << 16) | ((byte3 & 0xFF) << 8) | ((byte4 & 0xFF) << 0));
         return integer;
     }
     
@@ -1,78 +1,110 @@
 package dk.kb.xcorrsound;
 
-import com.github.kokorin.jaffree.JaffreeException;
 import com.github.kokorin.jaffree.LogLevel;
 import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
 import com.github.kokorin.jaffree.ffmpeg.FFmpegResult;
+import com.github.kokorin.jaffree.ffmpeg.FFmpegResultFuture;
+import com.github.kokorin.jaffree.ffmpeg.PipeOutput;
 import com.github.kokorin.jaffree.ffmpeg.UrlInput;
-import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class WavConverter {
     
     private static Logger log = LoggerFactory.getLogger(WavConverter.class);
     
-    
-    protected static Path inlineConvertToWav(String filename,
-                                             int frameRate,
-                                             Long offsetSeconds,
-                                             Double durationSeconds)
+    //Convert the file with ffmpeg to raw 16 bit little endian PCM of the first channel at frameRate, and give it to
+    //the reader as an AudioInputStream of unknown length while ffmpeg runs. Nothing is written to disk.
+    //The first channel is what the fingerprints are made from, so this gives the same samples as converting to a wav
+    //file and reading its first channel.
+    //Returns what the reader returned, or null if ffmpeg failed
+    protected static <T> T pipeConvert(String filename,
+                                       int frameRate,
+                                       Long offsetSeconds,
+                                       Double durationSeconds,
+                                       PCMReader<T> reader)
             throws IOException {
-        log.info("Converting '{}' is to {}hz WAV format", filename, frameRate);
-        
-        Path tmpWaveFile = wavFileName(filename);
-        
+        log.info("Converting '{}' to {}hz PCM", filename, frameRate);
         
         FFmpeg fFmpeg = FFmpeg.atPath()
                               .setLogLevel(LogLevel.ERROR)
                               .addArgument("-hide_banner");
         
         fFmpeg.setProgressListener(progress -> {
-        
+            
         });
         if (offsetSeconds != null) {
             fFmpeg.addArguments("-ss", offsetSeconds.toString());
         }
-        fFmpeg.addInput(UrlInput.fromUrl(filename))
-                       .setOverwriteOutput(true)
-                       .addArguments("-ar", frameRate + "");
+        fFmpeg.addInput(UrlInput.fromUrl(filename));
+        
+        Pipe pipe = Pipe.open();
+        PipeOutput output = PipeOutput.pumpTo(Channels.newOutputStream(pipe.sink()))
+                                      .setFormat("s16le")
+                                      .addArguments("-af", "pan=mono|c0=c0")
+                                      .addArguments("-ar", frameRate + "");
         if (durationSeconds != null) {
             int durationWholeSeconds = Double.valueOf(Math.ceil(durationSeconds)).intValue();
-            fFmpeg.addArguments("-t", ""+durationWholeSeconds);
+            output.addArguments("-t", "" + durationWholeSeconds);
         }
-        fFmpeg.addOutput(UrlOutput.toUrl(tmpWaveFile.toString()));
+        fFmpeg.addOutput(output);
         
-        try {
-            FFmpegResult result = fFmpeg.execute();
-        } catch (JaffreeException e) {
-            log.error("Failed to transcode file {} to {}", filename, tmpWaveFile, e);
-            Files.deleteIfExists(tmpWaveFile);
-            return null;
-        }
-        log.info("File '{}' converted, reading audio stream from {}", filename, tmpWaveFile);
-        return tmpWaveFile;
-    }
-    
-    private static Path wavFileName(String mp3Path) {
-        String actualFileName = Path.of(mp3Path).getFileName().toString();
+        FFmpegResultFuture resultFuture = fFmpeg.executeAsync();
+        CompletableFuture<FFmpegResult> result = resultFuture.toCompletableFuture();
+        //Close the pipe when ffmpeg is done, so the reader sees the end of the stream
+        result.whenComplete((r, e) -> closeSink(pipe, filename));
         
-        String tmpDir = getTmpDir();
+        AudioFormat format = new AudioFormat(frameRate, 16, 1, true, false);
+        T read;
+        boolean readToEnd = false;
+        try (AudioInputStream audioInputStream = new AudioInputStream(Channels.newInputStream(pipe.source()),
+                                                                      format,
+                                                                      AudioSystem.NOT_SPECIFIED)) {
+            read      = reader.read(audioInputStream);
+            //The end of the stream is only seen when ffmpeg is done, so this waits for ffmpeg if the reader read all
+            readToEnd = audioInputStream.read(new byte[format.getFrameSize()]) < 0;
+        } finally {
+            //If the reader failed or stopped before the end, ffmpeg is no longer needed. Closing the pipe above
+            //releases it if it is blocked writing to the pipe
+            if (!readToEnd) {
+                resultFuture.forceStop();
+            }
+        }
         
-        return Path.of(tmpDir, actualFileName + ".wav");
+        if (readToEnd) {
+            //The pipe is closed after ffmpeg has ended, so this does not wait. A failed or truncated transcode must
+            //not be returned as if it was the whole file
+            try {
+                result.join();
+            } catch (CompletionException | CancellationException e) {
+                log.error("Failed to transcode file {}", filename, e.getCause() == null ? e : e.getCause());
+                return null;
+            }
+        }
+        log.info("File '{}' converted", filename);
+        return read;
     }
     
-    private static String getTmpDir() {
-        String val = System.getenv("TmpSoundIndex");
-        if (val == null || val.isBlank()) {
-            return "/tmp/";
-        } else {
-            return val;
+    private static void closeSink(Pipe pipe, String filename) {
+        try {
+            pipe.sink().close();
+        } catch (IOException e) {
+            log.warn("Failed to close the pipe from ffmpeg for {}", filename, e);
         }
     }
     
+    protected interface PCMReader<T> {
+        T read(AudioInputStream audioInputStream) throws IOException;
+    }
+    
 }
@@ -1,14 +1,34 @@
 package dk.kb.xcorrsound.index;
 
 import dk.kb.xcorrsound.FingerPrintDB;
+import dk.kb.xcorrsound.search.BlockSummary;
+import dk.kb.xcorrsound.search.LookupTable;
+import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class FingerprintDBIndexer extends FingerPrintDB {
     
+    //How many files each thread of insertAll can have in flight ahead of the writer
+    private static final int IN_FLIGHT_PER_THREAD = 2;
+    
+    //Files of insertAll with more samples than this, about 100 minutes at 5512 Hz or 64 MB, are not held in memory but
+    //streamed to the index by the writer
+    public static final int DEFAULT_MAX_IN_MEMORY_SAMPLES = 32 * 1024 * 1024;
+    
+    private int maxInMemorySamples = DEFAULT_MAX_IN_MEMORY_SAMPLES;
+    
     private final Logger log = LoggerFactory.getLogger(this.getClass());
     
     public FingerprintDBIndexer(String indexFilename) throws IOException {
@@ -22,7 +42,7 @@ public class FingerprintDBIndexer extends FingerPrintDB {
     
     public void insert(String filename, String indexedName)
             throws IOException, UnsupportedAudioFileException, InterruptedException {
-        // assume we can have the entire file "filename" in memory.
+        // the fingerprints are streamed to the index, so the file does not have to fit in memory.
         // "filename" is the filename of a wav file.
         
         //AudioFile a(filename.c_str());
@@ -31,14 +51,136 @@ public class FingerprintDBIndexer extends FingerPrintDB {
         
         //a.getSamplesForChannel(0, samples);
         log.debug("Generating fingerprints for '{}'", filename);
-        long[] fingerprints = this.getFingerprintStrategy().getFingerprintsForFileForIndex(filename);
-        
-        log.debug("Generated {} fingerprints for '{}'", fingerprints.length, filename);
         
         String indexName1 = "-".equals(filename) ? indexedName : filename;
         
-        // append fingerprint stream to this.dbFilename
-        writeDBToDisk(this.dbFilename, fingerprints, indexName1);
+        // append fingerprint stream to this.dbFilename, as it is generated
+        try (IndexAppender appender = appendToDB(this.dbFilename, indexName1)) {
+            this.getFingerprintStrategy().streamFingerprintsForFileForIndex(filename, appender);
+            appender.commit();
+            log.debug("Generated {} fingerprints for '{}'", appender.getCount(), filename);
+        }
+    }
+    
+    //Append fingerprints generated elsewhere, such as from samples in memory, as the recording indexedName. They must be
+    //made with the parameters of the index
+    public void insert(long[] fingerprints, String indexedName) throws IOException {
+        log.debug("Inserting {} fingerprints as '{}'", fingerprints.length, indexedName);
+        writeDBToDisk(this.dbFilename, fingerprints, indexedName);
+    }
+    
+    public int getMaxInMemorySamples() {
+        return maxInMemorySamples;
+    }
+    
+    //Files of insertAll with more samples than this are streamed to the index instead of held in memory
+    public void setMaxInMemorySamples(int maxInMemorySamples) {
+        this.maxInMemorySamples = maxInMemorySamples;
+    }
+    
+    //Insert the files in the order of the list, with the files decoded and fingerprinted in parallel.
+    //At most numDecoders files are decoded, eg. by ffmpeg, at a time, and numFingerprinters threads fingerprint the
+    //decoded files. The calling thread is the only writer, and it appends the files in the order of the list, so the
+    //index is the same as when inserting them one by one. Each file is kept in memory while it is in flight, and at
+    //most IN_FLIGHT_PER_THREAD files per thread are decoded or fingerprinted ahead of the writer. A file is decoded
+    //to at most maxInMemorySamples samples, so the memory in flight is bounded by that. Longer files are streamed to
+    //the index by the writer when it gets to them, as by insert.
+    public void insertAll(List<String> filenames, int numDecoders, int numFingerprinters)
+            throws IOException, InterruptedException {
+        ExecutorService decoders = Executors.newFixedThreadPool(numDecoders);
+        ExecutorService fingerprinters = Executors.newFixedThreadPool(numFingerprinters);
+        int maxInFlight = IN_FLIGHT_PER_THREAD * (numDecoders + numFingerprinters);
+        Deque<Pair<String, CompletableFuture<long[]>>> inFlight = new ArrayDeque<>();
+        try {
+            for (String filename : filenames) {
+                if (inFlight.size() == maxInFlight) {
+                    writeNext(inFlight);
+                }
+                CompletableFuture<long[]> fingerprints
+                        = CompletableFuture.supplyAsync(() -> decode(filename), decoders)
+                                           .thenApplyAsync(samples -> fingerprint(filename, samples), fingerprinters);
+                inFlight.add(Pair.of(filename, fingerprints));
+            }
+            while (!inFlight.isEmpty()) {
+                writeNext(inFlight);
+            }
+        } finally {
+            for (Pair<String, CompletableFuture<long[]>> file : inFlight) {
+                file.getRight().cancel(true);
+            }
+            decoders.shutdownNow();
+            fingerprinters.shutdownNow();
+        }
+    }
+    
+    private void writeNext(Deque<Pair<String, CompletableFuture<long[]>>> inFlight)
+            throws IOException, InterruptedException {
+        Pair<String, CompletableFuture<long[]>> file = inFlight.poll();
+        long[] fingerprints;
+        try {
+            fingerprints = file.getRight().get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Failed to generate fingerprints for '" + file.getLeft() + "'", cause);
+        }
+        if (fingerprints == null) {
+            log.info("'{}' was not decoded to memory, streaming it to the index", file.getLeft());
+            try {
+                insert(file.getLeft(), file.getLeft());
+            } catch (UnsupportedAudioFileException e) {
+                throw new IOException("Failed to generate fingerprints for '" + file.getLeft() + "'", e);
+            }
+            return;
+        }
+        writeDBToDisk(this.dbFilename, fingerprints, file.getLeft());
+    }
+    
+    //The samples of the file, or null if it has more than maxInMemorySamples or the strategy could not decode it. The
+    //writer then streams the file to the index, which also reports a file that cannot be decoded at all
+    private short[] decode(String filename) {
+        log.debug("Decoding '{}'", filename);
+        long startTime = System.nanoTime();
+        short[] samples;
+        try {
+            samples = this.getFingerprintStrategy().getSamplesForFile(filename, maxInMemorySamples);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (UnsupportedAudioFileException | InterruptedException e) {
+            throw new UncheckedIOException(new IOException("Failed to decode '" + filename + "'", e));
+        }
+        getMetrics().decoded(System.nanoTime() - startTime);
+        if (samples == null || samples.length > maxInMemorySamples) {
+            return null;
+        }
+        return samples;
+    }
+    
+    //The fingerprints of the samples, or null for a file that is to be streamed
+    private long[] fingerprint(String filename, short[] samples) {
+        if (samples == null) {
+            return null;
+        }
+        log.debug("Generating fingerprints for '{}'", filename);
+        long startTime = System.nanoTime();
+        long[] fingerprints = this.getFingerprintStrategy().getFingerprintsForSamples(samples);
+        getMetrics().fingerprinted(System.nanoTime() - startTime);
+        log.debug("Generated {} fingerprints for '{}'", fingerprints.length, filename);
+        return fingerprints;
+    }
+    
+    //(Re)build the lookup table of the index. Files inserted after this are not in the table until it is rebuilt,
+    //but the searcher still finds them by scanning
+    public void buildLookupTable() throws IOException {
+        LookupTable.build(this.dbFilename);
+    }
+    
+    //(Re)build the block summary of the index. Like the lookup table, files inserted after this are scanned in full
+    //until it is rebuilt
+    public void buildBlockSummary() throws IOException {
+        BlockSummary.build(this.dbFilename);
     }
     
 }
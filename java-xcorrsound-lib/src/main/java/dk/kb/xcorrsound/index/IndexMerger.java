@@ -0,0 +1,254 @@
+package dk.kb.xcorrsound.index;
+
+import dk.kb.xcorrsound.FingerPrintDB;
+import dk.kb.xcorrsound.FingerprintCodec;
+import dk.kb.xcorrsound.IndexHeader;
+import dk.kb.xcorrsound.IndexManifest;
+import dk.kb.xcorrsound.OffsetMap;
+import dk.kb.xcorrsound.search.BlockSummary;
+import dk.kb.xcorrsound.search.LookupTable;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+//Merges many small indexes, such as one per day or channel, into a few large segment indexes and a manifest listing
+//them, see IndexManifest. The recordings of the shards are copied in the order of the shards and their maps, and the
+//map of each segment has the ends of the recordings in that segment. A recording is never split between segments.
+//Recordings with a name in the dropped set are left out, so merging a single index compacts it.
+//The segments are <output>.000, <output>.001, ... with headers, so their fingerprints start block aligned. The manifest
+//is <output>.manifest, and is written last, when all the segments are complete.
+public class IndexMerger {
+    
+    private static final Logger log = LoggerFactory.getLogger(IndexMerger.class);
+    
+    //Positions in an index are ints, so a segment holds at most this many fingerprints
+    public static final long MAX_SEGMENT_SIZE = 1L << 30;
+    
+    //Fingerprints copied at a time
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    
+    private final String output;
+    
+    private long segmentSize = MAX_SEGMENT_SIZE;
+    
+    private Set<String> dropped = Set.of();
+    
+    private boolean buildLookupTables = false;
+    
+    private boolean buildBlockSummaries = false;
+    
+    public IndexMerger(String output) {
+        this.output = output;
+    }
+    
+    //Start a new segment when the next recording would take the segment above this many fingerprints
+    public void setSegmentSize(long segmentSize) {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("The segment size must be between 1 and " + MAX_SEGMENT_SIZE
+                                               + " fingerprints, not " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+    
+    //Names of recordings, as in the maps of the shards, that are not copied to the segments
+    public void setDropped(Set<String> dropped) {
+        this.dropped = dropped;
+    }
+    
+    //Build the lookup table of each segment, see LookupTable
+    public void setBuildLookupTables(boolean buildLookupTables) {
+        this.buildLookupTables = buildLookupTables;
+    }
+    
+    //Build the block summary of each segment, see BlockSummary
+    public void setBuildBlockSummaries(boolean buildBlockSummaries) {
+        this.buildBlockSummaries = buildBlockSummaries;
+    }
+    
+    public String getManifestFile() {
+        return output + IndexManifest.SUFFIX;
+    }
+    
+    String getSegmentFile(int segment) {
+        return output + String.format(Locale.ROOT, ".%03d", segment);
+    }
+    
+    //Merge the shards into segments, and return the segment files. The shards must be made with the same parameters
+    public List<String> merge(List<String> shards) throws IOException {
+        if (Files.exists(Path.of(getManifestFile())) || Files.exists(Path.of(getSegmentFile(0)))) {
+            throw new IOException("The merged index " + output + " already exists");
+        }
+        IndexHeader parameters = null;
+        for (String shard : shards) {
+            IndexHeader shardParameters = FingerPrintDB.readParameters(shard);
+            if (parameters == null) {
+                parameters = shardParameters;
+            } else if (!parameters.matches(shardParameters.getFrameLength(),
+                                           shardParameters.getAdvance(),
+                                           shardParameters.getSampleRate(),
+                                           shardParameters.getBands())) {
+                throw new IllegalArgumentException("The index " + shard + " was made with " + shardParameters
+                                                   + ", not with the " + parameters + " of " + shards.get(0));
+            }
+        }
+        if (parameters == null) {
+            throw new IllegalArgumentException("Please specify the indexes to merge");
+        }
+        
+        List<String> segments = new ArrayList<>();
+        Segment segment = null;
+        long recordings = 0;
+        long droppedRecordings = 0;
+        try {
+            for (String shard : shards) {
+                log.info("Merging {} into {}", shard, output);
+                IndexHeader header = IndexHeader.read(shard);
+                FingerprintCodec codec = header == null ? FingerprintCodec.INT : header.getCodec();
+                long dataOffset = header == null ? 0 : header.getDataOffset();
+                long length = header == null ? Files.size(Path.of(shard)) / Integer.BYTES : header.getRecordCount();
+                OffsetMap offsetMap = OffsetMap.open(shard);
+                try (FileChannel in = FileChannel.open(Path.of(shard), StandardOpenOption.READ)) {
+                    for (int entry = 0; entry < offsetMap.size(); entry++) {
+                        String name = offsetMap.getName(entry);
+                        int start = offsetMap.getStart(entry);
+                        int end = offsetMap.getEnd(entry);
+                        if (end > length) {
+                            throw new IOException("The map of " + shard + " has fingerprints up to " + end
+                                                  + ", but the index only has " + length);
+                        }
+                        if (dropped.contains(name)) {
+                            droppedRecordings++;
+                            continue;
+                        }
+                        if (segment != null && segment.size() > 0 && segment.size() + (end - start) > segmentSize) {
+                            Segment full = segment;
+                            segment = null;
+                            full.close();
+                        }
+                        if (segment == null) {
+                            segments.add(getSegmentFile(segments.size()));
+                            segment = new Segment(segments.get(segments.size() - 1), parameters);
+                        }
+                        segment.copy(in, codec, dataOffset + (long) start * codec.getBytes(), end - start, name);
+                        recordings++;
+                    }
+                }
+            }
+            if (segment == null) {
+                //Everything was dropped. The manifest still needs an index to list
+                segments.add(getSegmentFile(0));
+                segment = new Segment(segments.get(0), parameters);
+            }
+        } finally {
+            if (segment != null) {
+                segment.close();
+            }
+        }
+        
+        if (buildLookupTables) {
+            for (String segmentFile : segments) {
+                LookupTable.build(segmentFile);
+            }
+        }
+        if (buildBlockSummaries) {
+            for (String segmentFile : segments) {
+                BlockSummary.build(segmentFile);
+            }
+        }
+        IndexManifest.write(getManifestFile(), segments);
+        log.info("Merged {} recordings from {} indexes into {} segments listed in {}, dropping {} recordings",
+                 recordings, shards.size(), segments.size(), getManifestFile(), droppedRecordings);
+        return segments;
+    }
+    
+    //A segment being written. The header is written when it is closed
+    private static class Segment implements Closeable {
+        
+        private final IndexHeader header;
+        
+        private final FingerprintCodec codec;
+        
+        private final FileChannel channel;
+        
+        private final Writer map;
+        
+        private final long[] values = new long[CHUNK_SIZE];
+        
+        //Room for a chunk of the widest fingerprints
+        private final ByteBuffer inBytes = ByteBuffer.allocate(CHUNK_SIZE * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        
+        private final ByteBuffer outBytes = ByteBuffer.allocate(CHUNK_SIZE * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        
+        Segment(String segmentFile, IndexHeader parameters) throws IOException {
+            this.header  = IndexHeader.create(parameters.getFrameLength(),
+                                              parameters.getAdvance(),
+                                              parameters.getSampleRate(),
+                                              parameters.getBands());
+            this.codec   = header.getCodec();
+            this.channel = FileChannel.open(Path.of(segmentFile),
+                                            StandardOpenOption.CREATE_NEW,
+                                            StandardOpenOption.WRITE);
+            header.write(channel);
+            this.map = IOUtils.buffer(new FileWriter(segmentFile + ".map", StandardCharsets.UTF_8));
+        }
+        
+        //Number of fingerprints in the segment
+        long size() {
+            return header.getRecordCount();
+        }
+        
+        //Copy the count fingerprints at byteOffset in the shard to the end of the segment, as the recording name
+        void copy(FileChannel in, FingerprintCodec shardCodec, long byteOffset, long count, String name)
+                throws IOException {
+            long copied = 0;
+            while (copied < count) {
+                int chunk = (int) Math.min(CHUNK_SIZE, count - copied);
+                inBytes.clear().limit(chunk * shardCodec.getBytes());
+                while (inBytes.hasRemaining()) {
+                    if (in.read(inBytes, byteOffset + copied * shardCodec.getBytes() + inBytes.position()) < 0) {
+                        throw new IOException("Unexpected end of the index while copying " + name);
+                    }
+                }
+                inBytes.flip();
+                Buffer inValues = shardCodec.view(inBytes);
+                Buffer outValues = codec.view(outBytes.clear());
+                for (int i = 0; i < chunk; i++) {
+                    values[i] = shardCodec.get(inValues, i);
+                    codec.put(outValues, i, values[i]);
+                }
+                outBytes.limit(chunk * codec.getBytes());
+                long position = header.getDataOffset() + header.getRecordCount() * codec.getBytes();
+                while (outBytes.hasRemaining()) {
+                    channel.write(outBytes, position + outBytes.position());
+                }
+                header.append(values, chunk);
+                copied += chunk;
+            }
+            map.write(header.getRecordCount() + " " + name + "\n");
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try (channel; map) {
+                header.write(channel);
+            }
+        }
+    }
+}
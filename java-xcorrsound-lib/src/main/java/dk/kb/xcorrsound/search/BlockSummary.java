@@ -0,0 +1,204 @@
+package dk.kb.xcorrsound.search;
+
+import dk.kb.xcorrsound.IndexHeader;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+import static dk.kb.xcorrsound.FingerPrintDB.nearRange;
+
+//A coarse summary of each block of BLOCK_SIZE fingerprints of the index: the OR and the AND of the fingerprints, and
+//the lowest and highest number of bits set in them. From these, a lower bound of the distance between a query
+//fingerprint and any fingerprint of the block follows, as
+//  the bits the query has, that no fingerprint of the block has, plus the bits all of them have, that the query has not
+//  the difference between the bits set in the query and the range of bits set in the block
+//Summed over the query, this bounds the distance of every window in a pair of blocks, so the scan can pass over the
+//full comparison of checkNearPos where no window can get below the criteria. The early termination is still checked,
+//so the scan moves through the same positions with or without the summary.
+//The summary is stored beside the index as <index>.sum, in little endian:
+//  int MAGIC, int VERSION, int BLOCK_SIZE, int reserved, long the number of fingerprints in the index when the summary
+//  was built, N
+//  for each of the ceil(N / BLOCK_SIZE) blocks: long OR, long AND, int lowest bits set, int highest bits set
+//Fingerprints appended to the index after the summary was built are not in it, and are always scanned.
+public class BlockSummary {
+    
+    private static final Logger log = LoggerFactory.getLogger(BlockSummary.class);
+    
+    private static final int MAGIC = 0x4D555358; //XSUM
+    
+    private static final int VERSION = 1;
+    
+    static final int BLOCK_SIZE = 1024;
+    
+    private static final int HEADER_BYTES = 4 * Integer.BYTES + Long.BYTES;
+    
+    private static final int BLOCK_BYTES = 2 * Long.BYTES + 2 * Integer.BYTES;
+    
+    private final ByteBuffer buffer;
+    
+    private final long coveredLength;
+    
+    private BlockSummary(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_BYTES
+            || buffer.getInt(0) != MAGIC
+            || buffer.getInt(4) != VERSION
+            || buffer.getInt(8) != BLOCK_SIZE) {
+            throw new IOException("Not a block summary of version " + VERSION + " with blocks of " + BLOCK_SIZE);
+        }
+        this.coveredLength = buffer.getLong(16);
+        if (buffer.capacity() < HEADER_BYTES + getNumBlocks(coveredLength) * BLOCK_BYTES) {
+            throw new IOException("Block summary is truncated");
+        }
+    }
+    
+    public static String getSummaryFile(String dbFilename) {
+        return dbFilename + ".sum";
+    }
+    
+    //Open the summary of the index, or null if the index does not have one
+    static BlockSummary open(String dbFilename) throws IOException {
+        File file = new File(getSummaryFile(dbFilename));
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new BlockSummary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+    
+    //Build the summary of the index as it is now, replacing any existing summary
+    public static void build(String dbFilename) throws IOException {
+        log.info("Building block summary for {}", dbFilename);
+        MappedDB db = MappedDB.openIndex(dbFilename, IndexHeader.read(dbFilename));
+        long length = db.length();
+        
+        //Write to a temporary file first, so a searcher never sees a half written summary
+        Path summaryFile = Path.of(getSummaryFile(dbFilename));
+        Path tmpFile = Path.of(summaryFile + ".tmp");
+        try (DataOutputStream of = new DataOutputStream(IOUtils.buffer(FileUtils.openOutputStream(tmpFile.toFile())))) {
+            //Written as LittleEndian
+            of.writeInt(Integer.reverseBytes(MAGIC));
+            of.writeInt(Integer.reverseBytes(VERSION));
+            of.writeInt(Integer.reverseBytes(BLOCK_SIZE));
+            of.writeInt(0);
+            of.writeLong(Long.reverseBytes(length));
+            for (long blockStart = 0; blockStart < length; blockStart += BLOCK_SIZE) {
+                long or = 0;
+                long and = -1;
+                int minBits = Long.SIZE;
+                int maxBits = 0;
+                for (long i = blockStart; i < Math.min(blockStart + BLOCK_SIZE, length); i++) {
+                    long fingerprint = db.get(i);
+                    or |= fingerprint;
+                    and &= fingerprint;
+                    minBits = Math.min(minBits, Long.bitCount(fingerprint));
+                    maxBits = Math.max(maxBits, Long.bitCount(fingerprint));
+                }
+                of.writeLong(Long.reverseBytes(or));
+                of.writeLong(Long.reverseBytes(and));
+                of.writeInt(Integer.reverseBytes(minBits));
+                of.writeInt(Integer.reverseBytes(maxBits));
+            }
+        }
+        Files.move(tmpFile, summaryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Block summary for {} fingerprints written to {}", length, summaryFile);
+    }
+    
+    private static long getNumBlocks(long length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+    
+    //Number of fingerprints at the start of the index that are in the summary
+    long getCoveredLength() {
+        return coveredLength;
+    }
+    
+    //Lower bound of the distance between the fingerprint and any fingerprint of the block
+    int lowerBound(long fingerprint, int block) {
+        int offset = HEADER_BYTES + block * BLOCK_BYTES;
+        long or = buffer.getLong(offset);
+        long and = buffer.getLong(offset + Long.BYTES);
+        int minBits = buffer.getInt(offset + 2 * Long.BYTES);
+        int maxBits = buffer.getInt(offset + 2 * Long.BYTES + Integer.BYTES);
+        
+        int maskBound = Long.bitCount(fingerprint & ~or) + Long.bitCount(~fingerprint & and);
+        int bits = Long.bitCount(fingerprint);
+        int bitsBound = bits < minBits ? minBits - bits : Math.max(0, bits - maxBits);
+        return Math.max(maskBound, bitsBound);
+    }
+    
+    //The filter of the scan positions for the query
+    Filter filter(PackedQuery query) {
+        return new Filter(query);
+    }
+    
+    //Tells the scan positions of a query where no window of checkNearPos can be a hit. The windows of checkNearPos at
+    //the positions [firstPos, lastPos] hold the fingerprints [firstPos - nearRange - macro_sz, lastPos + nearRange) of
+    //the index, which are in one or a few blocks. The bound of the last blocks is kept, as the scan asks about many
+    //positions in the same blocks
+    class Filter {
+        
+        private final PackedQuery query;
+        
+        //The query fingerprints, as they are stored in the index
+        private final long[] fingerprints = new long[macro_sz];
+        
+        private int firstBlock = -1;
+        
+        private int lastBlock = -1;
+        
+        private int bound = 0;
+        
+        private Filter(PackedQuery query) {
+            this.query = query;
+            for (int i = 0; i < macro_sz; i++) {
+                fingerprints[i] = query.codec.mask(query.fingerprints[i + query.start]);
+            }
+        }
+        
+        //Whether no window of checkNearPos at the positions [firstPos, lastPos] can get below the criteria
+        boolean excludes(int firstPos, int lastPos, double criteria) {
+            long dataStart = (long) firstPos - nearRange - macro_sz;
+            long dataEnd = (long) lastPos + nearRange;
+            if (dataStart < 0 || dataEnd > coveredLength) {
+                //The windows overlap the zeroes before the index, or fingerprints that are not in the summary
+                return false;
+            }
+            int first = (int) (dataStart / BLOCK_SIZE);
+            int last = (int) ((dataEnd - 1) / BLOCK_SIZE);
+            if (first != firstBlock || last != lastBlock) {
+                bound      = lowerBound(first, last);
+                firstBlock = first;
+                lastBlock  = last;
+            }
+            return bound >= criteria;
+        }
+        
+        //Lower bound of the distance between the query and any window of fingerprints in the blocks [first, last]
+        private int lowerBound(int first, int last) {
+            int sum = query.unmatchableBits[macro_sz];
+            for (int i = 0; i < macro_sz; i++) {
+                int fingerprintBound = Integer.MAX_VALUE;
+                for (int block = first; block <= last; block++) {
+                    fingerprintBound = Math.min(fingerprintBound, BlockSummary.this.lowerBound(fingerprints[i], block));
+                }
+                sum += fingerprintBound;
+            }
+            return sum;
+        }
+    }
+}
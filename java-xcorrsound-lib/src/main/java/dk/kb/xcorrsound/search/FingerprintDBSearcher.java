@@ -1,27 +1,93 @@
 package dk.kb.xcorrsound.search;
 
 import dk.kb.xcorrsound.FingerPrintDB;
-import dk.kb.xcorrsound.Utils;
+import dk.kb.xcorrsound.FingerprintCodec;
+import dk.kb.xcorrsound.IndexHeader;
+import dk.kb.xcorrsound.OffsetMap;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sound.sampled.UnsupportedAudioFileException;
-import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
 public class FingerprintDBSearcher extends FingerPrintDB {
     
     public static final double DEFAULT_CRITERIA = 0.35 * (macro_sz * Integer.BYTES * 8); //This  seems dependent on the number of bands....
     
+    //Number of ints scanned per blob of the index
+    private static final int BLOB_SIZE = 1024 * 1024;
+    
+    //Split a parallel scan into more ranges than threads, so a slow range does not leave the others idle
+    private static final int RANGES_PER_THREAD = 4;
+    
+    //Do not split the index into ranges smaller than this
+    private static final int MIN_RANGE_SIZE = 64 * 1024;
+    
+    //The most positions checkNearPos compares, see the window of ScanState
+    private static final int WINDOW_SIZE = 2 * nearRange + macro_sz;
+    
     private static final Logger log = LoggerFactory.getLogger(FingerprintDBSearcher.class);
     
+    //How query_scan reads the index. Both modes give the same results
+    public enum ScanMode {
+        //Read the index through a stream, one blob at a time
+        STREAM,
+        //Map the index file into memory and read the ints in place
+        MAPPED
+    }
+    
+    private ScanMode scanMode = ScanMode.MAPPED;
+    
+    //Pool for scanning ranges of a single index in parallel. Only used in ScanMode.MAPPED. If null, the index is
+    //scanned by the calling thread
+    private ForkJoinPool forkJoinPool = null;
+    
+    //Use the lookup table of the index when it has one. Only used in ScanMode.MAPPED
+    private boolean useLookupTable = true;
+    
+    //Pass over the positions where the block summary of the index shows that the query cannot match, when the index
+    //has a summary. Used in both scan modes
+    private boolean useBlockSummary = true;
+    
+    //Positions the scan steps the index by, see setScanStride
+    private int scanStride = 8;
+    
+    //Distance between the phases of the query compared at each scan position, see setScanStride
+    private int phaseStep = 8;
+    
+    //Also look up the values one bit away from each query fingerprint, as Haitsma and Kalker do. This finds queries
+    //that are too noisy to share an exact fingerprint with the index, at the cost of 33 lookups per fingerprint
+    private boolean lookupBitFlips = true;
+    
+    //The index and lookup table stay mapped between searches, and are opened again when the files change on disk.
+    //A searcher that is kept open, as in a server, then finds the files appended to the index without a restart
+    private MappedDB mappedDB = null;
+    
+    private LookupTable lookupTable = null;
+    
+    private long lookupTableModified = -1;
+    
+    private BlockSummary blockSummary = null;
+    
+    private long blockSummaryModified = -1;
+    
     public FingerprintDBSearcher(String indexFile) throws IOException {
         super(indexFile);
     }
@@ -31,6 +97,73 @@ public class FingerprintDBSearcher extends FingerPrintDB {
         super(frameLength, advance, sampleRate, bands, indexFile);
     }
     
+    public ScanMode getScanMode() {
+        return scanMode;
+    }
+    
+    public void setScanMode(ScanMode scanMode) {
+        this.scanMode = scanMode;
+    }
+    
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+    
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+    
+    public boolean isUseLookupTable() {
+        return useLookupTable;
+    }
+    
+    public void setUseLookupTable(boolean useLookupTable) {
+        this.useLookupTable = useLookupTable;
+    }
+    
+    public boolean isUseBlockSummary() {
+        return useBlockSummary;
+    }
+    
+    public void setUseBlockSummary(boolean useBlockSummary) {
+        this.useBlockSummary = useBlockSummary;
+    }
+    
+    public int getScanStride() {
+        return scanStride;
+    }
+    
+    //The scan compares the query with the index every scanStride positions. To still see a match that is not aligned
+    //with a scan position, it compares ceil(scanStride / phaseStep) phases of the query, shifted phaseStep fingerprints
+    //apart, so every match is less than phaseStep from a scan position in one of the phases. The default of 8 and 8 is
+    //the original scan, of a single phase. A larger stride with the same phaseStep reads each part of the index once
+    //for all the phases, and a larger phaseStep trades recall for fewer comparisons
+    public void setScanStride(int scanStride) {
+        if (scanStride <= 0) {
+            throw new IllegalArgumentException("The scan stride must be positive, not " + scanStride);
+        }
+        this.scanStride = scanStride;
+    }
+    
+    public int getPhaseStep() {
+        return phaseStep;
+    }
+    
+    public void setPhaseStep(int phaseStep) {
+        if (phaseStep <= 0) {
+            throw new IllegalArgumentException("The phase step must be positive, not " + phaseStep);
+        }
+        this.phaseStep = phaseStep;
+    }
+    
+    public boolean isLookupBitFlips() {
+        return lookupBitFlips;
+    }
+    
+    public void setLookupBitFlips(boolean lookupBitFlips) {
+        this.lookupBitFlips = lookupBitFlips;
+    }
+    
     public List<IsmirSearchResult> query_scan(String queryFilename,
                                               Long offsetSeconds,
                                               double criteria)
@@ -56,188 +189,887 @@ public class FingerprintDBSearcher extends FingerPrintDB {
     
     public List<IsmirSearchResult> query_scan(long[] fingerprints, double criteria)
             throws IOException {
-        int[] db = new int[1024 * 1024 + macro_sz];
-        
+        return query_scan(List.of(fingerprints), criteria).get(0);
+    }
+    
+    //Search for several queries in one pass over the index. Each part of the index is read once and checked against
+    //every query. The result holds the hits for each query, in the order of the queries
+    public List<List<IsmirSearchResult>> query_scan(List<long[]> queries, double criteria)
+            throws IOException {
+        return search(queries, new Ranking(criteria, Integer.MAX_VALUE, false));
+    }
+    
+    public List<IsmirSearchResult> query_top(long[] fingerprints, double criteria, int topK) throws IOException {
+        return query_top(List.of(fingerprints), criteria, topK).get(0);
+    }
+    
+    //Like query_scan, but only the topK best hits of each query, best first. Once topK hits are found, the criteria is
+    //lowered to the distance of the worst of them, so fewer windows are checked in full
+    public List<List<IsmirSearchResult>> query_top(List<long[]> queries, double criteria, int topK)
+            throws IOException {
+        if (topK <= 0) {
+            throw new IllegalArgumentException("topK must be positive, not " + topK);
+        }
+        return search(queries, new Ranking(criteria, topK, false));
+    }
+    
+    public List<IsmirSearchResult> query_first(long[] fingerprints, double criteria) throws IOException {
+        return query_first(List.of(fingerprints), criteria).get(0);
+    }
+    
+    //Like query_scan, but only the first hit of each query. The search for a query stops when it has a hit, and the
+    //search of the index stops when all the queries have one. With a forkJoinPool, each range of the index stops at
+    //its own first hit
+    public List<List<IsmirSearchResult>> query_first(List<long[]> queries, double criteria) throws IOException {
+        return search(queries, new Ranking(criteria, Integer.MAX_VALUE, true));
+    }
+    
+    private List<List<IsmirSearchResult>> search(List<long[]> queries, Ranking ranking) throws IOException {
+        log.info("Starting search for {} queries in {}", queries.size(), dbFilename);
+        checkQueries(queries);
+        long startTime = System.nanoTime();
+        refreshOffsetMap();
+        //The header is read again for each search, as files might have been appended since the last
+        IndexHeader header = IndexHeader.read(dbFilename);
+        BlockSummary summary = useBlockSummary ? getBlockSummary() : null;
+        if (summary != null && summary.getCoveredLength() > getIndexLength(header)) {
+            log.warn("The block summary of {} is for a larger index, so it is not used", dbFilename);
+            summary = null;
+        }
+        List<List<IsmirSearchResult>> result = new ArrayList<>();
+        List<List<IsmirSearchResult>> hits;
+        if (scanMode == ScanMode.MAPPED) {
+            hits = query_scan_mapped(queries, ranking, header, summary);
+        } else {
+            hits = query_scan_stream(queries, ranking, header, summary);
+        }
+        for (List<IsmirSearchResult> queryHits : hits) {
+            result.add(ranking.rank(queryHits));
+        }
+        getMetrics().searched(queries.size(), System.nanoTime() - startTime);
+        getMetrics().hits(result.stream().mapToLong(List::size).sum());
+        log.info("Completed search in {}", dbFilename);
+        return result;
+    }
+    
+    //Fingerprints made with more bands than the index cannot be found in it, so such queries are rejected before the
+    //index is read
+    private void checkQueries(List<long[]> queries) {
+        int bands = getBands();
+        if (bands >= Long.SIZE) {
+            return;
+        }
+        for (long[] fingerprints : queries) {
+            for (long fingerprint : fingerprints) {
+                if (fingerprint >>> bands != 0) {
+                    throw new IllegalArgumentException("The query has fingerprints of more than the " + bands
+                                                       + " bands of the index " + dbFilename);
+                }
+            }
+        }
+    }
+    
+    // Positions in the scan are offsets in the index, preceded by macro_sz zeroes. This is the layout readDBBlob
+    // gives the first blob, and the one all hit positions are reported in.
+    
+    private List<List<IsmirSearchResult>> query_scan_stream(List<long[]> queries,
+                                                            Ranking ranking,
+                                                            IndexHeader header,
+                                                            BlockSummary summary) throws IOException {
+        FingerprintCodec codec = getCodec(header);
+        Buffer db = codec.allocate(BLOB_SIZE + macro_sz);
+        ByteBuffer blobBytes = ByteBuffer.allocate(BLOB_SIZE * codec.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        long dataOffset = header == null ? 0 : header.getDataOffset();
+        long length = getIndexLength(header);
+        int scanEnd = macro_sz + (int) length;
         
-        try (DataInputStream dataInputStream = new DataInputStream(IOUtils.buffer(new FileInputStream(this.dbFilename)))) {
-            log.info("Starting search in {}", dbFilename);
-            int pos = 0;
-            int prevMatchPos = Integer.MAX_VALUE;
-            
-            List<IsmirSearchResult> result = new ArrayList<>();
-            
-            while (true) {
-                int bufferContentCount = readDBBlob(db, dataInputStream);
+        List<ScanState> states = createStates(queries, ranking, summary, 0, codec);
+        try (InputStream inputStream = openIndexStream(dataOffset, length * codec.getBytes());
+             WindowProvider windowProvider = new WindowProvider(dbFilename,
+                                                                codec,
+                                                                dataOffset,
+                                                                scanEnd,
+                                                                getMetrics())) {
+            //The blob holds the positions [blobStart, blobStart + macro_sz + bufferContentCount)
+            for (int blobStart = 0; !allDone(states); blobStart += BLOB_SIZE) {
+                windowProvider.retainView();
+                int bufferContentCount = readBlob(db, blobBytes, codec, inputStream);
                 //log.info("Reading next blob of {} bytes from db", read_bytes);
                 if (bufferContentCount <= 0) {
                     break;
                 }
-                
-                //i counts through the bufferContent.
-                //pos counts through the actual DB contents, so it is NOT reset in each loop
-                for (int i = 0; i < bufferContentCount; i += 8, pos += 8) {
-                    
-                    int sampleRate = this.getFingerprintStrategy().getSampleRate();
-                    
-                    //If we are to close to the previous match, just continue
-                    if (pos - prevMatchPos < (sampleRate / 64)
-                        && prevMatchPos != Integer.MAX_VALUE) {
-                        continue;
-                    }
-                    
-                    //Check for early termination
-                    if (hammingEarlyTerminate(fingerprints, db, i).getKey()) {
-                        //log.debug("Stopping search at frame {} as noisy overlap ({})",i,dist);
-                        continue;
-                    } else {
-                        
-                        log.trace("Found possible match at {}, examining further", i);
-                        Map.Entry<Integer, Integer> checkNearPosResult = checkNearPos(fingerprints,
-                                                                                      pos,
-                                                                                      db,
-                                                                                      i);
-                        i += nearRange;
-                        pos += nearRange;
-                        
-                        final Integer hitDist = checkNearPosResult.getKey();
-                        final Integer hitPos = checkNearPosResult.getValue();
-                        
-                        if (hitDist < criteria) {
-                            log.info("Found hit at offset {} with dist {}", hitPos, hitDist);
-                            prevMatchPos = hitPos;
-                            
-                            
-                            Pair<Integer, Integer> hitEntry = offsetsToFile.keySet()
-                                                                           .stream()
-                                                                           //Only those that END after this hit
-                                                                           .filter(pair -> pair.getRight() > hitPos
-                                                                                           && hitPos >= pair.getLeft())
-                                                                           .findFirst()
-                                                                           .orElse(Pair.of(0, 0));
-                            
-                            String filenameResult = offsetsToFile.get(hitEntry);
-                            
-                            
-                            Integer hitFileStart = hitEntry.getLeft();
-                            
-                            IsmirSearchResult ismirSearchResult = new IsmirSearchResult(filenameResult,
-                                                                                        hitPos,
-                                                                                        hitDist,
-                                                                                        hitFileStart,
-                                                                                        this.getFingerprintStrategy());
-                            result.add(ismirSearchResult);
-                        }
-                        
-                    }
+                windowProvider.setView(db, blobStart, macro_sz + bufferContentCount);
+                getMetrics().bytesRead((long) bufferContentCount * codec.getBytes());
+                for (ScanState state : states) {
+                    scanPositions(db,
+                                  blobStart,
+                                  Math.min(blobStart + bufferContentCount, scanEnd),
+                                  scanEnd,
+                                  state,
+                                  windowProvider);
+                }
+                if (blobStart + bufferContentCount >= length) {
+                    scanTail(db, bufferContentCount, (int) length, scanEnd, states, windowProvider, codec);
+                    break;
                 }
             }
-            log.info("Completed search in {}", dbFilename);
-            return result;
         }
-        
+        return getResults(states);
+    }
+    
+    //Scan the positions [length, scanEnd) after the last blob, whose windows hold the last fingerprints of the index
+    //followed by zeroes, as in the mapped scan. They are at tailOffset in the blob, but it has no room for the zeroes
+    private void scanTail(Buffer db,
+                          int tailOffset,
+                          int length,
+                          int scanEnd,
+                          List<ScanState> states,
+                          WindowProvider windowProvider,
+                          FingerprintCodec codec) throws IOException {
+        if (allDone(states)) {
+            return;
+        }
+        Buffer tail = codec.allocate(2 * macro_sz);
+        codec.copy(db, tailOffset, tail, 0, scanEnd - length);
+        windowProvider.retainView();
+        windowProvider.setView(tail, length, scanEnd - length);
+        for (ScanState state : states) {
+            scanPositions(tail, length, scanEnd, scanEnd, state, windowProvider);
+        }
+    }
+    
+    //Stream the byteLength bytes of fingerprints from dataOffset in the index. The blobs are read in bulk, so the
+    //stream is not buffered
+    private InputStream openIndexStream(long dataOffset, long byteLength) throws IOException {
+        InputStream inputStream = new FileInputStream(this.dbFilename);
+        try {
+            IOUtils.skipFully(inputStream, dataOffset);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        return new BoundedInputStream(inputStream, byteLength);
+    }
+    
+    //Like FingerPrintDB.readDBBlob, for fingerprints of any width: the last macro_sz fingerprints of the blob are
+    //moved to the start, and the rest is filled from the stream, through blobBytes. Returns the number of fingerprints
+    //read
+    private static int readBlob(Buffer blob, ByteBuffer blobBytes, FingerprintCodec codec, InputStream inputStream)
+            throws IOException {
+        codec.copy(blob, blob.capacity() - macro_sz, blob, 0, macro_sz);
+        int read = IOUtils.read(inputStream, blobBytes.array(), 0, blobBytes.capacity());
+        int count = read / codec.getBytes();
+        blobBytes.clear().limit(count * codec.getBytes());
+        codec.copy(codec.view(blobBytes), 0, blob, macro_sz, count);
+        //Clear the rest, so windows overlapping the end of the index do not see the contents of the previous blob
+        codec.clear(blob, macro_sz + count, blob.capacity());
+        return count;
     }
     
+    //How the fingerprints of the index are stored. An index without a header stores ints
+    private static FingerprintCodec getCodec(IndexHeader header) {
+        return header == null ? FingerprintCodec.INT : header.getCodec();
+    }
+    
+    //Number of fingerprints in the index. With a header, fingerprints after the record count are not committed yet
+    private long getIndexLength(IndexHeader header) {
+        return header == null ? new File(dbFilename).length() / Integer.BYTES : header.getRecordCount();
+    }
     
-    // percentage error. Break if in the 'noise zone'.
-    // only check every now and then (i % 5)
-    // and we must have a decent baseline, i.e. at least 10% through computation.
-    // this is a heuristic to terminate early if we can see
-    // there will not be a match here.
-    private static Map.Entry<Boolean, Integer> hammingEarlyTerminate(long[] fingerprints, int[] db, int start) {
+    private List<List<IsmirSearchResult>> query_scan_mapped(List<long[]> queries,
+                                                            Ranking ranking,
+                                                            IndexHeader header,
+                                                            BlockSummary summary) throws IOException {
+        MappedDB mappedDB = getMappedDB(header);
+        int scanEnd = (int) (macro_sz + mappedDB.length());
         
-        int dist = 0;
-        for (int i = 0; i < macro_sz; ++i) {
-            
-            dist += matchFingerprints(fingerprints[i + fpSkip], db[i + start]);
-            
-            if ((i % 5) == 0 && i > macro_sz / 10) {
-                double bitsSeenSoFar = i * 4 * 8;
-                double errorPercentage = dist / bitsSeenSoFar;
-                if (errorPercentage > 0.43 && errorPercentage < 0.537) {
-                    return Map.entry(true, dist);
-                }
+        LookupTable lookupTable = useLookupTable ? getLookupTable() : null;
+        if (lookupTable != null) {
+            if (lookupTable.getCoveredLength() <= mappedDB.length()) {
+                return query_lookup(queries, ranking, summary, mappedDB, lookupTable, scanEnd);
             }
+            log.warn("The lookup table of {} is for a larger index, so it is not used", dbFilename);
         }
-        return Map.entry(false, dist);
+        return scanMapped(queries, ranking, summary, mappedDB, 0, scanEnd);
     }
     
+    private synchronized MappedDB getMappedDB(IndexHeader header) throws IOException {
+        if (mappedDB == null || mappedDB.length() != getIndexLength(header)) {
+            mappedDB = MappedDB.openIndex(dbFilename, header);
+        }
+        return mappedDB;
+    }
     
-    // checks +/- 150 around posInIndex.
-    private Map.Entry<Integer, Integer> checkNearPos(long[] fingerprints,
-                                                     int posInIndex,
-                                                     int[] db,
-                                                     int posInDb)
-            throws IOException {
+    //The block summary of the index, or null if it has none. A rebuilt summary is opened again, like the lookup table
+    private synchronized BlockSummary getBlockSummary() throws IOException {
+        long modified = new File(BlockSummary.getSummaryFile(dbFilename)).lastModified();
+        if (modified != blockSummaryModified) {
+            blockSummary         = BlockSummary.open(dbFilename);
+            blockSummaryModified = modified;
+        }
+        return blockSummary;
+    }
+    
+    //The lookup table of the index, or null if it has none. A rebuilt table is a new file, with a new modification time
+    private synchronized LookupTable getLookupTable() throws IOException {
+        long modified = new File(LookupTable.getLookupTableFile(dbFilename)).lastModified();
+        if (modified != lookupTableModified) {
+            lookupTable         = LookupTable.open(dbFilename);
+            lookupTableModified = modified;
+        }
+        return lookupTable;
+    }
+    
+    //Only verify the positions where the index shares a fingerprint with the query, as found in the lookup table.
+    //The part of the index appended after the table was built is scanned
+    private List<List<IsmirSearchResult>> query_lookup(List<long[]> queries,
+                                                       Ranking ranking,
+                                                       BlockSummary summary,
+                                                       MappedDB mappedDB,
+                                                       LookupTable lookupTable,
+                                                       int scanEnd) throws IOException {
+        WindowReader windowReader = (windowStart, windowLength, window) -> readMappedWindow(mappedDB,
+                                                                                            windowStart,
+                                                                                            windowLength,
+                                                                                            scanEnd,
+                                                                                            window);
+        List<List<IsmirSearchResult>> hits = new ArrayList<>();
+        for (long[] fingerprints : queries) {
+            hits.add(lookupHits(new PackedQuery(fingerprints, mappedDB.getCodec()),
+                                ranking,
+                                lookupTable,
+                                scanEnd,
+                                windowReader));
+        }
         
-        int[] window;
+        int coveredLength = (int) lookupTable.getCoveredLength();
+        boolean allFound = ranking.firstMatch && hits.stream().noneMatch(List::isEmpty);
+        if (coveredLength < mappedDB.length() && !allFound) {
+            //Scan from the first position that compares the query with a fingerprint not in the table. The phases of a
+            //longer stride compare the query up to scanStride - 8 positions after the scan position
+            int scanStart = Math.max(0, coveredLength - (scanStride - 8)) & ~7;
+            log.debug("Scanning the {} fingerprints of {} that are not in the lookup table",
+                      mappedDB.length() - coveredLength, dbFilename);
+            List<List<IsmirSearchResult>> scanHits = scanMapped(queries,
+                                                                ranking,
+                                                                summary,
+                                                                mappedDB,
+                                                                scanStart,
+                                                                scanEnd);
+            for (int i = 0; i < queries.size(); i++) {
+                hits.get(i).addAll(scanHits.get(i));
+            }
+        }
         
-        //First we handle the case of the window is INSIDE the DB
-        int windowStart = posInDb - nearRange;
-        int windowEnd = posInDb + nearRange + macro_sz;
-        if (windowStart > 0 && windowEnd < db.length) {
-            window = Arrays.copyOfRange(db,
-                    /* From */ windowStart,
-                    /* To*/ windowEnd);
+        List<List<IsmirSearchResult>> result = new ArrayList<>();
+        for (List<IsmirSearchResult> queryHits : hits) {
+            result.add(mergeHits(queryHits));
+        }
+        return result;
+    }
+    
+    private List<IsmirSearchResult> lookupHits(PackedQuery query,
+                                               Ranking ranking,
+                                               LookupTable lookupTable,
+                                               int scanEnd,
+                                               WindowReader windowReader) throws IOException {
+        int sampleRate = this.getFingerprintStrategy().getSampleRate();
+        
+        //The scan positions that would align the query with an index fingerprint of the same value
+        int[] candidates = new int[macro_sz];
+        int numCandidates = 0;
+        //The table holds the lower 32 bits of the fingerprints, so no more bits than that are flipped
+        int numProbes = lookupBitFlips ? Math.min(query.codec.getBits(), Integer.SIZE) + 1 : 1;
+        for (int i = 0; i < macro_sz; i++) {
+            int value = query.packed[i];
+            for (int probe = 0; probe < numProbes; probe++) {
+                int probeValue = probe == 0 ? value : value ^ (1 << (probe - 1));
+                long from = lookupTable.lowerBound(probeValue);
+                long to = lookupTable.upperBound(probeValue);
+                if (to - from > LookupTable.MAX_POSITIONS_PER_VALUE) {
+                    continue;
+                }
+                for (long entry = from; entry < to; entry++) {
+                    if (numCandidates == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, candidates.length * 2);
+                    }
+                    candidates[numCandidates++] = lookupTable.getPosition(entry) - i + macro_sz;
+                }
+            }
+        }
+        Arrays.sort(candidates, 0, numCandidates);
+        log.debug("Verifying {} candidate positions from the lookup table of {}", numCandidates, dbFilename);
+        
+        Hits hits = new Hits(ranking);
+        Buffer window = query.codec.allocate(WINDOW_SIZE);
+        int prevMatchPos = Integer.MAX_VALUE;
+        int checkedTo = Integer.MIN_VALUE;
+        for (int c = 0; c < numCandidates && !hits.isDone(); c++) {
+            int pos = candidates[c];
+            //checkNearPos of an earlier candidate has already checked this position
+            if (pos < checkedTo) {
+                continue;
+            }
+            if (pos - prevMatchPos < (sampleRate / 64)
+                && prevMatchPos != Integer.MAX_VALUE) {
+                continue;
+            }
+            long checkNearPosResult = checkNearPos(query,
+                                                   pos,
+                                                   hits.getCriteria(),
+                                                   null,
+                                                   0,
+                                                   scanEnd,
+                                                   windowReader,
+                                                   window);
+            checkedTo = pos + nearRange;
             
-        } else { //The windows was NOT inside the db
+            final int hitDist = hitDist(checkNearPosResult);
+            final int hitPos = hitPos(checkNearPosResult);
             
-            //Start from the posInIndex, or 0 if this would be negative
-            windowStart = Math.max(0, posInIndex - nearRange);
+            if (hitDist < hits.getCriteria()) {
+                log.info("Found hit at offset {} with dist {}", hitPos, hitDist);
+                prevMatchPos = hitPos;
+                hits.add(hitDist, hitPos);
+            }
+        }
+        return toResults(hits);
+    }
+    
+    //Scan the positions [scanStart, scanEnd) of the mapped index, in parallel if there is a forkJoinPool
+    private List<List<IsmirSearchResult>> scanMapped(List<long[]> queries,
+                                                     Ranking ranking,
+                                                     BlockSummary summary,
+                                                     MappedDB mappedDB,
+                                                     int scanStart,
+                                                     int scanEnd) throws IOException {
+        int numRanges = 1;
+        if (forkJoinPool != null) {
+            numRanges = (int) Math.min((long) forkJoinPool.getParallelism() * RANGES_PER_THREAD,
+                                       (scanEnd - scanStart) / MIN_RANGE_SIZE);
+        }
+        if (numRanges <= 1) {
+            return scanMappedRange(queries, ranking, summary, mappedDB, scanStart, scanEnd, scanEnd);
+        }
+        
+        //Split the index into ranges of positions. Range boundaries are on the scanStride grid of the serial scan.
+        //Each range sees the index up to macro_sz + nearRange beyond its end, so the windows of its last positions
+        //overlap the next range and no hit is lost at the boundary
+        int rangeSize = ((scanEnd - scanStart) / numRanges + scanStride - 1) / scanStride * scanStride;
+        List<Callable<List<List<IsmirSearchResult>>>> rangeScans = new ArrayList<>();
+        for (int from = scanStart; from < scanEnd; from += rangeSize) {
+            final int rangeStart = from;
+            final int rangeEnd = Math.min(from + rangeSize, scanEnd);
+            rangeScans.add(() -> scanMappedRange(queries, ranking, summary, mappedDB, rangeStart, rangeEnd, scanEnd));
+        }
+        log.debug("Scanning {} ranges of {} positions in {}", rangeScans.size(), rangeSize, dbFilename);
+        
+        List<List<IsmirSearchResult>> hits = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            hits.add(new ArrayList<>());
+        }
+        for (Future<List<List<IsmirSearchResult>>> rangeHits : forkJoinPool.invokeAll(rangeScans)) {
+            try {
+                List<List<IsmirSearchResult>> rangeResult = rangeHits.get();
+                for (int i = 0; i < queries.size(); i++) {
+                    hits.get(i).addAll(rangeResult.get(i));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while searching " + dbFilename, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to search " + dbFilename, e.getCause());
+            }
+        }
+        List<List<IsmirSearchResult>> result = new ArrayList<>();
+        for (List<IsmirSearchResult> queryHits : hits) {
+            result.add(mergeHits(queryHits));
+        }
+        return result;
+    }
+    
+    //Neighbouring ranges, or the lookup and the scan, can find the same match, so suppress hits too close to the
+    //previous one, like the serial scan does
+    private List<IsmirSearchResult> mergeHits(List<IsmirSearchResult> hits) {
+        hits.sort(Comparator.comparingInt(IsmirSearchResult::getPosInIndex));
+        int sampleRate = this.getFingerprintStrategy().getSampleRate();
+        
+        List<IsmirSearchResult> result = new ArrayList<>();
+        int prevMatchPos = Integer.MAX_VALUE;
+        for (IsmirSearchResult hit : hits) {
+            if (hit.getPosInIndex() - prevMatchPos < (sampleRate / 64)
+                && prevMatchPos != Integer.MAX_VALUE) {
+                continue;
+            }
+            prevMatchPos = hit.getPosInIndex();
+            result.add(hit);
+        }
+        return result;
+    }
+    
+    private List<List<IsmirSearchResult>> scanMappedRange(List<long[]> queries,
+                                                          Ranking ranking,
+                                                          BlockSummary summary,
+                                                          MappedDB mappedDB,
+                                                          int rangeStart,
+                                                          int rangeEnd,
+                                                          int scanEnd) throws IOException {
+        List<ScanState> states = createStates(queries, ranking, summary, rangeStart, mappedDB.getCodec());
+        WindowReader windowReader = (windowStart, windowLength, window) -> readMappedWindow(mappedDB,
+                                                                                            windowStart,
+                                                                                            windowLength,
+                                                                                            scanEnd,
+                                                                                            window);
+        for (int blobStart = rangeStart, blobEnd; blobStart < rangeEnd && !allDone(states); blobStart = blobEnd) {
+            blobEnd = mappedBlobEnd(blobStart, rangeEnd, scanEnd);
             
-            //File size in integers (i.e. how many 4-byte chunks the file contains)
-            int fileEnd = (int) (dbFileLength / Integer.BYTES);
-            //Cap windowEnd to not extend beyound end of file
-            windowEnd = Math.min(posInIndex + nearRange + macro_sz, fileEnd);
+            //Room for the windows of all positions in the blob, so the scan never has to look outside it
+            int viewStart = Math.max(0, blobStart - nearRange);
+            int viewEnd = blobEnd + nearRange + macro_sz;
+            Buffer view = mappedView(mappedDB, viewStart, viewEnd, scanEnd);
+            getMetrics().bytesRead((long) view.capacity() * mappedDB.getCodec().getBytes());
+            for (ScanState state : states) {
+                scanPositions(view, viewStart, blobEnd, scanEnd, state, windowReader);
+            }
+        }
+        return getResults(states);
+    }
+    
+    private List<ScanState> createStates(List<long[]> queries,
+                                         Ranking ranking,
+                                         BlockSummary summary,
+                                         int pos,
+                                         FingerprintCodec codec) {
+        List<ScanState> states = new ArrayList<>(queries.size());
+        for (long[] fingerprints : queries) {
+            PackedQuery query = new PackedQuery(fingerprints, codec);
+            int[] shifts = phaseShifts(fingerprints.length, scanStride, phaseStep);
+            PackedQuery[] phases = new PackedQuery[shifts.length];
+            for (int i = 0; i < shifts.length; i++) {
+                phases[i] = shifts[i] == 0 ? query : new PackedQuery(fingerprints, codec, fpSkip + shifts[i]);
+            }
+            //A query too short for all the phases is stepped less, so its matches are still seen
+            int stride = Math.min(scanStride, shifts.length * phaseStep);
+            states.add(new ScanState(query,
+                                     phases,
+                                     shifts,
+                                     stride,
+                                     new Hits(ranking),
+                                     summary == null ? null : summary.filter(query),
+                                     pos));
+        }
+        return states;
+    }
+    
+    //The shifts of the phases of a query of queryLength fingerprints: ceil(stride / phaseStep) multiples of phaseStep
+    //around 0, as far as the fingerprints before fpSkip and after the first macro_sz from it allow. 0 comes first,
+    //as most queries are searched with a single phase
+    static int[] phaseShifts(int queryLength, int stride, int phaseStep) {
+        int phases = (stride + phaseStep - 1) / phaseStep;
+        int lowest = -(fpSkip / phaseStep);
+        int highest = (queryLength - macro_sz - fpSkip) / phaseStep;
+        phases = Math.min(phases, highest - lowest + 1);
+        int first = Math.max(lowest, Math.min(-(phases - 1) / 2, highest - phases + 1));
+        return IntStream.range(first, first + phases)
+                        .boxed()
+                        .sorted(Comparator.comparingInt(Math::abs))
+                        .mapToInt(phase -> phase * phaseStep)
+                        .toArray();
+    }
+    
+    //Whether all the queries have found what they search for, so the rest of the index does not have to be read
+    private static boolean allDone(List<ScanState> states) {
+        return states.stream().allMatch(state -> state.hits.isDone());
+    }
+    
+    //The hits of the states, reporting the counts of the scan to the metrics
+    private List<List<IsmirSearchResult>> getResults(List<ScanState> states) throws IOException {
+        List<List<IsmirSearchResult>> results = new ArrayList<>(states.size());
+        for (ScanState state : states) {
+            results.add(toResults(state.hits));
+            getMetrics().positionsScanned(state.positionsScanned);
+            getMetrics().earlyTerminations(state.earlyTerminations);
+            getMetrics().positionsPruned(state.positionsPruned);
+        }
+        return results;
+    }
+    
+    //The end of the blob of the mapped scan from blobStart. The view of a blob that reaches outside the index is staged
+    //on the heap, so the blobs at the ends of the index are cut short, to stage a few windows instead of a blob
+    private static int mappedBlobEnd(int blobStart, int rangeEnd, int scanEnd) {
+        int edge = nearRange + macro_sz;
+        int blobEnd = Math.min(blobStart + BLOB_SIZE, rangeEnd);
+        if (blobStart < edge) {
+            return Math.min(blobEnd, edge);
+        }
+        if (blobStart < scanEnd - edge) {
+            return Math.min(blobEnd, scanEnd - edge);
+        }
+        return blobEnd;
+    }
+    
+    //The positions [viewStart, viewEnd) as a view on the mapped index. Positions outside the index are zeroes, so
+    //views at either end of the index are staged in a heap buffer
+    private static Buffer mappedView(MappedDB mappedDB, int viewStart, int viewEnd, int scanEnd) {
+        if (viewStart >= macro_sz && viewEnd <= scanEnd) {
+            return mappedDB.slice(viewStart - macro_sz, viewEnd - viewStart);
+        }
+        Buffer view = mappedDB.getCodec().allocate(viewEnd - viewStart);
+        copyPositions(mappedDB, viewStart, viewEnd, scanEnd, view);
+        return view;
+    }
+    
+    //Copy the positions [from, to) of the mapped index to dest[0, to - from), with zeroes for the positions outside
+    //the index
+    private static void copyPositions(MappedDB mappedDB, int from, int to, int scanEnd, Buffer dest) {
+        FingerprintCodec codec = mappedDB.getCodec();
+        int contentStart = Math.min(Math.max(from, macro_sz), to);
+        int contentEnd = Math.max(Math.min(to, scanEnd), contentStart);
+        codec.clear(dest, 0, contentStart - from);
+        if (contentEnd > contentStart) {
+            mappedDB.get(contentStart - macro_sz, dest, contentStart - from, contentEnd - contentStart);
+        }
+        codec.clear(dest, contentEnd - from, to - from);
+    }
+    
+    private void readMappedWindow(MappedDB mappedDB, int windowStart, int windowLength, int scanEnd, Buffer window) {
+        getMetrics().windowRereads(1);
+        getMetrics().bytesRead((long) windowLength * mappedDB.getCodec().getBytes());
+        copyPositions(mappedDB, windowStart, windowStart + windowLength, scanEnd, window);
+    }
+    
+    //Scan the positions from state.pos up to scanTo. The view holds the positions from viewStart and must have room for
+    //macro_sz fingerprints after each scanned position. Windows that are not in the view are fetched with the
+    //windowReader.
+    private void scanPositions(Buffer view,
+                               int viewStart,
+                               int scanTo,
+                               int scanEnd,
+                               ScanState state,
+                               WindowReader windowReader) throws IOException {
+        int sampleRate = this.getFingerprintStrategy().getSampleRate();
+        PackedQuery query = state.query;
+        HammingKernel hammingKernel = HammingKernel.forCodec(query.codec);
+        
+        //state.pos counts through the actual DB contents, so it is carried from one view to the next
+        for (; state.pos < scanTo && !state.hits.isDone(); state.pos += state.stride) {
             
-            try (DataInputStream fin = new DataInputStream(new FileInputStream(dbFilename))) {
-                IOUtils.skipFully(fin, (long) Integer.BYTES * windowStart);
-                window = Utils.bytesToInts(fin.readNBytes(Integer.BYTES * (windowEnd - windowStart)));
+            //If we are to close to the previous match, just continue
+            if (state.pos - state.prevMatchPos < (sampleRate / 64)
+                && state.prevMatchPos != Integer.MAX_VALUE) {
+                continue;
             }
             
+            state.positionsScanned++;
+            //Check for early termination, in each phase of the query
+            int phase = alignedPhase(hammingKernel, state, view, state.pos - viewStart);
+            if (phase < 0) {
+                //log.debug("Stopping search at frame {} as noisy overlap ({})",i,dist);
+                state.earlyTerminations++;
+                continue;
+            } else {
+                
+                //The phase shifted by shift matches here, so the query itself matches shift positions before
+                int matchPos = state.pos - state.shifts[phase];
+                //The block summary shows that no window of checkNearPos can be a hit, so it is passed over. The scan
+                //still moves on as after checkNearPos, so it scans the same positions as without the summary
+                if (state.filter != null && state.filter.excludes(matchPos, matchPos, state.hits.getCriteria())) {
+                    state.positionsPruned++;
+                    state.pos += nearRange;
+                    continue;
+                }
+                if (log.isTraceEnabled()) {
+                    log.trace("Found possible match at {}, examining further", matchPos);
+                }
+                long checkNearPosResult = checkNearPos(query,
+                                                       matchPos,
+                                                       state.hits.getCriteria(),
+                                                       view,
+                                                       viewStart,
+                                                       scanEnd,
+                                                       windowReader,
+                                                       state.window);
+                state.pos += nearRange;
+                
+                final int hitDist = hitDist(checkNearPosResult);
+                final int hitPos = hitPos(checkNearPosResult);
+                
+                if (hitDist < state.hits.getCriteria()) {
+                    log.info("Found hit at offset {} with dist {}", hitPos, hitDist);
+                    state.prevMatchPos = hitPos;
+                    state.hits.add(hitDist, hitPos);
+                }
+                
+            }
+        }
+    }
+    
+    //The first phase of the query that does not terminate early at start in the view, or -1 if they all do
+    private static int alignedPhase(HammingKernel hammingKernel, ScanState state, Buffer view, int start) {
+        for (int phase = 0; phase < state.phases.length; phase++) {
+            if (!hammingKernel.terminatesEarly(state.phases[phase], view, start)) {
+                return phase;
+            }
         }
+        return -1;
+    }
+    
+    //The hits as search results, in file order. Only the hits that are kept to the end become IsmirSearchResults
+    private List<IsmirSearchResult> toResults(Hits hits) throws IOException {
+        long[] byPosition = hits.byPosition();
+        List<IsmirSearchResult> results = new ArrayList<>(byPosition.length);
+        for (long hit : byPosition) {
+            results.add(toSearchResult(hitPos(hit), hitDist(hit)));
+        }
+        return results;
+    }
+    
+    private IsmirSearchResult toSearchResult(int hitPos, int hitDist) throws IOException {
+        OffsetMap offsetMap = getOffsetMap();
+        //The file that ENDS after this hit
+        int entry = offsetMap.indexOf(hitPos);
+        
+        String filenameResult = entry < 0 ? null : offsetMap.getName(entry);
+        
+        
+        Integer hitFileStart = entry < 0 ? 0 : offsetMap.getStart(entry);
+        
+        return new IsmirSearchResult(filenameResult,
+                                     hitPos,
+                                     hitDist,
+                                     hitFileStart,
+                                     this.getFingerprintStrategy());
+    }
+    
+    // checks +/- 150 around posInIndex. Windows at or above the criteria are not hits, and are abandoned as soon as
+    // that is certain, so their distance is not exact. Returns the best distance and its position, packed by packHit.
+    // Windows that are not in the view, or not on the heap, are staged in the window buffer, so nothing is allocated
+    private long checkNearPos(PackedQuery query,
+                              int posInIndex,
+                              double criteria,
+                              Buffer view,
+                              int viewStart,
+                              int scanEnd,
+                              WindowReader windowReader,
+                              Buffer window)
+            throws IOException {
         
-        //get best (distance,index)
-        Map.Entry<Integer, Integer> fullCheckResult = fullCheck(fingerprints, window);
+        //Start from the posInIndex, or 0 if this would be negative
+        int windowStart = Math.max(0, posInIndex - nearRange);
+        //Cap windowEnd to not extend beyound end of file
+        int windowEnd = Math.min(posInIndex + nearRange + macro_sz, scanEnd);
+        int windowLength = Math.max(0, windowEnd - windowStart);
         
-        Integer distance = fullCheckResult.getKey();
-        int index = fullCheckResult.getValue() + posInIndex;
+        getMetrics().nearPosChecks(1);
+        long fullCheckResult;
+        if (view != null && windowStart >= viewStart && windowEnd <= viewStart + view.capacity()) {
+            //The window is INSIDE the view
+            if (view.hasArray()) {
+                fullCheckResult = fullCheck(query, view, windowStart - viewStart, windowLength, criteria);
+            } else {
+                //Copy a window of the mapped index once, instead of reading it for each of the comparisons
+                query.codec.copy(view, windowStart - viewStart, window, 0, windowLength);
+                fullCheckResult = fullCheck(query, window, 0, windowLength, criteria);
+            }
+        } else {
+            //The lookup table has no view, so all its windows are read here. Only the mapped reader reads the window
+            //again, the WindowProvider of the streamed scan serves it from the blobs it has read and the open index
+            windowReader.read(windowStart, windowLength, window);
+            fullCheckResult = fullCheck(query, window, 0, windowLength, criteria);
+        }
         
-        return Map.entry(distance, index);
+        //get best (distance,index). The index is reported nearRange after the position of the best window. This holds
+        //near the start of the index too, where the window is cut short, as the position of a hit must not depend on
+        //where the scan happened to see it from
+        return packHit(hitDist(fullCheckResult), hitPos(fullCheckResult) + windowStart + nearRange);
         
     }
     
-    private static Map.Entry<Integer, Integer> fullCheck(long[] fingerprints, int[] window) {
+    //Check the window of windowLength fingerprints starting at windowStart in db. Returns the best distance and the
+    //index of it relative to windowStart, packed by packHit. Offsets that cannot beat the best so far, or get below the
+    //criteria, are abandoned part way. If no offset gets below the criteria, the distance is Integer.MAX_VALUE
+    static long fullCheck(PackedQuery query, Buffer db, int windowStart, int windowLength, double criteria) {
         
         int bestDist = Integer.MAX_VALUE;
         int bestIdx = Integer.MAX_VALUE;
-        if (window.length < macro_sz) {
-            return Map.entry(bestDist, bestIdx);
+        if (windowLength < macro_sz) {
+            return packHit(bestDist, bestIdx);
         }
-        for (int i = 0; i < window.length - macro_sz; ++i) {
-            int dist = fullHamming(fingerprints, window, i);
-            if (dist < bestDist) {
+        HammingKernel hammingKernel = HammingKernel.forCodec(query.codec);
+        //A distance is a hit if it is below the criteria, so this is the lowest distance that is not
+        int bound = (int) Math.min(Integer.MAX_VALUE, Math.ceil(criteria));
+        for (int i = 0; i < windowLength - macro_sz; ++i) {
+            int dist = hammingKernel.distance(query, db, windowStart + i, Math.min(bestDist, bound));
+            if (dist < bestDist && dist < bound) {
                 bestDist = dist;
                 bestIdx  = i;
             }
         }
-        return Map.entry(bestDist, bestIdx);
+        return packHit(bestDist, bestIdx);
+    }
+    
+    //A distance and a position in one long, with the distance in the high bits. Distances are never negative, so
+    //the longs of hits sort by distance and then position, like BEST_FIRST
+    static long packHit(int dist, int pos) {
+        return (long) dist << 32 | (pos & 0xFFFFFFFFL);
+    }
+    
+    static int hitDist(long hit) {
+        return (int) (hit >>> 32);
+    }
+    
+    static int hitPos(long hit) {
+        return (int) hit;
+    }
+    
+    //Where the scan for one query is, carried from one view to the next
+    private static class ScanState {
+        final PackedQuery query;
+        //The phases compared at each scan position, and how far each is shifted from the query, see phaseShifts
+        final PackedQuery[] phases;
+        final int[] shifts;
+        final int stride;
+        final Hits hits;
+        //Null if the index has no block summary
+        final BlockSummary.Filter filter;
+        //Where checkNearPos stages the windows that it cannot compare in place
+        final Buffer window;
+        int pos;
+        int prevMatchPos = Integer.MAX_VALUE;
+        long positionsScanned = 0;
+        long earlyTerminations = 0;
+        long positionsPruned = 0;
+        
+        ScanState(PackedQuery query,
+                  PackedQuery[] phases,
+                  int[] shifts,
+                  int stride,
+                  Hits hits,
+                  BlockSummary.Filter filter,
+                  int pos) {
+            this.query    = query;
+            this.phases   = phases;
+            this.shifts   = shifts;
+            this.stride   = stride;
+            this.hits     = hits;
+            this.filter   = filter;
+            this.window   = query.codec.allocate(WINDOW_SIZE);
+            this.pos      = pos;
+        }
     }
     
-    private static int fullHamming(long[] fingerprints, int[] db, int start) {
+    //Which hits a search gives for each query: all hits below the criteria, the topK best of them, or the first
+    private static class Ranking {
+        final double criteria;
+        final int topK;
+        final boolean firstMatch;
         
-        int dist = 0;
-        for (int i = 0; i < macro_sz; ++i) {
-            dist += matchFingerprints(fingerprints[i + fpSkip], db[i + start]);
+        Ranking(double criteria, int topK, boolean firstMatch) {
+            this.criteria   = criteria;
+            this.topK       = topK;
+            this.firstMatch = firstMatch;
         }
-        return dist;
         
+        //The hits of a query to give, from the hits found in file order
+        List<IsmirSearchResult> rank(List<IsmirSearchResult> hits) {
+            if (firstMatch) {
+                return hits.isEmpty() ? hits : new ArrayList<>(hits.subList(0, 1));
+            }
+            if (topK != Integer.MAX_VALUE) {
+                List<IsmirSearchResult> ranked = new ArrayList<>(hits);
+                ranked.sort(BEST_FIRST);
+                return new ArrayList<>(ranked.subList(0, Math.min(topK, ranked.size())));
+            }
+            return hits;
+        }
     }
     
+    private static final Comparator<IsmirSearchResult> BEST_FIRST
+            = Comparator.comparingInt(IsmirSearchResult::getDist).thenComparingInt(IsmirSearchResult::getPosInIndex);
     
-    private static int matchFingerprints(long inputFingerprint, int archiveFinterprint) {
-        long archiveFingerprint = Integer.toUnsignedLong(archiveFinterprint);
-        long matchingBits = inputFingerprint ^ archiveFingerprint; //XOR
-        return Long.bitCount(matchingBits);
+    //The hits found for a query so far, packed by packHit, so the scan does not make an object for each hit. With a
+    //topK, only the topK best are kept, in a heap with the worst on top, and once there are that many, a hit must be
+    //better than the worst of them
+    private static class Hits {
+        private final Ranking ranking;
+        private long[] hits = new long[16];
+        private int size = 0;
+        
+        Hits(Ranking ranking) {
+            this.ranking = ranking;
+        }
+        
+        //The distance a hit must be below
+        double getCriteria() {
+            if (size < ranking.topK) {
+                return ranking.criteria;
+            }
+            return Math.min(ranking.criteria, hitDist(hits[0]));
+        }
+        
+        void add(int dist, int pos) {
+            long hit = packHit(dist, pos);
+            if (size < ranking.topK) {
+                if (size == hits.length) {
+                    hits = Arrays.copyOf(hits, size * 2);
+                }
+                hits[size++] = hit;
+                if (ranking.topK != Integer.MAX_VALUE) {
+                    siftUp(size - 1);
+                }
+            } else if (hit < hits[0]) {
+                hits[0] = hit;
+                siftDown(0);
+            }
+        }
+        
+        private void siftUp(int i) {
+            while (i > 0 && hits[(i - 1) / 2] < hits[i]) {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+        
+        private void siftDown(int i) {
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && hits[child + 1] > hits[child]) {
+                    child++;
+                }
+                if (hits[i] >= hits[child]) {
+                    return;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+        
+        private void swap(int i, int j) {
+            long hit = hits[i];
+            hits[i] = hits[j];
+            hits[j] = hit;
+        }
+        
+        //Whether the search for the query can stop
+        boolean isDone() {
+            return ranking.firstMatch && size > 0;
+        }
+        
+        //The hits in file order. With the halves swapped, the longs sort by position
+        long[] byPosition() {
+            long[] byPosition = new long[size];
+            for (int i = 0; i < size; i++) {
+                byPosition[i] = Long.rotateLeft(hits[i], 32);
+            }
+            Arrays.sort(byPosition);
+            for (int i = 0; i < size; i++) {
+                byPosition[i] = Long.rotateLeft(byPosition[i], 32);
+            }
+            return byPosition;
+        }
     }
     
 }
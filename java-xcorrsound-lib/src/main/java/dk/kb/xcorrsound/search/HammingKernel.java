@@ -0,0 +1,214 @@
+package dk.kb.xcorrsound.search;
+
+import dk.kb.xcorrsound.FingerprintCodec;
+
+import java.nio.Buffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+
+//Hamming distances between a packed query and macro_sz fingerprints of the index, one fingerprint at a time.
+//There is a kernel for each width the index stores fingerprints in, see FingerprintCodec, each with its own loops over
+//the primitive of that width.
+//The Unrolled kernels keep four independent sums over heap windows, so the XOR/popcount of neighbouring fingerprints
+//can run in parallel in the CPU. They are used unless -Ddk.kb.xcorrsound.hamming=scalar is given. Both give the same
+//distances.
+class HammingKernel {
+    
+    static final boolean UNROLLED = !"scalar".equals(System.getProperty("dk.kb.xcorrsound.hamming"));
+    
+    static final HammingKernel INSTANCE = forCodec(FingerprintCodec.INT, UNROLLED);
+    
+    private static final HammingKernel SHORT_INSTANCE = forCodec(FingerprintCodec.SHORT, UNROLLED);
+    
+    private static final HammingKernel LONG_INSTANCE = forCodec(FingerprintCodec.LONG, UNROLLED);
+    
+    //The first i where the early termination is checked, see terminatesEarly
+    private static final int FIRST_CHECK = (macro_sz / 10 / 5 + 1) * 5;
+    
+    //Fingerprints compared between the checks of the bound, see distance
+    private static final int BOUND_CHECK = 32;
+    
+    //The kernel for queries packed for the codec
+    static HammingKernel forCodec(FingerprintCodec codec) {
+        switch (codec) {
+            case SHORT:
+                return SHORT_INSTANCE;
+            case LONG:
+                return LONG_INSTANCE;
+            default:
+                return INSTANCE;
+        }
+    }
+    
+    static HammingKernel forCodec(FingerprintCodec codec, boolean unrolled) {
+        switch (codec) {
+            case SHORT:
+                return unrolled ? new UnrolledShorts() : new Shorts();
+            case LONG:
+                return unrolled ? new UnrolledLongs() : new Longs();
+            default:
+                return unrolled ? new Unrolled() : new HammingKernel();
+        }
+    }
+    
+    //Sum of the bit differences of the packed query and db[start + i] for i in [from, to)
+    int packedDistance(PackedQuery query, Buffer db, int start, int from, int to) {
+        int[] packed = query.packed;
+        IntBuffer ints = (IntBuffer) db;
+        int dist = 0;
+        for (int i = from; i < to; i++) {
+            dist += Integer.bitCount(packed[i] ^ ints.get(start + i));
+        }
+        return dist;
+    }
+    
+    //The distance between the query and the macro_sz fingerprints from start in db
+    int distance(PackedQuery query, Buffer db, int start) {
+        return packedDistance(query, db, start, 0, macro_sz) + query.unmatchableBits[macro_sz];
+    }
+    
+    //Like distance, but gives up once the distance is at least bound, and then returns a value >= bound
+    int distance(PackedQuery query, Buffer db, int start, int bound) {
+        int dist = 0;
+        for (int from = 0; from < macro_sz; from += BOUND_CHECK) {
+            int to = Math.min(from + BOUND_CHECK, macro_sz);
+            dist += packedDistance(query, db, start, from, to);
+            if (dist + query.unmatchableBits[to] >= bound) {
+                break;
+            }
+        }
+        return dist + query.unmatchableBits[macro_sz];
+    }
+    
+    // percentage error. Break if in the 'noise zone'.
+    // only check every now and then (i % 5)
+    // and we must have a decent baseline, i.e. at least 10% through computation.
+    // this is a heuristic to terminate early if we can see
+    // there will not be a match here.
+    boolean terminatesEarly(PackedQuery query, Buffer db, int start) {
+        int dist = 0;
+        int from = 0;
+        for (int i = FIRST_CHECK; i < macro_sz; i += 5) {
+            //The distance of the fingerprints up to and including i
+            dist += packedDistance(query, db, start, from, i + 1);
+            from = i + 1;
+            
+            double bitsSeenSoFar = i * 4 * 8;
+            double errorPercentage = (dist + query.unmatchableBits[i + 1]) / bitsSeenSoFar;
+            if (errorPercentage > 0.43 && errorPercentage < 0.537) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    static class Unrolled extends HammingKernel {
+        @Override
+        int packedDistance(PackedQuery query, Buffer db, int start, int from, int to) {
+            IntBuffer ints = (IntBuffer) db;
+            if (ints.hasArray()) {
+                return packedDistance(query.packed, ints.array(), ints.arrayOffset() + start, from, to);
+            }
+            //Reads from a mapped buffer do not gain from unrolling
+            return super.packedDistance(query, db, start, from, to);
+        }
+        
+        private static int packedDistance(int[] packed, int[] db, int start, int from, int to) {
+            int dist0 = 0, dist1 = 0, dist2 = 0, dist3 = 0;
+            int i = from;
+            for (; i + 3 < to; i += 4) {
+                dist0 += Integer.bitCount(packed[i] ^ db[start + i]);
+                dist1 += Integer.bitCount(packed[i + 1] ^ db[start + i + 1]);
+                dist2 += Integer.bitCount(packed[i + 2] ^ db[start + i + 2]);
+                dist3 += Integer.bitCount(packed[i + 3] ^ db[start + i + 3]);
+            }
+            for (; i < to; i++) {
+                dist0 += Integer.bitCount(packed[i] ^ db[start + i]);
+            }
+            return dist0 + dist1 + dist2 + dist3;
+        }
+    }
+    
+    //16 bit fingerprints. The XOR of two shorts is masked, as the shorts are sign extended to ints
+    static class Shorts extends HammingKernel {
+        @Override
+        int packedDistance(PackedQuery query, Buffer db, int start, int from, int to) {
+            short[] packed = query.packedShorts;
+            ShortBuffer shorts = (ShortBuffer) db;
+            int dist = 0;
+            for (int i = from; i < to; i++) {
+                dist += Integer.bitCount((packed[i] ^ shorts.get(start + i)) & 0xFFFF);
+            }
+            return dist;
+        }
+    }
+    
+    static class UnrolledShorts extends Shorts {
+        @Override
+        int packedDistance(PackedQuery query, Buffer db, int start, int from, int to) {
+            ShortBuffer shorts = (ShortBuffer) db;
+            if (shorts.hasArray()) {
+                return packedDistance(query.packedShorts, shorts.array(), shorts.arrayOffset() + start, from, to);
+            }
+            return super.packedDistance(query, db, start, from, to);
+        }
+        
+        private static int packedDistance(short[] packed, short[] db, int start, int from, int to) {
+            int dist0 = 0, dist1 = 0, dist2 = 0, dist3 = 0;
+            int i = from;
+            for (; i + 3 < to; i += 4) {
+                dist0 += Integer.bitCount((packed[i] ^ db[start + i]) & 0xFFFF);
+                dist1 += Integer.bitCount((packed[i + 1] ^ db[start + i + 1]) & 0xFFFF);
+                dist2 += Integer.bitCount((packed[i + 2] ^ db[start + i + 2]) & 0xFFFF);
+                dist3 += Integer.bitCount((packed[i + 3] ^ db[start + i + 3]) & 0xFFFF);
+            }
+            for (; i < to; i++) {
+                dist0 += Integer.bitCount((packed[i] ^ db[start + i]) & 0xFFFF);
+            }
+            return dist0 + dist1 + dist2 + dist3;
+        }
+    }
+    
+    //64 bit fingerprints, for more than 32 bands
+    static class Longs extends HammingKernel {
+        @Override
+        int packedDistance(PackedQuery query, Buffer db, int start, int from, int to) {
+            long[] packed = query.packedLongs;
+            LongBuffer longs = (LongBuffer) db;
+            int dist = 0;
+            for (int i = from; i < to; i++) {
+                dist += Long.bitCount(packed[i] ^ longs.get(start + i));
+            }
+            return dist;
+        }
+    }
+    
+    static class UnrolledLongs extends Longs {
+        @Override
+        int packedDistance(PackedQuery query, Buffer db, int start, int from, int to) {
+            LongBuffer longs = (LongBuffer) db;
+            if (longs.hasArray()) {
+                return packedDistance(query.packedLongs, longs.array(), longs.arrayOffset() + start, from, to);
+            }
+            return super.packedDistance(query, db, start, from, to);
+        }
+        
+        private static int packedDistance(long[] packed, long[] db, int start, int from, int to) {
+            int dist0 = 0, dist1 = 0, dist2 = 0, dist3 = 0;
+            int i = from;
+            for (; i + 3 < to; i += 4) {
+                dist0 += Long.bitCount(packed[i] ^ db[start + i]);
+                dist1 += Long.bitCount(packed[i + 1] ^ db[start + i + 1]);
+                dist2 += Long.bitCount(packed[i + 2] ^ db[start + i + 2]);
+                dist3 += Long.bitCount(packed[i + 3] ^ db[start + i + 3]);
+            }
+            for (; i < to; i++) {
+                dist0 += Long.bitCount(packed[i] ^ db[start + i]);
+            }
+            return dist0 + dist1 + dist2 + dist3;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package dk.kb.xcorrsound.search;
+
+import dk.kb.xcorrsound.FingerprintCodec;
+
+import java.nio.Buffer;
+
+//A Hamming kernel and a query packed for it, so the kernels can be measured from outside of this package, such as by
+//the benchmarks module. The scan does not use this
+public final class HammingKernelProbe {
+    
+    private final HammingKernel hammingKernel;
+    
+    private final PackedQuery query;
+    
+    //The query fingerprints are packed from fpSkip, as in the scan. unrolled picks the Unrolled kernel over the scalar
+    public HammingKernelProbe(long[] queryFingerprints, FingerprintCodec codec, boolean unrolled) {
+        this.hammingKernel = HammingKernel.forCodec(codec, unrolled);
+        this.query         = new PackedQuery(queryFingerprints, codec);
+    }
+    
+    //The distance of the query and the macro_sz fingerprints of db from start. db is a view of the codec
+    public int distance(Buffer db, int start) {
+        return hammingKernel.distance(query, db, start);
+    }
+    
+    public boolean terminatesEarly(Buffer db, int start) {
+        return hammingKernel.terminatesEarly(query, db, start);
+    }
+}
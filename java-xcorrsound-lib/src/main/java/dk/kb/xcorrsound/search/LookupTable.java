@@ -0,0 +1,131 @@
+package dk.kb.xcorrsound.search;
+
+import dk.kb.xcorrsound.IndexHeader;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+//Lookup table from fingerprint values to the positions in the index where they occur, in the style of Haitsma and
+//Kalker. A query can then be matched against the few positions that share a fingerprint with it, instead of the
+//entire index.
+//The table is stored beside the index as <index>.lut, in little endian ints:
+//  the number of fingerprints in the index when the table was built, N
+//  the N fingerprint values of the index, sorted
+//  the N positions of these values in the index
+//Fingerprints appended to the index after the table was built are not in the table.
+public class LookupTable {
+    
+    private static final Logger log = LoggerFactory.getLogger(LookupTable.class);
+    
+    //Values that occur this often, such as silence, say little about where a query matches, so they are not used
+    static final int MAX_POSITIONS_PER_VALUE = 1024;
+    
+    private final MappedDB table;
+    
+    private final long coveredLength;
+    
+    private LookupTable(MappedDB table) {
+        this.table         = table;
+        this.coveredLength = table.get(0);
+    }
+    
+    public static String getLookupTableFile(String dbFilename) {
+        return dbFilename + ".lut";
+    }
+    
+    //Open the lookup table of the index, or null if the index does not have one
+    static LookupTable open(String dbFilename) throws IOException {
+        File file = new File(getLookupTableFile(dbFilename));
+        if (!file.exists()) {
+            return null;
+        }
+        return new LookupTable(new MappedDB(file.getAbsolutePath()));
+    }
+    
+    //Build the lookup table for the index as it is now, replacing any existing table
+    public static void build(String dbFilename) throws IOException {
+        log.info("Building lookup table for {}", dbFilename);
+        MappedDB db = MappedDB.openIndex(dbFilename, IndexHeader.read(dbFilename));
+        if (db.length() > Integer.MAX_VALUE) {
+            throw new IOException("The index " + dbFilename + " is too large for a lookup table");
+        }
+        int length = (int) db.length();
+        
+        //value in the high bits and position in the low, so the sort orders by value and then position. Fingerprints of
+        //more than 32 bits are looked up by their lower 32 bits
+        long[] entries = new long[length];
+        for (int i = 0; i < length; i++) {
+            entries[i] = (db.get(i) << 32) | i;
+        }
+        Arrays.parallelSort(entries);
+        
+        //Write to a temporary file first, so a searcher never sees a half written table
+        Path tableFile = Path.of(getLookupTableFile(dbFilename));
+        Path tmpFile = Path.of(tableFile + ".tmp");
+        try (DataOutputStream of = new DataOutputStream(IOUtils.buffer(FileUtils.openOutputStream(tmpFile.toFile())))) {
+            //Written as LittleEndian
+            of.writeInt(Integer.reverseBytes(length));
+            for (long entry : entries) {
+                of.writeInt(Integer.reverseBytes((int) (entry >> 32)));
+            }
+            for (long entry : entries) {
+                of.writeInt(Integer.reverseBytes((int) entry));
+            }
+        }
+        Files.move(tmpFile, tableFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Lookup table for {} fingerprints written to {}", length, tableFile);
+    }
+    
+    //Number of fingerprints at the start of the index that are in the table
+    long getCoveredLength() {
+        return coveredLength;
+    }
+    
+    //Index of the first entry with a value >= value
+    long lowerBound(int value) {
+        long low = 0;
+        long high = coveredLength;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (getValue(mid) < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    //Index of the first entry with a value > value
+    long upperBound(int value) {
+        long low = 0;
+        long high = coveredLength;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (getValue(mid) <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    int getValue(long entry) {
+        return (int) table.get(1 + entry);
+    }
+    
+    //Position in the index of the entry
+    int getPosition(long entry) {
+        return (int) table.get(1 + coveredLength + entry);
+    }
+}
@@ -0,0 +1,111 @@
+package dk.kb.xcorrsound.search;
+
+import dk.kb.xcorrsound.FingerprintCodec;
+import dk.kb.xcorrsound.IndexHeader;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+//Read only view of a file of little endian values, such as an index, mapped directly from the file. The values are
+//of the width of the codec, and are read as Buffers of the codec.
+//A single mapping cannot exceed 2GB, so the file is mapped as a number of chunks. Each chunk overlaps the next by
+//OVERLAP values, so that any range shorter than OVERLAP can be served from a single chunk without copying.
+class MappedDB {
+    
+    static final int CHUNK_BYTES = 1 << 30; //1GB per mapping
+    
+    static final int OVERLAP = 2 * 1024 * 1024;
+    
+    private final FingerprintCodec codec;
+    
+    //Values per chunk, not counting the overlap
+    private final int chunkSize;
+    
+    private final Buffer[] chunks;
+    
+    private final long length;
+    
+    //Map a file of ints
+    MappedDB(String dbFilename) throws IOException {
+        this(dbFilename, FingerprintCodec.INT, 0, -1);
+    }
+    
+    //Map count values from byteOffset in the file. If count is -1, the rest of the file is mapped
+    MappedDB(String dbFilename, FingerprintCodec codec, long byteOffset, long count) throws IOException {
+        this.codec     = codec;
+        this.chunkSize = CHUNK_BYTES / codec.getBytes();
+        try (FileChannel channel = FileChannel.open(Path.of(dbFilename), StandardOpenOption.READ)) {
+            //The mapping stays valid after the channel is closed
+            this.length = count < 0 ? (channel.size() - byteOffset) / codec.getBytes() : count;
+            int numChunks = (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+            this.chunks = new Buffer[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                long chunkStart = (long) c * chunkSize;
+                long chunkEnd = Math.min(length, chunkStart + chunkSize + OVERLAP);
+                chunks[c] = codec.view(channel.map(FileChannel.MapMode.READ_ONLY,
+                                                   byteOffset + chunkStart * codec.getBytes(),
+                                                   (chunkEnd - chunkStart) * codec.getBytes())
+                                              .order(ByteOrder.LITTLE_ENDIAN));
+            }
+        }
+    }
+    
+    //Map the fingerprints of the index. With a header, only the recordCount fingerprints after it are mapped, so
+    //a file that is being appended is not seen before it is committed. header is null for an index without one
+    static MappedDB openIndex(String dbFilename, IndexHeader header) throws IOException {
+        if (header == null) {
+            return new MappedDB(dbFilename);
+        }
+        return new MappedDB(dbFilename, header.getCodec(), header.getDataOffset(), header.getRecordCount());
+    }
+    
+    FingerprintCodec getCodec() {
+        return codec;
+    }
+    
+    //Number of values mapped
+    long length() {
+        return length;
+    }
+    
+    //Get the value at index, as the unsigned value stored
+    long get(long index) {
+        int chunk = (int) (index / chunkSize);
+        return codec.get(chunks[chunk], (int) (index - (long) chunk * chunkSize));
+    }
+    
+    //Get the values [start, start+count) as a buffer where index 0 is start. The range must be inside the file.
+    //This is a view on the mapping unless the range crosses a chunk boundary, in which case it is copied
+    Buffer slice(long start, int count) {
+        if (start < 0 || count < 0 || start + count > length) {
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + (start + count) + ") is outside the "
+                                                + length + " values of the index");
+        }
+        int chunk = (int) (start / chunkSize);
+        int offset = (int) (start - (long) chunk * chunkSize);
+        Buffer chunkBuffer = chunks[chunk];
+        if (offset + count <= chunkBuffer.capacity()) {
+            return chunkBuffer.duplicate().limit(offset + count).position(offset).slice();
+        }
+        Buffer copy = codec.allocate(count);
+        get(start, copy, 0, count);
+        return copy;
+    }
+    
+    //Bulk copy the values [start, start+count) into dest[destOffset...]. dest is a buffer of the codec
+    void get(long start, Buffer dest, int destOffset, int count) {
+        while (count > 0) {
+            int chunk = (int) (start / chunkSize);
+            int offset = (int) (start - (long) chunk * chunkSize);
+            int toCopy = Math.min(count, chunkSize - offset);
+            codec.copy(chunks[chunk], offset, dest, destOffset, toCopy);
+            start += toCopy;
+            destOffset += toCopy;
+            count -= toCopy;
+        }
+    }
+}
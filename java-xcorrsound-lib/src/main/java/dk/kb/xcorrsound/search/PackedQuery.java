@@ -0,0 +1,69 @@
+package dk.kb.xcorrsound.search;
+
+import dk.kb.xcorrsound.FingerprintCodec;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+
+//The macro_sz query fingerprints from fpSkip, repacked once to the width the index stores them in, for the Hamming
+//kernel of that width. Bits above the width the index stores can never match, so they are counted here once
+//instead of in every comparison.
+//The phases of the query the scan compares, see FingerprintDBSearcher.setScanStride, are packed from other starts
+final class PackedQuery {
+    
+    final long[] fingerprints;
+    
+    final FingerprintCodec codec;
+    
+    //The first of the packed fingerprints, fpSkip unless this is a phase of the query
+    final int start;
+    
+    //The lower 32 bits of fingerprints[start + i], for the INT kernel and the lookup table
+    final int[] packed;
+    
+    //The lower 16 bits of fingerprints[start + i], for the SHORT kernel. Null for the other codecs
+    final short[] packedShorts;
+    
+    //fingerprints[start + i], for the LONG kernel. Null for the other codecs
+    final long[] packedLongs;
+    
+    //unmatchableBits[i] is the number of bits above the width of the codec in the first i packed fingerprints
+    final int[] unmatchableBits;
+    
+    PackedQuery(long[] fingerprints) {
+        this(fingerprints, FingerprintCodec.INT);
+    }
+    
+    PackedQuery(long[] fingerprints, FingerprintCodec codec) {
+        this(fingerprints, codec, fpSkip);
+    }
+    
+    PackedQuery(long[] fingerprints, FingerprintCodec codec, int start) {
+        if (fingerprints.length < macro_sz + fpSkip) {
+            throw new IllegalArgumentException("A query needs at least " + (macro_sz + fpSkip)
+                                               + " fingerprints, but got " + fingerprints.length);
+        }
+        if (start < 0 || start + macro_sz > fingerprints.length) {
+            throw new IllegalArgumentException("The query of " + fingerprints.length + " fingerprints has no "
+                                               + macro_sz + " fingerprints from " + start);
+        }
+        this.fingerprints    = fingerprints;
+        this.codec           = codec;
+        this.start           = start;
+        this.packed          = new int[macro_sz];
+        this.packedShorts    = codec == FingerprintCodec.SHORT ? new short[macro_sz] : null;
+        this.packedLongs     = codec == FingerprintCodec.LONG ? new long[macro_sz] : null;
+        this.unmatchableBits = new int[macro_sz + 1];
+        for (int i = 0; i < macro_sz; i++) {
+            long fingerprint = fingerprints[i + start];
+            packed[i] = (int) fingerprint;
+            if (packedShorts != null) {
+                packedShorts[i] = (short) fingerprint;
+            }
+            if (packedLongs != null) {
+                packedLongs[i] = fingerprint;
+            }
+            unmatchableBits[i + 1] = unmatchableBits[i] + Long.bitCount(fingerprint ^ codec.mask(fingerprint));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package dk.kb.xcorrsound.search;
+
+import dk.kb.xcorrsound.FingerprintStrategy;
+import org.apache.commons.lang3.time.DurationFormatUtils;
+
+//A recording of the catalogue of a StreamMonitor, found in the stream
+public class StreamMatch {
+    private final String name;
+    //The fingerprint of the stream where the recording starts
+    private final long streamPosition;
+    private final int dist;
+    private final FingerprintStrategy fingerprintStrategy;
+    
+    public StreamMatch(String name, long streamPosition, int dist, FingerprintStrategy fingerprintStrategy) {
+        this.name                = name;
+        this.streamPosition      = streamPosition;
+        this.dist                = dist;
+        this.fingerprintStrategy = fingerprintStrategy;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public long getStreamPosition() {
+        return streamPosition;
+    }
+    
+    public int getDist() {
+        return dist;
+    }
+    
+    public String getTimestamp() {
+        return DurationFormatUtils.formatDuration(getOffsetSeconds() * 1000L, "HH:mm:ss", true);
+    }
+    
+    //Seconds from the start of the stream to the start of the recording
+    public long getOffsetSeconds() {
+        return streamPosition * fingerprintStrategy.getAdvance() / fingerprintStrategy.getSampleRate();
+    }
+    
+    public String toString() {
+        return "match of '" + name + "' at " + getTimestamp() + " with distance " + dist;
+    }
+}
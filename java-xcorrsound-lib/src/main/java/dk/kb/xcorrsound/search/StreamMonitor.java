@@ -0,0 +1,275 @@
+package dk.kb.xcorrsound.search;
+
+import dk.kb.xcorrsound.FingerPrintDB;
+import dk.kb.xcorrsound.FingerprintCodec;
+import dk.kb.xcorrsound.FingerprintSink;
+import dk.kb.xcorrsound.IndexHeader;
+import dk.kb.xcorrsound.OffsetMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+import static dk.kb.xcorrsound.FingerPrintDB.nearRange;
+import static dk.kb.xcorrsound.search.FingerprintDBSearcher.fullCheck;
+import static dk.kb.xcorrsound.search.FingerprintDBSearcher.hitDist;
+import static dk.kb.xcorrsound.search.FingerprintDBSearcher.hitPos;
+
+//Looks for a fixed catalogue of recordings, such as jingles and ads, in a live stream. This is the search turned
+//around: the catalogue is held in memory as queries, each the macro_sz fingerprints from fpSkip of a recording, and
+//the stream takes the place of the index.
+//The stream is fingerprinted as it arrives, and each recording is scanned over it as FingerprintDBSearcher scans an
+//index: every SCAN_STRIDE positions, the start of the window is compared by HammingKernel.terminatesEarly, and where
+//it does not look like noise, fullCheck finds the best window within nearRange. As that needs the fingerprints up to
+//nearRange + macro_sz after the position, a match is given to the listener at most that many fingerprints, about 4.7
+//seconds, after its window has arrived. Only the fingerprints the scan still needs are kept, so a stream can run for
+//as long as it likes. A monitor is not thread safe.
+public class StreamMonitor extends FingerPrintDB implements FingerprintSink {
+    
+    private static final Logger log = LoggerFactory.getLogger(StreamMonitor.class);
+    
+    //Samples of a live stream fingerprinted at a time. A fingerprint is passed on at most this long after its audio
+    //has arrived
+    public static final int LIVE_CHUNK_SAMPLES = 4096;
+    
+    //Positions the scan steps the stream by, as the scan of an index
+    private static final int SCAN_STRIDE = 8;
+    
+    //Fingerprints of the stream held at a time. The scan needs the last 2 * nearRange + macro_sz of them at most
+    private static final int HISTORY_SIZE = 64 * 1024;
+    
+    private static final long NO_MATCH = Long.MIN_VALUE;
+    
+    private final FingerprintCodec codec;
+    
+    private final List<Entry> entries = new ArrayList<>();
+    
+    private double criteria = FingerprintDBSearcher.DEFAULT_CRITERIA;
+    
+    private Consumer<StreamMatch> listener = match -> {
+    };
+    
+    //The last fingerprints of the stream, where history[0] is the fingerprint historyStart of the stream
+    private final Buffer history;
+    
+    private long historyStart = 0;
+    
+    //Number of fingerprints of the stream so far
+    private long streamLength = 0;
+    
+    //Monitor for the recordings of the index, as the catalogue. The stream must be fingerprinted with the parameters
+    //of the index, as getFingerprintStrategy does
+    public StreamMonitor(String catalogueIndex) throws IOException {
+        super(catalogueIndex);
+        this.codec   = FingerprintCodec.forBands(getBands());
+        this.history = codec.allocate(HISTORY_SIZE);
+        
+        MappedDB mappedDB = MappedDB.openIndex(dbFilename, IndexHeader.read(dbFilename));
+        OffsetMap offsetMap = getOffsetMap();
+        for (int entry = 0; entry < offsetMap.size(); entry++) {
+            int start = offsetMap.getStart(entry);
+            int end = offsetMap.getEnd(entry);
+            if (end > mappedDB.length()) {
+                throw new IOException("The map of " + dbFilename + " has fingerprints up to " + end
+                                      + ", but the index only has " + mappedDB.length());
+            }
+            if (end - start < macro_sz + fpSkip) {
+                log.warn("Leaving '{}' out of the catalogue, as its {} fingerprints are too few to match",
+                         offsetMap.getName(entry), end - start);
+                continue;
+            }
+            long[] fingerprints = new long[end - start];
+            for (int i = 0; i < fingerprints.length; i++) {
+                fingerprints[i] = mappedDB.get(start + i);
+            }
+            add(offsetMap.getName(entry), fingerprints);
+        }
+        log.info("Monitoring for {} recordings from {}", entries.size(), dbFilename);
+    }
+    
+    //Monitor with an empty catalogue, for recordings that are added as fingerprints made with these parameters
+    public StreamMonitor(int frameLength, int advance, int sampleRate, int bands) throws IOException {
+        super(frameLength, advance, sampleRate, bands, null);
+        this.codec   = FingerprintCodec.forBands(bands);
+        this.history = codec.allocate(HISTORY_SIZE);
+    }
+    
+    //Add the recording to the catalogue. It is looked for in the stream from the fingerprints that arrive after this
+    public void add(String name, long[] fingerprints) {
+        entries.add(new Entry(name, new PackedQuery(fingerprints, codec), streamLength));
+    }
+    
+    //Number of recordings in the catalogue
+    public int size() {
+        return entries.size();
+    }
+    
+    public double getCriteria() {
+        return criteria;
+    }
+    
+    //A window of the stream matches a recording if their distance is below this
+    public void setCriteria(double criteria) {
+        this.criteria = criteria;
+    }
+    
+    //Receives the matches, as soon as they are found
+    public void setListener(Consumer<StreamMatch> listener) {
+        this.listener = listener;
+    }
+    
+    //Number of fingerprints of the stream so far
+    public long getStreamLength() {
+        return streamLength;
+    }
+    
+    //Monitor the audio of the file, an url ffmpeg can read or - for a wav on stdin, until it ends
+    public void monitor(String filename) throws IOException, UnsupportedAudioFileException, InterruptedException {
+        getFingerprintStrategy().streamFingerprintsForFile(filename, LIVE_CHUNK_SAMPLES, this);
+        finish();
+    }
+    
+    //Monitor PCM audio at the sample rate of the catalogue until it ends. The audio is not closed
+    public void monitor(AudioInputStream audio) throws IOException {
+        getFingerprintStrategy().streamFingerprintsForAudio(audio, LIVE_CHUNK_SAMPLES, this);
+        finish();
+    }
+    
+    //The next fingerprints of the stream
+    @Override
+    public void accept(long[] fingerprints, int count) {
+        int offset = 0;
+        while (offset < count) {
+            if (streamLength - historyStart == HISTORY_SIZE) {
+                compact();
+            }
+            int toCopy = (int) Math.min(count - offset, HISTORY_SIZE - (streamLength - historyStart));
+            int historyEnd = (int) (streamLength - historyStart);
+            for (int i = 0; i < toCopy; i++) {
+                codec.put(history, historyEnd + i, fingerprints[offset + i]);
+            }
+            streamLength += toCopy;
+            offset += toCopy;
+            scan(false);
+        }
+    }
+    
+    //The stream has ended, so the windows near its end are checked with the fingerprints there are
+    public void finish() {
+        scan(true);
+    }
+    
+    //Scan each recording up to the end of the stream so far. Where a position needs fingerprints that have not
+    //arrived yet, the recording waits there, unless the stream has ended
+    private void scan(boolean ended) {
+        int sampleRate = getFingerprintStrategy().getSampleRate();
+        long positionsScanned = 0;
+        long earlyTerminations = 0;
+        long nearPosChecks = 0;
+        long hits = 0;
+        for (Entry entry : entries) {
+            PackedQuery query = entry.query;
+            HammingKernel hammingKernel = HammingKernel.forCodec(query.codec);
+            while (true) {
+                if (entry.candidate) {
+                    if (entry.pos + nearRange + macro_sz > streamLength && !ended) {
+                        break;
+                    }
+                    nearPosChecks++;
+                    if (checkNearPos(entry)) {
+                        hits++;
+                    }
+                    entry.candidate = false;
+                    entry.pos += nearRange + SCAN_STRIDE;
+                    continue;
+                }
+                if (entry.pos + macro_sz > streamLength) {
+                    break;
+                }
+                
+                //If we are to close to the previous match, just continue
+                if (entry.prevMatchPos != NO_MATCH && entry.pos - entry.prevMatchPos < (sampleRate / 64)) {
+                    entry.pos += SCAN_STRIDE;
+                    continue;
+                }
+                
+                positionsScanned++;
+                if (hammingKernel.terminatesEarly(query, history, (int) (entry.pos - historyStart))) {
+                    earlyTerminations++;
+                    entry.pos += SCAN_STRIDE;
+                } else {
+                    entry.candidate = true;
+                }
+            }
+        }
+        getMetrics().positionsScanned(positionsScanned);
+        getMetrics().earlyTerminations(earlyTerminations);
+        getMetrics().nearPosChecks(nearPosChecks);
+        getMetrics().hits(hits);
+    }
+    
+    //Check the windows within nearRange of the position of the entry, as checkNearPos of the searcher, and give the
+    //best of them to the listener if it is a match. Returns whether it was
+    private boolean checkNearPos(Entry entry) {
+        long windowStart = Math.max(0, entry.pos - nearRange);
+        long windowEnd = Math.min(entry.pos + nearRange + macro_sz, streamLength);
+        int windowLength = (int) Math.max(0, windowEnd - windowStart);
+        long fullCheckResult = fullCheck(entry.query,
+                                         history,
+                                         (int) (windowStart - historyStart),
+                                         windowLength,
+                                         criteria);
+        int dist = hitDist(fullCheckResult);
+        if (dist >= criteria) {
+            return false;
+        }
+        long matchPos = windowStart + hitPos(fullCheckResult);
+        //As the searcher, the next matches are counted from nearRange after the best window
+        entry.prevMatchPos = matchPos + nearRange;
+        //The window is the fingerprints from query.start of the recording, which may have started before the stream
+        StreamMatch match = new StreamMatch(entry.name,
+                                            Math.max(0, matchPos - entry.query.start),
+                                            dist,
+                                            getFingerprintStrategy());
+        log.info("Found {}", match);
+        listener.accept(match);
+        return true;
+    }
+    
+    //Drop the fingerprints before the first window a recording can still need, so the stream has room to arrive
+    private void compact() {
+        long keepFrom = streamLength;
+        for (Entry entry : entries) {
+            keepFrom = Math.min(keepFrom, entry.pos - nearRange);
+        }
+        keepFrom = Math.max(keepFrom, historyStart);
+        int keep = (int) (streamLength - keepFrom);
+        codec.copy(history, (int) (keepFrom - historyStart), history, 0, keep);
+        historyStart = keepFrom;
+    }
+    
+    //Where the scan of a recording of the catalogue is in the stream
+    private static class Entry {
+        final String name;
+        final PackedQuery query;
+        //The next position of the stream to compare, as the first fingerprint of the window
+        long pos;
+        //Whether pos did not look like noise, and waits for the fingerprints around it to arrive
+        boolean candidate = false;
+        long prevMatchPos = NO_MATCH;
+        
+        Entry(String name, PackedQuery query, long pos) {
+            this.name  = name;
+            this.query = query;
+            this.pos   = pos;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package dk.kb.xcorrsound.search;
+
+import dk.kb.xcorrsound.FingerprintCodec;
+import dk.kb.xcorrsound.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+import static dk.kb.xcorrsound.FingerPrintDB.nearRange;
+
+//Windows of the index for checkNearPos in the streamed scan, for the candidates near the edge of a blob.
+//A window is served from the blob being scanned, the end of the blob before it, and for the part after the blob, a
+//positioned read on a channel that is opened once per search. So the file is never reopened or skipped through.
+class WindowProvider implements WindowReader, Closeable {
+    
+    //The positions before the current view that are kept. Windows start at most nearRange before the scanned position
+    private static final int RETAINED = nearRange + macro_sz;
+    
+    private final FileChannel channel;
+    
+    private final int scanEnd;
+    
+    //Byte offset of the first fingerprint in the file
+    private final long dataOffset;
+    
+    private final FingerprintCodec codec;
+    
+    private final Metrics metrics;
+    
+    //The blob being scanned, holding the positions [viewStart, viewEnd)
+    private Buffer view;
+    
+    private int viewStart;
+    
+    private int viewEnd;
+    
+    //The end of the previous blob, holding the positions [retainedStart, retainedEnd)
+    private final Buffer retained;
+    
+    private int retainedStart = 0;
+    
+    private int retainedEnd = 0;
+    
+    //The bytes of the last read from the file, kept for the next
+    private ByteBuffer readBytes = null;
+    
+    WindowProvider(String dbFilename, FingerprintCodec codec, long dataOffset, int scanEnd, Metrics metrics)
+            throws IOException {
+        this.channel    = FileChannel.open(Path.of(dbFilename), StandardOpenOption.READ);
+        this.codec      = codec;
+        this.retained   = codec.allocate(RETAINED);
+        this.dataOffset = dataOffset;
+        this.scanEnd    = scanEnd;
+        this.metrics    = metrics;
+    }
+    
+    //Keep the end of the current view, before it is overwritten by the next blob
+    void retainView() {
+        if (view == null) {
+            return;
+        }
+        retainedStart = Math.max(viewStart, viewEnd - RETAINED);
+        retainedEnd   = viewEnd;
+        codec.copy(view, retainedStart - viewStart, retained, 0, retainedEnd - retainedStart);
+    }
+    
+    //The blob being scanned now holds the positions [viewStart, viewStart + viewLength) in view[0, viewLength)
+    void setView(Buffer view, int viewStart, int viewLength) {
+        this.view      = view;
+        this.viewStart = viewStart;
+        this.viewEnd   = viewStart + viewLength;
+    }
+    
+    @Override
+    public void read(int windowStart, int windowLength, Buffer window) throws IOException {
+        int windowEnd = windowStart + windowLength;
+        int pos = windowStart;
+        while (pos < windowEnd) {
+            int to;
+            if (pos < macro_sz || pos >= scanEnd) {
+                //The zeroes before and after the index
+                to = pos < macro_sz ? Math.min(windowEnd, macro_sz) : windowEnd;
+                codec.clear(window, pos - windowStart, to - windowStart);
+            } else if (pos >= retainedStart && pos < retainedEnd) {
+                to = Math.min(windowEnd, retainedEnd);
+                codec.copy(retained, pos - retainedStart, window, pos - windowStart, to - pos);
+            } else if (view != null && pos >= viewStart && pos < viewEnd) {
+                to = Math.min(windowEnd, viewEnd);
+                codec.copy(view, pos - viewStart, window, pos - windowStart, to - pos);
+            } else {
+                //Read up to the next part that is in memory, or the end of the window
+                to = Math.min(windowEnd, scanEnd);
+                if (pos < retainedStart) {
+                    to = Math.min(to, retainedStart);
+                }
+                if (view != null && pos < viewStart) {
+                    to = Math.min(to, viewStart);
+                }
+                readFromFile(pos, window, pos - windowStart, to - pos);
+            }
+            pos = to;
+        }
+    }
+    
+    private void readFromFile(int pos, Buffer dest, int destOffset, int count) throws IOException {
+        int byteCount = count * codec.getBytes();
+        if (readBytes == null || readBytes.capacity() < byteCount) {
+            readBytes = ByteBuffer.allocate(byteCount).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer bytes = readBytes;
+        bytes.clear().limit(byteCount);
+        long filePosition = dataOffset + (long) (pos - macro_sz) * codec.getBytes();
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, filePosition + bytes.position()) < 0) {
+                throw new IOException("The index ended before position " + (pos + count));
+            }
+        }
+        bytes.flip();
+        codec.copy(codec.view(bytes), 0, dest, destOffset, count);
+        metrics.bytesRead(byteCount);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,10 @@
+package dk.kb.xcorrsound.search;
+
+import java.io.IOException;
+import java.nio.Buffer;
+
+//Reads a window of positions that is not inside the current view of the scan, into window[0, windowLength). The
+//window is a buffer of the codec of the index, that the caller reuses, so no buffer is made for each window
+interface WindowReader {
+    void read(int windowStart, int windowLength, Buffer window) throws IOException;
+}
@@ -7,6 +7,7 @@ module dk.kb.xcorrsound {
     exports dk.kb.xcorrsound.index;
     exports dk.kb.xcorrsound.search;
     exports dk.kb.xcorrsound;
+    exports dk.kb.facade;
     
     //Nessesary for junit tests
     opens dk.kb.xcorrsound;
@@ -15,7 +16,7 @@ module dk.kb.xcorrsound {
     
     //FFT
     requires JTransforms;
-    //FFT dependency: Complex numbers
+    //FFT dependency
     requires commons.math3;
     
     //AudioFile parsing: javax.sound.sampled
@@ -28,6 +29,9 @@ module dk.kb.xcorrsound {
     //Logging
     requires org.slf4j;
     
+    //Metrics over JMX
+    requires transitive java.management;
+    
     //FileUtils, IOUtils
     requires org.apache.commons.io;
     
@@ -1,9 +1,52 @@
 package dk.kb.xcorrsound;
 
+import dk.kb.xcorrsound.search.FingerprintDBSearcher;
+import dk.kb.xcorrsound.search.IsmirSearchResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.List;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+import static dk.kb.xcorrsound.FingerPrintDB.nearRange;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
 class FingerPrintDB48BitTest extends FingerPrintDBNImplTest {
     
     
     public FingerPrintDB48BitTest() {
-        super(3506, 48);
+        //The index stores all 48 bits. When it stored the lower 32, the distance was 3506, as every set bit above 32
+        //in the query was counted as a difference
+        super(lessThan(3506), 48);
+    }
+    
+    //The distance of the best hit must be exactly that of all 48 bits of the query and the indexed file at the hit.
+    //It depends on how ffmpeg decodes the mp3, so it is computed from the fingerprints instead of given
+    @Test
+    public void distanceCountsAllBands() throws Exception {
+        FingerprintDBSearcher ismir = new FingerprintDBSearcher(2048, 64, 5512, 48, DBFILE);
+        FingerprintStrategy strategy = ismir.getFingerprintStrategy();
+        long[] indexed = strategy.getFingerprintsForFileForIndex(
+                TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!.mp3"));
+        long[] query = strategy.getFingerprintsForFileForSearch(
+                TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!-5secChunk.mp3"), null);
+        
+        List<IsmirSearchResult> results = ismir.query_scan(query, FingerprintDBSearcher.DEFAULT_CRITERIA * 48 / 32);
+        IsmirSearchResult best = results.stream().min(Comparator.comparingInt(IsmirSearchResult::getDist)).orElseThrow();
+        
+        //The hit is reported at the fingerprint matched with fpSkip of the query, offset by macro_sz + nearRange
+        int windowStart = best.getPosInIndex() - macro_sz - nearRange;
+        int expected = 0;
+        int upperBits = 0;
+        for (int i = 0; i < macro_sz; i++) {
+            expected += Long.bitCount(query[fpSkip + i] ^ indexed[windowStart + i]);
+            upperBits += Long.bitCount(query[fpSkip + i] >>> Integer.SIZE);
+        }
+        assertThat(upperBits, greaterThan(0));
+        assertThat(best.getDist(), equalTo(expected));
     }
 }
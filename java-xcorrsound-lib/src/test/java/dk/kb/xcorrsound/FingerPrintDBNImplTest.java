@@ -4,6 +4,7 @@ import dk.kb.xcorrsound.index.FingerprintDBIndexer;
 import dk.kb.xcorrsound.search.FingerprintDBSearcher;
 import dk.kb.xcorrsound.search.IsmirSearchResult;
 import org.apache.commons.io.FileUtils;
+import org.hamcrest.Matcher;
 import org.junit.jupiter.api.Test;
 
 import javax.sound.sampled.UnsupportedAudioFileException;
@@ -21,11 +22,15 @@ import static org.hamcrest.Matchers.hasProperty;
 public abstract class FingerPrintDBNImplTest {
     
     
-    private final int operand;
+    private final Matcher<Integer> operand;
     private int BANDS;
     public final String DBFILE;
     
     public FingerPrintDBNImplTest(int operand, int BANDS) {
+        this(equalTo(operand), BANDS);
+    }
+    
+    public FingerPrintDBNImplTest(Matcher<Integer> operand, int BANDS) {
         this.operand = operand;
         this.BANDS   = BANDS;
         DBFILE       = "testDB" + this.BANDS;
@@ -70,9 +75,30 @@ public abstract class FingerPrintDBNImplTest {
         assertThat(results,
                    hasItem(
                            allOf(
-                                   hasProperty("dist", equalTo(operand)),
+                                   hasProperty("dist", operand),
                                    hasProperty("posInIndex", equalTo(1317)))));
     }
     
     
+    @Test
+    public void queryMappedEqualsStream() throws UnsupportedAudioFileException, InterruptedException, IOException,
+                                                 URISyntaxException {
+        FingerprintDBSearcher ismir = new FingerprintDBSearcher(2048, 64, 5512, BANDS, DBFILE);
+        
+        String mp3file = new File(Thread.currentThread()
+                                        .getContextClassLoader()
+                                        .getResource("Monk Turner + Fascinoma - It's Your Birthday!-5secChunk.mp3")
+                                        .toURI()).getAbsolutePath();
+        long[] fingerprints = ismir.getFingerprintStrategy().getFingerprintsForFileForSearch(mp3file, null);
+        
+        ismir.setScanMode(FingerprintDBSearcher.ScanMode.STREAM);
+        List<IsmirSearchResult> streamResults = ismir.query_scan(fingerprints,
+                                                                 FingerprintDBSearcher.DEFAULT_CRITERIA * BANDS / 32);
+        ismir.setScanMode(FingerprintDBSearcher.ScanMode.MAPPED);
+        List<IsmirSearchResult> mappedResults = ismir.query_scan(fingerprints,
+                                                                 FingerprintDBSearcher.DEFAULT_CRITERIA * BANDS / 32);
+        
+        assertThat(mappedResults.toString(), equalTo(streamResults.toString()));
+    }
+    
 }
@@ -0,0 +1,145 @@
+package dk.kb.xcorrsound;
+
+import dk.kb.facade.XCorrSoundFacade;
+import dk.kb.xcorrsound.index.FingerprintDBIndexer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class FingerprintDBIndexerTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void insertAllEqualsInsert() throws Exception {
+        String wavFile = TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!.mp3.wav");
+        String mp3File = TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!.mp3");
+        //Read into memory by insertAll, but streamed by insert
+        String truncatedFile = TestData.truncatedWav(tempDir, 100_000);
+        List<String> files = List.of(wavFile, mp3File, truncatedFile, wavFile, mp3File, wavFile);
+        
+        Path serialDB = tempDir.resolve("serial.db");
+        FingerprintDBIndexer serialIndexer = new FingerprintDBIndexer(serialDB.toString());
+        for (String file : files) {
+            serialIndexer.insert(file, file);
+        }
+        
+        Path parallelDB = tempDir.resolve("parallel.db");
+        new FingerprintDBIndexer(parallelDB.toString()).insertAll(files, 2, 3);
+        
+        assertThat(Files.readAllBytes(parallelDB), equalTo(Files.readAllBytes(serialDB)));
+        assertThat(Files.readString(Path.of(parallelDB + ".map")), equalTo(Files.readString(Path.of(serialDB + ".map"))));
+    }
+    
+    @Test
+    void insertAllStreamsLongFiles() throws Exception {
+        String wavFile = TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!.mp3.wav");
+        String mp3File = TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!.mp3");
+        List<String> files = List.of(wavFile, mp3File, wavFile);
+        
+        Path serialDB = tempDir.resolve("serial.db");
+        FingerprintDBIndexer serialIndexer = new FingerprintDBIndexer(serialDB.toString());
+        for (String file : files) {
+            serialIndexer.insert(file, file);
+        }
+        
+        //Both files are longer than this, so they are all streamed by the writer
+        Path parallelDB = tempDir.resolve("parallel.db");
+        FingerprintDBIndexer parallelIndexer = new FingerprintDBIndexer(parallelDB.toString());
+        parallelIndexer.setMaxInMemorySamples(100_000);
+        parallelIndexer.insertAll(files, 2, 3);
+        
+        assertThat(Files.readAllBytes(parallelDB), equalTo(Files.readAllBytes(serialDB)));
+        assertThat(Files.readString(Path.of(parallelDB + ".map")), equalTo(Files.readString(Path.of(serialDB + ".map"))));
+    }
+    
+    @Test
+    void insertInMemoryEqualsInsert() throws Exception {
+        String wavFile = TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!.mp3.wav");
+        
+        Path fileDB = tempDir.resolve("file.db");
+        //A file is indexed by its filename
+        new FingerprintDBIndexer(fileDB.toString()).insert(wavFile, wavFile);
+        
+        //The audio as a capture would have it, without the file
+        long[] fingerprints;
+        try (AudioInputStream audio = AudioSystem.getAudioInputStream(new File(wavFile))) {
+            fingerprints = XCorrSoundFacade.generateFingerPrintFromAudioStream(audio);
+        }
+        FingerprintStrategy strategy = new FingerprintStrategyIsmir(2048, 64, 5512, 32);
+        short[] samples = strategy.getSamplesForFile(wavFile);
+        assertThat(XCorrSoundFacade.generateFingerPrintFromSamples(samples), equalTo(fingerprints));
+        //A buffer that is a slice of a larger one
+        short[] padded = new short[samples.length + 20];
+        System.arraycopy(samples, 0, padded, 10, samples.length);
+        ShortBuffer buffer = ShortBuffer.wrap(padded, 10, samples.length);
+        assertThat(XCorrSoundFacade.generateFingerPrintFromSamples(buffer), equalTo(fingerprints));
+        assertThat(buffer.position(), equalTo(10));
+        
+        Path memoryDB = tempDir.resolve("memory.db");
+        new FingerprintDBIndexer(memoryDB.toString()).insert(fingerprints, wavFile);
+        
+        assertThat(Files.readAllBytes(memoryDB), equalTo(Files.readAllBytes(fileDB)));
+        assertThat(Files.readString(Path.of(memoryDB + ".map")), equalTo(Files.readString(Path.of(fileDB + ".map"))));
+    }
+    
+    @Test
+    void strategyDefaultsEqualIsmir() throws Exception {
+        String wavFile = TestData.resource(TestData.WAV);
+        FingerprintStrategyIsmir ismir = new FingerprintStrategyIsmir(2048, 64, 5512, 32);
+        //A strategy that only fingerprints files, as one written before the samples and audio methods
+        FingerprintStrategy fileStrategy = new FingerprintStrategy() {
+            @Override
+            public long[] getFingerprintsForFileForIndex(String filename)
+                    throws IOException, UnsupportedAudioFileException {
+                return ismir.getFingerprintsForFileForIndex(filename);
+            }
+            
+            @Override
+            public long[] getFingerprintsForFileForSearch(String filename, Long offsetSeconds)
+                    throws IOException, UnsupportedAudioFileException {
+                return ismir.getFingerprintsForFileForSearch(filename, offsetSeconds);
+            }
+            
+            @Override
+            public int getSampleRate() {
+                return ismir.getSampleRate();
+            }
+        };
+        
+        short[] samples = ismir.getSamplesForFile(wavFile);
+        assertThat(fileStrategy.getSamplesForFile(wavFile), nullValue());
+        assertThat(fileStrategy.getFingerprintsForSamples(samples), equalTo(ismir.getFingerprintsForSamples(samples)));
+        long[] expected;
+        try (AudioInputStream audio = AudioSystem.getAudioInputStream(new File(wavFile))) {
+            expected = ismir.getFingerprintsForAudio(audio);
+        }
+        try (AudioInputStream audio = AudioSystem.getAudioInputStream(new File(wavFile))) {
+            assertThat(fileStrategy.getFingerprintsForAudio(audio), equalTo(expected));
+        }
+        List<long[]> chunks = new ArrayList<>();
+        try (AudioInputStream audio = AudioSystem.getAudioInputStream(new File(wavFile))) {
+            fileStrategy.streamFingerprintsForAudio(audio,
+                                                    5512,
+                                                    (chunk, count) -> chunks.add(Arrays.copyOf(chunk, count)));
+        }
+        assertThat(chunks.size(), equalTo(1));
+        assertThat(chunks.get(0), equalTo(expected));
+    }
+}
@@ -0,0 +1,556 @@
+package dk.kb.xcorrsound;
+
+import dk.kb.xcorrsound.index.FingerprintDBIndexer;
+import dk.kb.xcorrsound.search.FingerprintDBSearcher;
+import dk.kb.xcorrsound.search.IsmirSearchResult;
+import dk.kb.xcorrsound.search.LookupTable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+import static dk.kb.xcorrsound.FingerPrintDB.nearRange;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasProperty;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/*
+ * Searches in a synthetic index of random fingerprints, with a recording inserted at positions that are awkward for
+ * the scan: the start of the index and across the boundaries between the blobs the index is read in.
+ */
+public class FingerprintDBSearcherTest {
+    
+    private static final int INDEX_SIZE = 3 * 1024 * 1024;
+    
+    private static final int[] RECORDING_STARTS = {0, 1024 * 1024 - 1000, 2 * 1024 * 1024 - 150};
+    
+    private static final int QUERY_OFFSET = 700;
+    
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void findsRecordingsAcrossBlobs() throws IOException {
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, createIndex());
+        
+        List<IsmirSearchResult> results = searcher.query_scan(query(), FingerprintDBSearcher.DEFAULT_CRITERIA);
+        
+        for (int recordingStart : RECORDING_STARTS) {
+            //Hits are reported at the position of fingerprint fpSkip, offset by macro_sz + nearRange
+            int expectedPos = recordingStart + QUERY_OFFSET + fpSkip + macro_sz + nearRange;
+            assertThat(results, hasItem(allOf(hasProperty("dist", equalTo(0)),
+                                              hasProperty("posInIndex", equalTo(expectedPos)))));
+        }
+    }
+    
+    @Test
+    void mappedEqualsStream() throws IOException {
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, createIndex());
+        long[] query = query();
+        
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.STREAM);
+        List<IsmirSearchResult> streamResults = searcher.query_scan(query, FingerprintDBSearcher.DEFAULT_CRITERIA);
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.MAPPED);
+        List<IsmirSearchResult> mappedResults = searcher.query_scan(query, FingerprintDBSearcher.DEFAULT_CRITERIA);
+        
+        assertThat(mappedResults.toString(), equalTo(streamResults.toString()));
+    }
+    
+    @Test
+    void streamServesWindowsAcrossBlobs() throws IOException {
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, createIndex());
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.STREAM);
+        CountingMetrics metrics = new CountingMetrics();
+        searcher.setMetrics(metrics);
+        
+        List<IsmirSearchResult> results = searcher.query_scan(query(), FingerprintDBSearcher.DEFAULT_CRITERIA);
+        
+        //The best window of the recording from 1024 * 1024 - 1000 has fingerprints from both the first and the second
+        //blob, so it is checked from the retained end of the first blob and the start of the second
+        int recordingStart = RECORDING_STARTS[1];
+        int windowStart = recordingStart + QUERY_OFFSET + fpSkip;
+        assertThat(windowStart < 1024 * 1024 && windowStart + macro_sz > 1024 * 1024, equalTo(true));
+        assertThat(results, hasItem(allOf(hasProperty("dist", equalTo(0)),
+                                          hasProperty("posInIndex", equalTo(windowStart + macro_sz + nearRange)))));
+        assertThat(results.size(), equalTo(RECORDING_STARTS.length));
+        //No window was read again, but the parts of the windows after the end of a blob were read from the open index
+        assertThat(metrics.getWindowRereads(), equalTo(0L));
+        assertThat(metrics.getBytesRead(), greaterThan((long) INDEX_SIZE * Integer.BYTES));
+    }
+    
+    @Test
+    void parallelEqualsSerial() throws IOException {
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, createIndex());
+        long[] query = query();
+        
+        List<IsmirSearchResult> serialResults = searcher.query_scan(query, FingerprintDBSearcher.DEFAULT_CRITERIA);
+        searcher.setForkJoinPool(new ForkJoinPool(4));
+        List<IsmirSearchResult> parallelResults = searcher.query_scan(query, FingerprintDBSearcher.DEFAULT_CRITERIA);
+        
+        assertThat(parallelResults.toString(), equalTo(serialResults.toString()));
+    }
+    
+    @Test
+    void batchEqualsSingleQueries() throws IOException {
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, createIndex());
+        List<long[]> queries = List.of(query(), query(1500), query(2500));
+        
+        List<List<IsmirSearchResult>> batchResults = searcher.query_scan(queries,
+                                                                         FingerprintDBSearcher.DEFAULT_CRITERIA);
+        
+        assertThat(batchResults.size(), equalTo(queries.size()));
+        for (int i = 0; i < queries.size(); i++) {
+            List<IsmirSearchResult> singleResults = searcher.query_scan(queries.get(i),
+                                                                        FingerprintDBSearcher.DEFAULT_CRITERIA);
+            assertThat(batchResults.get(i).toString(), equalTo(singleResults.toString()));
+            assertThat(batchResults.get(i).size(), equalTo(RECORDING_STARTS.length));
+        }
+    }
+    
+    @Test
+    void lookupTableEqualsScan() throws IOException {
+        String indexFile = createIndex();
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, indexFile);
+        List<long[]> queries = List.of(query(), query(1500), query(2500));
+        
+        List<List<IsmirSearchResult>> scanResults = searcher.query_scan(queries, FingerprintDBSearcher.DEFAULT_CRITERIA);
+        new FingerprintDBIndexer(2048, 64, 5512, 32, indexFile).buildLookupTable();
+        List<List<IsmirSearchResult>> lookupResults = searcher.query_scan(queries,
+                                                                          FingerprintDBSearcher.DEFAULT_CRITERIA);
+        
+        assertThat(lookupResults.toString(), equalTo(scanResults.toString()));
+    }
+    
+    @Test
+    void lookupTableScansAppendedFingerprints() throws IOException {
+        String indexFile = createIndex();
+        FingerprintDBIndexer indexer = new FingerprintDBIndexer(2048, 64, 5512, 32, indexFile);
+        indexer.buildLookupTable();
+        //Appended after the table was built, so only the scan can find it
+        indexer.writeDBToDisk(indexFile, recording(32),
+                              "appended");
+        
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, indexFile);
+        List<IsmirSearchResult> results = searcher.query_scan(query(), FingerprintDBSearcher.DEFAULT_CRITERIA);
+        
+        assertThat(results.size(), equalTo(RECORDING_STARTS.length + 1));
+        assertThat(results, hasItem(allOf(hasProperty("filename", equalTo("appended")),
+                                          hasProperty("dist", equalTo(0)))));
+    }
+    
+    @Test
+    void openSearcherFindsAppendedFiles() throws IOException {
+        String indexFile = createIndex();
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, indexFile);
+        assertThat(searcher.query_scan(query(), FingerprintDBSearcher.DEFAULT_CRITERIA).size(),
+                   equalTo(RECORDING_STARTS.length));
+        
+        new FingerprintDBIndexer(2048, 64, 5512, 32, indexFile).writeDBToDisk(
+                indexFile, recording(32), "appended");
+        List<IsmirSearchResult> results = searcher.query_scan(query(), FingerprintDBSearcher.DEFAULT_CRITERIA);
+        
+        assertThat(results.size(), equalTo(RECORDING_STARTS.length + 1));
+        assertThat(results, hasItem(allOf(hasProperty("filename", equalTo("appended")),
+                                          hasProperty("dist", equalTo(0)))));
+    }
+    
+    @Test
+    void countsTheScan() throws Exception {
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, createIndex());
+        CountingMetrics metrics = new CountingMetrics();
+        searcher.setMetrics(metrics);
+        ObjectName objectName = metrics.register("countsTheScan");
+        
+        searcher.query_scan(query(), FingerprintDBSearcher.DEFAULT_CRITERIA);
+        
+        assertThat(metrics.getSearches(), equalTo(1L));
+        assertThat(metrics.getHits(), equalTo((long) RECORDING_STARTS.length));
+        assertThat(metrics.getNearPosChecks(), greaterThanOrEqualTo((long) RECORDING_STARTS.length));
+        //Positions skipped after a hit or a check are not scanned
+        assertThat(metrics.getPositionsScanned(), lessThanOrEqualTo((INDEX_SIZE + 7L) / 8));
+        assertThat(metrics.getPositionsScanned(),
+                   equalTo(metrics.getEarlyTerminations() + metrics.getNearPosChecks()));
+        assertThat(metrics.getBytesRead(), greaterThanOrEqualTo((long) INDEX_SIZE * Integer.BYTES));
+        assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "Hits"),
+                   equalTo((long) RECORDING_STARTS.length));
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+    
+    @Test
+    void searcherConfiguresFromHeader() throws IOException {
+        String legacyFile = createIndex();
+        Path indexFile = tempDir.resolve("header.db");
+        new FingerprintDBIndexer(2048, 64, 5512, 32, indexFile.toString()).writeDBToDisk(
+                indexFile.toString(),
+                Arrays.stream(syntheticIndex()).mapToLong(Integer::toUnsignedLong).toArray(),
+                "synthetic");
+        
+        IndexHeader header = IndexHeader.read(indexFile.toString());
+        assertThat(header.getRecordCount(), equalTo((long) INDEX_SIZE));
+        assertThat(header.getBands(), equalTo(32));
+        assertThat(Files.size(indexFile), equalTo(header.getDataOffset() + INDEX_SIZE * 4L));
+        assertThat(header.verify(indexFile.toString()), equalTo(true));
+        //An index without a header has no header
+        assertThat(IndexHeader.read(legacyFile), nullValue());
+        
+        List<IsmirSearchResult> legacyResults = new FingerprintDBSearcher(legacyFile)
+                .query_scan(query(), FingerprintDBSearcher.DEFAULT_CRITERIA);
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(indexFile.toString());
+        assertThat(searcher.getBands(), equalTo(32));
+        assertThat(searcher.query_scan(query(), FingerprintDBSearcher.DEFAULT_CRITERIA).toString(),
+                   equalTo(legacyResults.toString()));
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.STREAM);
+        assertThat(searcher.query_scan(query(), FingerprintDBSearcher.DEFAULT_CRITERIA).toString(),
+                   equalTo(legacyResults.toString()));
+    }
+    
+    @Test
+    void headerRejectsMismatches() throws IOException {
+        Path indexFile = tempDir.resolve("header.db");
+        new FingerprintDBIndexer(2048, 64, 5512, 32, indexFile.toString()).writeDBToDisk(
+                indexFile.toString(), recording(32),
+                "recording");
+        
+        assertThrows(IllegalArgumentException.class,
+                     () -> new FingerprintDBSearcher(2048, 64, 5512, 16, indexFile.toString()));
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(indexFile.toString());
+        long[] wideQuery = query();
+        wideQuery[0] |= 1L << 40;
+        assertThrows(IllegalArgumentException.class,
+                     () -> searcher.query_scan(wideQuery, FingerprintDBSearcher.DEFAULT_CRITERIA));
+    }
+    
+    @Test
+    void shortIndexEqualsIntIndex() throws IOException {
+        //A 16 band index stores shorts. The same fingerprints in an index of ints give the same hits
+        long[] fingerprints = syntheticIndex(16);
+        String indexFile = writeIndex("short.db", 16, fingerprints);
+        assertThat(Files.size(Path.of(indexFile)), equalTo(IndexHeader.BLOCK_SIZE + INDEX_SIZE * 2L));
+        ByteBuffer bytes = ByteBuffer.allocate(INDEX_SIZE * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        Arrays.stream(fingerprints).forEach(fingerprint -> bytes.putInt((int) fingerprint));
+        Path intIndexFile = tempDir.resolve("int.db");
+        Files.write(intIndexFile, bytes.array());
+        Files.writeString(tempDir.resolve("int.db.map"), INDEX_SIZE + " synthetic\n", StandardCharsets.UTF_8);
+        long[] query = query(recording(16), QUERY_OFFSET);
+        double criteria = FingerprintDBSearcher.DEFAULT_CRITERIA * 16 / 32;
+        
+        String intResults = new FingerprintDBSearcher(2048, 64, 5512, 16, intIndexFile.toString())
+                .query_scan(query, criteria)
+                .toString();
+        assertThat(searchAllModes(indexFile, query, criteria), equalTo(intResults));
+    }
+    
+    @Test
+    void longIndexKeepsAllBands() throws IOException {
+        String indexFile = writeIndex("long.db", 48, syntheticIndex(48));
+        assertThat(Files.size(Path.of(indexFile)), equalTo(IndexHeader.BLOCK_SIZE + INDEX_SIZE * 8L));
+        long[] query = query(recording(48), QUERY_OFFSET);
+        
+        List<IsmirSearchResult> results = new FingerprintDBSearcher(indexFile)
+                .query_scan(query, FingerprintDBSearcher.DEFAULT_CRITERIA * 48 / 32);
+        
+        for (int recordingStart : RECORDING_STARTS) {
+            //The bits above 32 match too, so the distance is 0
+            int expectedPos = recordingStart + QUERY_OFFSET + fpSkip + macro_sz + nearRange;
+            assertThat(results, hasItem(allOf(hasProperty("dist", equalTo(0)),
+                                              hasProperty("posInIndex", equalTo(expectedPos)))));
+        }
+        assertThat(searchAllModes(indexFile, query, FingerprintDBSearcher.DEFAULT_CRITERIA * 48 / 32),
+                   equalTo(results.toString()));
+    }
+    
+    @Test
+    void topAndFirstHits() throws IOException {
+        //The copies of the recording get a distance of 256, 0 and 128 to the query
+        long[] fingerprints = syntheticIndex(32);
+        long[] recording = recording(32);
+        for (int i = 0; i < recording.length; i++) {
+            fingerprints[RECORDING_STARTS[0] + i] ^= 1;
+            fingerprints[RECORDING_STARTS[2] + i] ^= i % 2;
+        }
+        String indexFile = writeIndex("ranked.db", 32, fingerprints);
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(indexFile);
+        long[] query = query(recording, QUERY_OFFSET);
+        double criteria = FingerprintDBSearcher.DEFAULT_CRITERIA;
+        
+        List<IsmirSearchResult> allResults = searcher.query_scan(query, criteria);
+        assertThat(allResults.stream().map(IsmirSearchResult::getDist).collect(Collectors.toList()),
+                   equalTo(List.of(256, 0, 128)));
+        List<IsmirSearchResult> expectedTop = List.of(allResults.get(1), allResults.get(2));
+        List<IsmirSearchResult> expectedFirst = List.of(allResults.get(0));
+        
+        assertThat(searcher.query_top(query, criteria, 2).toString(), equalTo(expectedTop.toString()));
+        assertThat(searcher.query_first(query, criteria).toString(), equalTo(expectedFirst.toString()));
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.STREAM);
+        assertThat(searcher.query_top(query, criteria, 2).toString(), equalTo(expectedTop.toString()));
+        assertThat(searcher.query_first(query, criteria).toString(), equalTo(expectedFirst.toString()));
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.MAPPED);
+        searcher.setForkJoinPool(new ForkJoinPool(4));
+        assertThat(searcher.query_top(query, criteria, 2).toString(), equalTo(expectedTop.toString()));
+        assertThat(searcher.query_first(query, criteria).toString(), equalTo(expectedFirst.toString()));
+        LookupTable.build(indexFile);
+        assertThat(searcher.query_top(query, criteria, 2).toString(), equalTo(expectedTop.toString()));
+        assertThat(searcher.query_first(query, criteria).toString(), equalTo(expectedFirst.toString()));
+        
+        //The best hit is below any criteria the others are
+        assertThat(searcher.query_top(query, 100, 3).size(), equalTo(1));
+        assertThrows(IllegalArgumentException.class, () -> searcher.query_top(query, criteria, 0));
+    }
+    
+    @Test
+    void blockSummaryEqualsScan() throws IOException {
+        //Silence between the copies of the recording, which the early termination gives up on before the summary
+        long[] fingerprints = syntheticIndex(32);
+        Arrays.fill(fingerprints, RECORDING_STARTS[0] + 3000, RECORDING_STARTS[1], 0);
+        Arrays.fill(fingerprints, RECORDING_STARTS[1] + 3000, RECORDING_STARTS[2], 0);
+        String indexFile = writeIndex("silence.db", 32, fingerprints);
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(indexFile);
+        long[] recording = recording(32);
+        List<long[]> queries = List.of(query(recording, QUERY_OFFSET), query(recording, 1500));
+        double criteria = FingerprintDBSearcher.DEFAULT_CRITERIA;
+        String scanResults = searcher.query_scan(queries, criteria).toString();
+        
+        new FingerprintDBIndexer(indexFile).buildBlockSummary();
+        CountingMetrics metrics = new CountingMetrics();
+        searcher.setMetrics(metrics);
+        assertThat(searcher.query_scan(queries, criteria).toString(), equalTo(scanResults));
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.STREAM);
+        assertThat(searcher.query_scan(queries, criteria).toString(), equalTo(scanResults));
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.MAPPED);
+        searcher.setForkJoinPool(new ForkJoinPool(4));
+        assertThat(searcher.query_scan(queries, criteria).toString(), equalTo(scanResults));
+        
+        //Random fingerprints have all bits in every block, so nothing can be passed over
+        String randomIndex = createIndex();
+        FingerprintDBSearcher randomSearcher = new FingerprintDBSearcher(randomIndex);
+        String randomResults = randomSearcher.query_scan(query(), criteria).toString();
+        new FingerprintDBIndexer(randomIndex).buildBlockSummary();
+        CountingMetrics randomMetrics = new CountingMetrics();
+        randomSearcher.setMetrics(randomMetrics);
+        assertThat(randomSearcher.query_scan(query(), criteria).toString(), equalTo(randomResults));
+        assertThat(randomMetrics.getPositionsPruned(), equalTo(0L));
+        
+        metrics.reset();
+        searcher.setUseBlockSummary(false);
+        assertThat(searcher.query_scan(queries, criteria).toString(), equalTo(scanResults));
+        assertThat(metrics.getPositionsPruned(), equalTo(0L));
+    }
+    
+    @Test
+    void blockSummaryKeepsTheScanPositions() throws IOException {
+        //A recording of fingerprints with a single bit set, between fingerprints with all bits set. Compared with the
+        //query, they differ in too many bits to look like noise to the early termination, but the range of bits set
+        //in their blocks shows that they cannot be a hit
+        Random random = new Random(87);
+        long[] recording = new long[3000];
+        for (int i = 0; i < recording.length; i++) {
+            recording[i] = 1L << random.nextInt(32);
+        }
+        long[] fingerprints = new long[INDEX_SIZE];
+        Arrays.fill(fingerprints, 0xFFFFFFFFL);
+        for (int recordingStart : RECORDING_STARTS) {
+            System.arraycopy(recording, 0, fingerprints, recordingStart, recording.length);
+        }
+        String indexFile = writeIndex("ones.db", 32, fingerprints);
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(indexFile);
+        long[] query = query(recording, QUERY_OFFSET);
+        double criteria = FingerprintDBSearcher.DEFAULT_CRITERIA;
+        CountingMetrics scanMetrics = new CountingMetrics();
+        searcher.setMetrics(scanMetrics);
+        List<IsmirSearchResult> scanResults = searcher.query_scan(query, criteria);
+        //Single bits are close at any shift, so each copy gives more than one hit
+        assertThat(scanResults.size(), greaterThanOrEqualTo(RECORDING_STARTS.length));
+        
+        new FingerprintDBIndexer(indexFile).buildBlockSummary();
+        CountingMetrics metrics = new CountingMetrics();
+        searcher.setMetrics(metrics);
+        assertThat(searcher.query_scan(query, criteria).toString(), equalTo(scanResults.toString()));
+        
+        //The positions checkNearPos passes over are the ones it checked without the summary, and the scan moves on
+        //from them as it did then
+        assertThat(metrics.getPositionsPruned(), greaterThan(scanMetrics.getNearPosChecks() / 2));
+        assertThat(metrics.getNearPosChecks() + metrics.getPositionsPruned(), equalTo(scanMetrics.getNearPosChecks()));
+        assertThat(metrics.getPositionsScanned(), equalTo(scanMetrics.getPositionsScanned()));
+        assertThat(metrics.getEarlyTerminations(), equalTo(scanMetrics.getEarlyTerminations()));
+    }
+    
+    @Test
+    void phasesFindRecordingsAtLargerStrides() throws IOException {
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(2048, 64, 5512, 32, createIndex());
+        //The longer query also has phases shifted forward
+        long[] longQuery = Arrays.copyOfRange(recording(32), QUERY_OFFSET, QUERY_OFFSET + macro_sz + fpSkip + 64);
+        List<long[]> queries = List.of(query(), query(1500), longQuery);
+        double criteria = FingerprintDBSearcher.DEFAULT_CRITERIA;
+        CountingMetrics metrics = new CountingMetrics();
+        searcher.setMetrics(metrics);
+        String strideResults = searcher.query_scan(queries, criteria).toString();
+        long stridePositions = metrics.getPositionsScanned();
+        
+        for (int scanStride : new int[]{16, 32, 56}) {
+            searcher.setScanStride(scanStride);
+            metrics.reset();
+            assertThat(searcher.query_scan(queries, criteria).toString(), equalTo(strideResults));
+            assertThat(metrics.getPositionsScanned(), lessThanOrEqualTo(stridePositions * 8 / scanStride + 100));
+            searcher.setScanMode(FingerprintDBSearcher.ScanMode.STREAM);
+            assertThat(searcher.query_scan(queries, criteria).toString(), equalTo(strideResults));
+            searcher.setScanMode(FingerprintDBSearcher.ScanMode.MAPPED);
+        }
+        
+        //A single phase at a large stride only sees the recordings that happen to align with it
+        searcher.setPhaseStep(56);
+        List<List<IsmirSearchResult>> results = searcher.query_scan(queries, criteria);
+        assertThat(results.size(), equalTo(queries.size()));
+        assertThrows(IllegalArgumentException.class, () -> searcher.setScanStride(0));
+        assertThrows(IllegalArgumentException.class, () -> searcher.setPhaseStep(-8));
+    }
+    
+    @Test
+    void findsRecordingsAtTheEnd() throws IOException {
+        long[] recording = recording(32);
+        //The end of the index is in a short blob, and in a blob with no room for the zeroes after it
+        for (int indexSize : new int[]{200_000, 1024 * 1024 - 100}) {
+            Random random = new Random(42);
+            long[] fingerprints = new long[indexSize];
+            for (int i = 0; i < fingerprints.length; i++) {
+                fingerprints[i] = Integer.toUnsignedLong(random.nextInt());
+            }
+            System.arraycopy(recording, 0, fingerprints, indexSize - recording.length, recording.length);
+            String indexFile = writeIndex("end" + indexSize + ".db", 32, fingerprints);
+            
+            //Queries for the last fingerprints of the index, followed by fingerprints that are not in it. The windows
+            //of the last of them overlap the end of the index, so they are only seen from the positions after it
+            for (int queryOffset = recording.length - macro_sz - fpSkip - 16;
+                 queryOffset <= recording.length - macro_sz - fpSkip + 8;
+                 queryOffset++) {
+                long[] query = new long[macro_sz + fpSkip];
+                for (int i = 0; i < query.length; i++) {
+                    int fingerprint = queryOffset + i;
+                    query[i] = fingerprint < recording.length ? recording[fingerprint] : Integer.toUnsignedLong(random.nextInt());
+                }
+                searchAllModes(indexFile, query, FingerprintDBSearcher.DEFAULT_CRITERIA);
+                List<IsmirSearchResult> results = new FingerprintDBSearcher(indexFile).query_scan(
+                        query, FingerprintDBSearcher.DEFAULT_CRITERIA);
+                assertThat(indexSize + " " + queryOffset, results.size(), equalTo(1));
+            }
+        }
+    }
+    
+    @Test
+    void hitsAreReportedAfterTheBestWindow() throws IOException {
+        long[] recording = recording(32);
+        Random random = new Random(42);
+        long[] fingerprints = new long[200_000];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = Integer.toUnsignedLong(random.nextInt());
+        }
+        System.arraycopy(recording, 0, fingerprints, 0, recording.length);
+        String indexFile = writeIndex("start.db", 32, fingerprints);
+        
+        //A query that matches the zeroes before the index and the first 140 fingerprints, so its window is at position
+        //140. It is checked from a position before nearRange, where the windows checked are cut short by the start of
+        //the index. The hit is still reported nearRange after the window, as everywhere else
+        long[] query = new long[macro_sz + fpSkip];
+        System.arraycopy(recording, 0, query, query.length - 140, 140);
+        searchAllModes(indexFile, query, FingerprintDBSearcher.DEFAULT_CRITERIA);
+        List<IsmirSearchResult> results = new FingerprintDBSearcher(indexFile).query_scan(
+                query, FingerprintDBSearcher.DEFAULT_CRITERIA);
+        assertThat(results, hasItem(allOf(hasProperty("dist", equalTo(0)),
+                                          hasProperty("posInIndex", equalTo(140 + nearRange)))));
+    }
+    
+    //The hits of the query in the index, which must be the same in the mapped, streamed and lookup table searches
+    private static String searchAllModes(String indexFile, long[] query, double criteria) throws IOException {
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(indexFile);
+        String mappedResults = searcher.query_scan(query, criteria).toString();
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.STREAM);
+        assertThat(searcher.query_scan(query, criteria).toString(), equalTo(mappedResults));
+        LookupTable.build(indexFile);
+        searcher.setScanMode(FingerprintDBSearcher.ScanMode.MAPPED);
+        assertThat(searcher.query_scan(query, criteria).toString(), equalTo(mappedResults));
+        return mappedResults;
+    }
+    
+    private static long[] query() {
+        return query(QUERY_OFFSET);
+    }
+    
+    private static long[] query(int queryOffset) {
+        return query(recording(32), queryOffset);
+    }
+    
+    //A recording of fingerprints of the given number of bands
+    private static long[] recording(int bands) {
+        return TestData.recording(new Random(87), 3000, bands);
+    }
+    
+    private static long[] query(long[] recording, int queryOffset) {
+        return Arrays.copyOfRange(recording, queryOffset, queryOffset + macro_sz + fpSkip);
+    }
+    
+    //The synthetic index with fingerprints of the given number of bands
+    private static long[] syntheticIndex(int bands) {
+        Random random = new Random(42);
+        long[] index = new long[INDEX_SIZE];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = random.nextLong() >>> (Long.SIZE - bands);
+        }
+        long[] recording = recording(bands);
+        for (int recordingStart : RECORDING_STARTS) {
+            System.arraycopy(recording, 0, index, recordingStart, recording.length);
+        }
+        return index;
+    }
+    
+    private String writeIndex(String name, int bands, long[] fingerprints) throws IOException {
+        Path indexFile = tempDir.resolve(name);
+        new FingerprintDBIndexer(2048, 64, 5512, bands, indexFile.toString())
+                .writeDBToDisk(indexFile.toString(), fingerprints, "synthetic");
+        return indexFile.toString();
+    }
+    
+    private String createIndex() throws IOException {
+        int[] index = syntheticIndex();
+        ByteBuffer bytes = ByteBuffer.allocate(INDEX_SIZE * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asIntBuffer().put(index);
+        Path indexFile = tempDir.resolve("synthetic.db");
+        Files.write(indexFile, bytes.array());
+        Files.writeString(tempDir.resolve("synthetic.db.map"), INDEX_SIZE + " synthetic\n", StandardCharsets.UTF_8);
+        return indexFile.toString();
+    }
+    
+    private static int[] syntheticIndex() {
+        Random random = new Random(42);
+        int[] index = new int[INDEX_SIZE];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = random.nextInt();
+        }
+        long[] recording = recording(32);
+        for (int recordingStart : RECORDING_STARTS) {
+            for (int i = 0; i < recording.length; i++) {
+                index[recordingStart + i] = (int) recording[i];
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,117 @@
+package dk.kb.xcorrsound;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/*
+ * Streaming fingerprints in chunks must give the same fingerprints as generating them for the entire input at once.
+ */
+public class FingerprintStreamerTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void chunksEqualWholeInput() throws Exception {
+        Random random = new Random(42);
+        short[] samples = new short[100_000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        long[] expected = new FingerprintEngine(2048, 64, 5512, 32).generate(samples, null);
+        
+        //Chunks smaller than, equal to and not a multiple of the frame
+        for (int chunkSamples : new int[]{1, 2049, 5000, FingerprintStreamer.DEFAULT_CHUNK_SAMPLES}) {
+            assertThat("chunks of " + chunkSamples, stream(samples, chunkSamples), equalTo(expected));
+        }
+    }
+    
+    @Test
+    void parallelEqualsSerial() throws Exception {
+        Random random = new Random(42);
+        //More frames than a parallel batch, so the energy of the last frame is carried between batches
+        short[] samples = new short[1_200_000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        long[] expected = new FingerprintEngine(2048, 64, 5512, 32).generate(samples, null);
+        
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            FingerprintEngine engine = new FingerprintEngine(2048, 64, 5512, 32);
+            engine.setForkJoinPool(pool);
+            assertThat(engine.generate(samples, null), equalTo(expected));
+            //Again, to see that nothing is left over from the first input
+            assertThat(engine.generate(samples, null), equalTo(expected));
+            
+            Collector collector = new Collector();
+            FingerprintStreamer streamer = new FingerprintStreamer(engine,
+                                                                   FingerprintStreamer.DEFAULT_CHUNK_SAMPLES,
+                                                                   collector);
+            streamer.write(samples, 0, samples.length);
+            streamer.finish();
+            assertThat(collector.fingerprints, equalTo(expected));
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    void streamedFileEqualsInMemory() throws Exception {
+        String soundFile = TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!.mp3.wav");
+        FingerprintStrategyIsmir strategy = new FingerprintStrategyIsmir(2048, 64, 5512, 32);
+        
+        long[] expected = strategy.getFingerprintsForFileForIndex(soundFile);
+        Collector collector = new Collector();
+        strategy.streamFingerprintsForFileForIndex(soundFile, collector);
+        
+        assertThat(collector.fingerprints, equalTo(expected));
+    }
+    
+    @Test
+    void streamedTruncatedFileEqualsInMemory() throws Exception {
+        FingerprintStrategyIsmir strategy = new FingerprintStrategyIsmir(2048, 64, 5512, 32);
+        long[] whole = strategy.getFingerprintsForFileForIndex(TestData.resource(TestData.WAV));
+        String truncatedFile = TestData.truncatedWav(tempDir, 100_000);
+        
+        //Both paths pad the missing audio with silence to the length in the header
+        long[] expected = strategy.getFingerprintsForFileForIndex(truncatedFile);
+        assertThat(expected.length, equalTo(whole.length));
+        Collector collector = new Collector();
+        strategy.streamFingerprintsForFileForIndex(truncatedFile, collector);
+        
+        assertThat(collector.fingerprints, equalTo(expected));
+    }
+    
+    private static long[] stream(short[] samples, int chunkSamples) throws Exception {
+        Collector collector = new Collector();
+        FingerprintStreamer streamer = new FingerprintStreamer(new FingerprintEngine(2048, 64, 5512, 32),
+                                                               chunkSamples,
+                                                               collector);
+        //Write in pieces that do not line up with the chunks
+        for (int offset = 0; offset < samples.length; offset += 777) {
+            streamer.write(samples, offset, Math.min(777, samples.length - offset));
+        }
+        streamer.finish();
+        return collector.fingerprints;
+    }
+    
+    private static class Collector implements FingerprintSink {
+        long[] fingerprints = new long[0];
+        
+        @Override
+        public void accept(long[] chunk, int count) {
+            int start = fingerprints.length;
+            fingerprints = Arrays.copyOf(fingerprints, start + count);
+            System.arraycopy(chunk, 0, fingerprints, start, count);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package dk.kb.xcorrsound;
+
+import dk.kb.xcorrsound.index.FingerprintDBIndexer;
+import dk.kb.xcorrsound.index.IndexMerger;
+import dk.kb.xcorrsound.search.FingerprintDBSearcher;
+import dk.kb.xcorrsound.search.IsmirSearchResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IndexMergerTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    private final Random random = new Random(42);
+    
+    @Test
+    void mergeShards() throws IOException {
+        long[] a1 = fingerprints(1000);
+        long[] a2 = fingerprints(2000);
+        long[] b1 = fingerprints(1500);
+        long[] c1 = fingerprints(2000);
+        
+        String shardA = tempDir.resolve("a.db").toString();
+        FingerprintDBIndexer indexerA = new FingerprintDBIndexer(shardA);
+        indexerA.writeDBToDisk(shardA, a1, "a1");
+        indexerA.writeDBToDisk(shardA, a2, "a2");
+        //An index from before the header, which is just the ints
+        Path shardB = tempDir.resolve("b.db");
+        ByteBuffer bytes = ByteBuffer.allocate(b1.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        Arrays.stream(b1).forEach(fingerprint -> bytes.putInt((int) fingerprint));
+        Files.write(shardB, bytes.array());
+        Files.writeString(Path.of(shardB + ".map"), b1.length + " b1\n", StandardCharsets.UTF_8);
+        String shardC = tempDir.resolve("c.db").toString();
+        new FingerprintDBIndexer(shardC).writeDBToDisk(shardC, c1, "c1");
+        
+        IndexMerger merger = new IndexMerger(tempDir.resolve("merged").toString());
+        merger.setSegmentSize(3500);
+        merger.setDropped(Set.of("a2"));
+        List<String> segments = merger.merge(List.of(shardA, shardB.toString(), shardC));
+        
+        //c1 does not fit in the first segment after a1 and b1
+        assertThat(segments.size(), equalTo(2));
+        assertThat(IndexManifest.getIndexFiles(merger.getManifestFile()), equalTo(segments));
+        //A searcher opens the segments, not the manifest
+        assertThrows(IllegalArgumentException.class, () -> new FingerprintDBSearcher(merger.getManifestFile()));
+        assertThat(Files.readString(Path.of(segments.get(0) + ".map")), equalTo("1000 a1\n2500 b1\n"));
+        assertThat(Files.readString(Path.of(segments.get(1) + ".map")), equalTo("2000 c1\n"));
+        for (String segment : segments) {
+            IndexHeader header = IndexHeader.read(segment);
+            assertTrue(header.verify(segment));
+        }
+        assertThat(IndexHeader.read(segments.get(0)).getRecordCount(), equalTo(2500L));
+        
+        //The recordings are found in the segments, at the same place in the recording
+        long[] query = Arrays.copyOfRange(b1, 100, 100 + macro_sz + fpSkip);
+        List<IsmirSearchResult> results = new FingerprintDBSearcher(segments.get(0))
+                .query_scan(query, FingerprintDBSearcher.DEFAULT_CRITERIA);
+        assertThat(results.toString(),
+                   equalTo(new FingerprintDBSearcher(shardB.toString())
+                                   .query_scan(query, FingerprintDBSearcher.DEFAULT_CRITERIA)
+                                   .toString()));
+        assertThat(results.size(), equalTo(1));
+        assertThat(results.get(0).getFilename(), equalTo("b1"));
+        
+        assertThrows(IOException.class, () -> merger.merge(List.of(shardC)));
+    }
+    
+    @Test
+    void mergeRejectsOtherParameters() throws IOException {
+        String shard32 = tempDir.resolve("32.db").toString();
+        new FingerprintDBIndexer(shard32).writeDBToDisk(shard32, fingerprints(1000), "a");
+        String shard16 = tempDir.resolve("16.db").toString();
+        new FingerprintDBIndexer(2048, 64, 5512, 16, shard16).writeDBToDisk(shard16, new long[1000], "b");
+        
+        IndexMerger merger = new IndexMerger(tempDir.resolve("merged").toString());
+        assertThrows(IllegalArgumentException.class, () -> merger.merge(List.of(shard32, shard16)));
+    }
+    
+    private long[] fingerprints(int count) {
+        return TestData.recording(random, count, 32);
+    }
+}
@@ -0,0 +1,71 @@
+package dk.kb.xcorrsound;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class OffsetMapTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void migratesTextMap() throws IOException {
+        String dbFile = tempDir.resolve("test.db").toString();
+        Files.writeString(Path.of(dbFile + ".map"), "100 first.mp3\n250 second file.mp3\n250 empty.mp3\n400 third.mp3\n");
+        
+        OffsetMap offsetMap = OffsetMap.open(dbFile);
+        
+        assertThat(Files.exists(Path.of(OffsetMap.getBinaryMapFile(dbFile))), equalTo(true));
+        assertThat(offsetMap.size(), equalTo(4));
+        assertThat(offsetMap.getName(offsetMap.indexOf(0)), equalTo("first.mp3"));
+        assertThat(offsetMap.getName(offsetMap.indexOf(99)), equalTo("first.mp3"));
+        assertThat(offsetMap.getName(offsetMap.indexOf(100)), equalTo("second file.mp3"));
+        assertThat(offsetMap.getStart(offsetMap.indexOf(100)), equalTo(100));
+        assertThat(offsetMap.getName(offsetMap.indexOf(250)), equalTo("third.mp3"));
+        assertThat(offsetMap.getStart(offsetMap.indexOf(399)), equalTo(250));
+        assertThat(offsetMap.indexOf(400), equalTo(-1));
+    }
+    
+    @Test
+    void readsAppendedLines() throws IOException {
+        String dbFile = tempDir.resolve("test.db").toString();
+        Path textMap = Path.of(dbFile + ".map");
+        Files.writeString(textMap, "100 first.mp3\n");
+        OffsetMap.open(dbFile);
+        
+        //The last line is not complete yet, so it is not read
+        Files.writeString(textMap, "200 sécond.mp3\n300 thi", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        OffsetMap offsetMap = OffsetMap.open(dbFile);
+        assertThat(offsetMap.size(), equalTo(2));
+        assertThat(offsetMap.getName(offsetMap.indexOf(150)), equalTo("sécond.mp3"));
+        
+        Files.writeString(textMap, "rd.mp3\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        offsetMap = OffsetMap.open(dbFile);
+        assertThat(offsetMap.size(), equalTo(3));
+        assertThat(offsetMap.getName(offsetMap.indexOf(250)), equalTo("third.mp3"));
+        assertThat(offsetMap.getName(offsetMap.indexOf(50)), equalTo("first.mp3"));
+    }
+    
+    @Test
+    void remakesMapOfNewIndex() throws IOException {
+        String dbFile = tempDir.resolve("test.db").toString();
+        Path textMap = Path.of(dbFile + ".map");
+        Files.writeString(textMap, "100 first.mp3\n");
+        OffsetMap.open(dbFile);
+        
+        //A new index with the same name and a map of the same length
+        Files.writeString(textMap, "120 other.mp3\n");
+        OffsetMap offsetMap = OffsetMap.open(dbFile);
+        assertThat(offsetMap.getEnd(0), equalTo(120));
+        assertThat(offsetMap.getName(0), equalTo("other.mp3"));
+    }
+}
@@ -0,0 +1,131 @@
+package dk.kb.xcorrsound;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/*
+ * The decoder must give the samples of the channel for all the sample sizes and byte orders, also when the stream
+ * returns fewer bytes than asked for.
+ */
+public class PcmDecoderTest {
+    
+    private final Random random = new Random(42);
+    
+    @Test
+    void decodeSampleSizes() throws IOException {
+        short[][] channels = {samples(100_000), samples(100_000)};
+        for (int bits : new int[]{8, 16, 24}) {
+            for (boolean signed : new boolean[]{true, false}) {
+                for (boolean bigEndian : new boolean[]{true, false}) {
+                    AudioFormat format = new AudioFormat(5512, bits, 2, signed, bigEndian);
+                    byte[] bytes = encode(channels, format);
+                    String name = bits + " bits, signed " + signed + ", big endian " + bigEndian;
+                    
+                    assertThat(name, decode(bytes, format, 1), equalTo(truncate(channels[1], bits)));
+                    short[] mixed = new short[channels[0].length];
+                    short[] first = truncate(channels[0], bits);
+                    short[] second = truncate(channels[1], bits);
+                    for (int i = 0; i < mixed.length; i++) {
+                        mixed[i] = (short) ((first[i] + second[i]) / 2);
+                    }
+                    assertThat(name, decode(bytes, format, PcmDecoder.DOWNMIX), equalTo(mixed));
+                }
+            }
+        }
+    }
+    
+    @Test
+    void partialFrameAtEndIsDropped() throws IOException {
+        AudioFormat format = new AudioFormat(5512, 16, 2, true, false);
+        byte[] bytes = encode(new short[][]{samples(1000), samples(1000)}, format);
+        byte[] truncated = new byte[bytes.length - 3];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        
+        PcmDecoder decoder = new PcmDecoder(new ByteArrayInputStream(truncated), format, 0);
+        assertThat(decoder.read(new short[2000], 0, 2000), equalTo(999));
+        assertThat(decoder.read(new short[2000], 0, 2000), equalTo(0));
+    }
+    
+    @Test
+    void rejectsOtherFormats() {
+        AudioFormat floats = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, 5512, 32, 1, 4, 5512, false);
+        assertThrows(IOException.class, () -> new PcmDecoder(new ByteArrayInputStream(new byte[0]), floats, 0));
+        AudioFormat mono = new AudioFormat(5512, 16, 1, true, false);
+        assertThrows(IllegalArgumentException.class,
+                     () -> new PcmDecoder(new ByteArrayInputStream(new byte[0]), mono, 1));
+    }
+    
+    //Decode from a stream that returns at most 7 bytes at a time, to a buffer in pieces that are not whole chunks
+    private static short[] decode(byte[] bytes, AudioFormat format, int channel) throws IOException {
+        InputStream in = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        PcmDecoder decoder = new PcmDecoder(in, format, channel);
+        short[] samples = new short[bytes.length / format.getFrameSize()];
+        int frames = 0;
+        while (frames < samples.length) {
+            frames += decoder.read(samples, frames, Math.min(1234, samples.length - frames));
+        }
+        assertThat(decoder.read(new short[1], 0, 1), equalTo(0));
+        return samples;
+    }
+    
+    private short[] samples(int count) {
+        short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        return samples;
+    }
+    
+    //The samples as they are after encoding with the bits, where 8 bits loses the lowest byte
+    private static short[] truncate(short[] samples, int bits) {
+        short[] truncated = new short[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            truncated[i] = bits == 8 ? (short) (samples[i] & 0xFF00) : samples[i];
+        }
+        return truncated;
+    }
+    
+    //Interleave the channels in the format. 24 bit samples get a random lowest byte, that the decoder ignores
+    private byte[] encode(short[][] channels, AudioFormat format) {
+        int sampleBytes = format.getSampleSizeInBits() / 8;
+        byte[] bytes = new byte[channels[0].length * format.getFrameSize()];
+        int position = 0;
+        for (int i = 0; i < channels[0].length; i++) {
+            for (short[] channel : channels) {
+                int value = channel[i];
+                if (format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED)) {
+                    value ^= 0x8000;
+                }
+                byte[] sample = new byte[sampleBytes];
+                if (sampleBytes == 1) {
+                    sample[0] = (byte) (value >> 8);
+                } else {
+                    //The most significant byte first
+                    sample[0] = (byte) (value >> 8);
+                    sample[1] = (byte) value;
+                    if (sampleBytes == 3) {
+                        sample[2] = (byte) random.nextInt();
+                    }
+                }
+                for (int b = 0; b < sampleBytes; b++) {
+                    bytes[position++] = format.isBigEndian() ? sample[b] : sample[sampleBytes - 1 - b];
+                }
+            }
+        }
+        return bytes;
+    }
+}
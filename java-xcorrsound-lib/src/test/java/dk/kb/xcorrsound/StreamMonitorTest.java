@@ -0,0 +1,117 @@
+package dk.kb.xcorrsound;
+
+import dk.kb.xcorrsound.index.FingerprintDBIndexer;
+import dk.kb.xcorrsound.search.FingerprintDBSearcher;
+import dk.kb.xcorrsound.search.IsmirSearchResult;
+import dk.kb.xcorrsound.search.StreamMatch;
+import dk.kb.xcorrsound.search.StreamMonitor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+import static dk.kb.xcorrsound.FingerPrintDB.nearRange;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/*
+ * The monitor looks for the recordings of its catalogue in a stream as the searcher looks for queries in an index, so
+ * it must find what the searcher finds when the stream is the index, however the stream arrives.
+ */
+public class StreamMonitorTest {
+    
+    private static final int STREAM_LENGTH = 300_000;
+    
+    private static final int[] RECORDING_STARTS = {10_000, 100_003, 250_777};
+    
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void monitorEqualsScan() throws Exception {
+        Random random = new Random(42);
+        long[] stream = new long[STREAM_LENGTH];
+        for (int i = 0; i < stream.length; i++) {
+            stream[i] = Integer.toUnsignedLong(random.nextInt());
+        }
+        long[] recording = TestData.recording(new Random(87), 3000, 32);
+        for (int recordingStart : RECORDING_STARTS) {
+            System.arraycopy(recording, 0, stream, recordingStart, recording.length);
+        }
+        String streamIndex = tempDir.resolve("stream.db").toString();
+        new FingerprintDBIndexer(streamIndex).insert(stream, "stream");
+        
+        //The catalogue has two parts of the recording and something that is not in the stream
+        long[][] catalogue = {
+                Arrays.copyOfRange(recording, 700, 700 + macro_sz + fpSkip),
+                Arrays.copyOfRange(recording, 1500, 3000),
+                Arrays.stream(new long[macro_sz + fpSkip]).map(i -> Integer.toUnsignedLong(random.nextInt())).toArray()
+        };
+        String catalogueIndex = tempDir.resolve("catalogue.db").toString();
+        FingerprintDBIndexer catalogueIndexer = new FingerprintDBIndexer(catalogueIndex);
+        for (int i = 0; i < catalogue.length; i++) {
+            catalogueIndexer.insert(catalogue[i], "entry" + i);
+        }
+        
+        //The searcher reports a hit nearRange after the window, in positions offset by macro_sz
+        FingerprintDBSearcher searcher = new FingerprintDBSearcher(streamIndex);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < catalogue.length; i++) {
+            for (IsmirSearchResult hit : searcher.query_scan(catalogue[i], FingerprintDBSearcher.DEFAULT_CRITERIA)) {
+                expected.add("entry" + i + " " + (hit.getPosInIndex() - nearRange - macro_sz - fpSkip) + " "
+                             + hit.getDist());
+            }
+        }
+        assertThat(expected.size(), equalTo(2 * RECORDING_STARTS.length));
+        
+        //Pieces that do not line up with the compaction of the monitor
+        for (int piece : new int[]{1, 777, 100_000}) {
+            StreamMonitor monitor = new StreamMonitor(catalogueIndex);
+            List<StreamMatch> matches = new ArrayList<>();
+            monitor.setListener(matches::add);
+            for (int offset = 0; offset < stream.length; offset += piece) {
+                long[] fingerprints = Arrays.copyOfRange(stream, offset, Math.min(offset + piece, stream.length));
+                monitor.accept(fingerprints, fingerprints.length);
+            }
+            monitor.finish();
+            
+            List<String> found = matches.stream()
+                                        .map(match -> match.getName() + " " + match.getStreamPosition() + " "
+                                                      + match.getDist())
+                                        .sorted()
+                                        .collect(Collectors.toList());
+            assertThat("pieces of " + piece, found, equalTo(expected.stream().sorted().collect(Collectors.toList())));
+        }
+    }
+    
+    @Test
+    void monitorAudio() throws Exception {
+        File wavFile = new File(TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!.mp3.wav"));
+        StreamMonitor monitor = new StreamMonitor(2048, 64, 5512, 32);
+        //A part of the audio from a frame, so its fingerprints are those of the stream
+        short[] samples = monitor.getFingerprintStrategy().getSamplesForFile(wavFile.getAbsolutePath());
+        int partStart = 1000;
+        short[] part = Arrays.copyOfRange(samples, partStart * 64, partStart * 64 + 5512 * 10);
+        monitor.add("part", monitor.getFingerprintStrategy().getFingerprintsForSamples(part));
+        List<StreamMatch> matches = new ArrayList<>();
+        monitor.setListener(matches::add);
+        
+        try (AudioInputStream audio = AudioSystem.getAudioInputStream(wavFile)) {
+            monitor.monitor(audio);
+        }
+        
+        assertThat(matches.size(), equalTo(1));
+        assertThat(matches.get(0).getStreamPosition(), equalTo((long) partStart));
+        assertThat(matches.get(0).getDist(), equalTo(0));
+    }
+}
@@ -0,0 +1,45 @@
+package dk.kb.xcorrsound;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Resources and synthetic fingerprints shared by the tests.
+ */
+class TestData {
+    
+    static final String WAV = "Monk Turner + Fascinoma - It's Your Birthday!.mp3.wav";
+    
+    //The absolute path of a file in the test resources
+    static String resource(String name) throws Exception {
+        return new File(Thread.currentThread().getContextClassLoader().getResource(name).toURI()).getAbsolutePath();
+    }
+    
+    //A copy of WAV that ends after the given number of frames, but has the length of the whole audio in its header,
+    //like a capture that was cut off
+    static String truncatedWav(Path dir, int frames) throws Exception {
+        Path wav = Path.of(resource(WAV));
+        AudioFileFormat format = AudioSystem.getAudioFileFormat(wav.toFile());
+        int frameSize = format.getFormat().getFrameSize();
+        long dataStart = Files.size(wav) - (long) format.getFrameLength() * frameSize;
+        Path truncated = dir.resolve("truncated.wav");
+        Files.write(truncated, Arrays.copyOf(Files.readAllBytes(wav), (int) dataStart + frames * frameSize));
+        return truncated.toString();
+    }
+    
+    //Fingerprints of the given number of bands for a recording. Like real audio, neighbouring fingerprints differ in a
+    //few bits, so the scan finds matches between its positions
+    static long[] recording(Random random, int count, int bands) {
+        long[] recording = new long[count];
+        recording[0] = random.nextLong() >>> (Long.SIZE - bands);
+        for (int i = 1; i < recording.length; i++) {
+            recording[i] = recording[i - 1] ^ (1L << random.nextInt(bands)) ^ (1L << random.nextInt(bands));
+        }
+        return recording;
+    }
+}
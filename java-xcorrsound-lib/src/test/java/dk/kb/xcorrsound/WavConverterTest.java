@@ -0,0 +1,48 @@
+package dk.kb.xcorrsound;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.nullValue;
+
+/*
+ * A conversion must only give what the reader read if ffmpeg converted the whole file, and must not wait for ffmpeg to
+ * finish a file the reader has stopped reading.
+ */
+public class WavConverterTest {
+    
+    @TempDir
+    Path tempDir;
+    
+    @Test
+    void readToEnd() throws Exception {
+        Integer bytes = WavConverter.pipeConvert(TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!.mp3"),
+                                                 5512, null, null,
+                                                 audioInputStream -> audioInputStream.readAllBytes().length);
+        assertThat(bytes, greaterThan(0));
+    }
+    
+    @Test
+    void failedConversion() throws Exception {
+        Path notAudio = tempDir.resolve("notAudio.mp3");
+        Files.writeString(notAudio, "This is not audio");
+        Integer bytes = WavConverter.pipeConvert(notAudio.toString(),
+                                                 5512, null, null,
+                                                 audioInputStream -> audioInputStream.readAllBytes().length);
+        assertThat(bytes, nullValue());
+    }
+    
+    @Test
+    void readerStopsEarly() throws Exception {
+        Integer bytes = WavConverter.pipeConvert(TestData.resource("Monk Turner + Fascinoma - It's Your Birthday!.mp3"),
+                                                 5512, null, null,
+                                                 audioInputStream -> audioInputStream.readNBytes(1000).length);
+        assertThat(bytes, equalTo(1000));
+    }
+}
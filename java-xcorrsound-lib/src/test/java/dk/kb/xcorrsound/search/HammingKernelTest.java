@@ -0,0 +1,106 @@
+package dk.kb.xcorrsound.search;
+
+import dk.kb.xcorrsound.FingerprintCodec;
+import org.junit.jupiter.api.Test;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static dk.kb.xcorrsound.FingerPrintDB.fpSkip;
+import static dk.kb.xcorrsound.FingerPrintDB.macro_sz;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/*
+ * The unrolled kernels must give the same distances as the scalar ones, for each width, on heap windows at any offset
+ * and for ranges that are not a multiple of the four fingerprints they unroll.
+ */
+public class HammingKernelTest {
+    
+    private static final int DB_SIZE = 4096;
+    
+    @Test
+    void unrolledEqualsScalar() {
+        Random random = new Random(42);
+        for (FingerprintCodec codec : new FingerprintCodec[]{FingerprintCodec.SHORT,
+                                                             FingerprintCodec.INT,
+                                                             FingerprintCodec.LONG}) {
+            HammingKernel unrolled = HammingKernel.forCodec(codec, true);
+            HammingKernel scalar = HammingKernel.forCodec(codec, false);
+            //Some of the query has bits above the width of the codec, which can never match
+            long[] fingerprints = new long[macro_sz + fpSkip];
+            for (int i = 0; i < fingerprints.length; i++) {
+                fingerprints[i] = random.nextInt(4) == 0 ? random.nextLong() : codec.mask(random.nextLong());
+            }
+            PackedQuery query = new PackedQuery(fingerprints, codec);
+            
+            for (Buffer db : new Buffer[]{heap(codec, random), slice(codec, random), direct(codec, random)}) {
+                String name = codec + " " + db.getClass().getSimpleName() + " " + db.hasArray();
+                for (int test = 0; test < 1000; test++) {
+                    int start = random.nextInt(DB_SIZE - 2 * macro_sz);
+                    int from = random.nextInt(macro_sz);
+                    int to = from + random.nextInt(macro_sz - from + 1);
+                    assertThat(name + " [" + from + ", " + to + ") at " + start,
+                               unrolled.packedDistance(query, db, start, from, to),
+                               equalTo(scalar.packedDistance(query, db, start, from, to)));
+                }
+                for (int start = 0; start < DB_SIZE - macro_sz; start += 7) {
+                    assertThat(name + " at " + start,
+                               unrolled.distance(query, db, start),
+                               equalTo(scalar.distance(query, db, start)));
+                    int bound = random.nextInt(macro_sz * Long.SIZE / 2);
+                    assertThat(name + " bound " + bound + " at " + start,
+                               unrolled.distance(query, db, start, bound),
+                               equalTo(scalar.distance(query, db, start, bound)));
+                    assertThat(name + " at " + start,
+                               unrolled.terminatesEarly(query, db, start),
+                               equalTo(scalar.terminatesEarly(query, db, start)));
+                }
+            }
+        }
+    }
+    
+    @Test
+    void unrolledFindsMatches() {
+        Random random = new Random(87);
+        for (FingerprintCodec codec : new FingerprintCodec[]{FingerprintCodec.SHORT,
+                                                             FingerprintCodec.INT,
+                                                             FingerprintCodec.LONG}) {
+            Buffer db = heap(codec, random);
+            long[] fingerprints = new long[macro_sz + fpSkip];
+            for (int i = 0; i < macro_sz; i++) {
+                fingerprints[fpSkip + i] = codec.get(db, 100 + i);
+            }
+            PackedQuery query = new PackedQuery(fingerprints, codec);
+            
+            HammingKernel unrolled = HammingKernel.forCodec(codec, true);
+            assertThat(codec.toString(), unrolled.distance(query, db, 100), equalTo(0));
+            assertThat(codec.toString(), unrolled.terminatesEarly(query, db, 100), equalTo(false));
+        }
+    }
+    
+    private static Buffer heap(FingerprintCodec codec, Random random) {
+        return fill(codec.allocate(DB_SIZE), codec, random);
+    }
+    
+    //A heap buffer that does not start at the start of its array
+    private static Buffer slice(FingerprintCodec codec, Random random) {
+        Buffer db = fill(codec.allocate(DB_SIZE + 3), codec, random);
+        return db.position(3).slice();
+    }
+    
+    //An off heap buffer, as a mapped index
+    private static Buffer direct(FingerprintCodec codec, Random random) {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(DB_SIZE * codec.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        return fill(codec.view(bytes), codec, random);
+    }
+    
+    private static Buffer fill(Buffer db, FingerprintCodec codec, Random random) {
+        for (int i = 0; i < db.capacity(); i++) {
+            codec.put(db, i, random.nextLong());
+        }
+        return db;
+    }
+}